@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Rows per second for a bulk insert of weather through the provider, which compiles one
+    statement per batch, against the way it used to be done: SQLiteDatabase.insert and a Time
+    per row, in one transaction all the same.  Also the replace path the sync writes through,
+    for new, unchanged and changed days.  The numbers go to the log; the assertions only check
+    that every row arrived.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final int[] ROW_COUNTS = { 14, 1000, 100000 };
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearWeather();
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testBulkInsertRowsPerSecond() {
+        for (int count : ROW_COUNTS) {
+            ContentValues[] values = createWeatherValues(count);
+            clearWeather();
+            long start = System.nanoTime();
+            insertOneAtATime(values);
+            long insertMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            assertEquals(count, countWeather());
+
+            values = createWeatherValues(count);
+            clearWeather();
+            start = System.nanoTime();
+            int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    values);
+            long bulkMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            assertEquals(count, insertCount);
+            assertEquals(count, countWeather());
+
+            Log.i(LOG_TAG, count + " rows: insert per row " + count * 1000L / insertMillis +
+                    " rows/s (" + insertMillis + " ms), compiled statement " +
+                    count * 1000L / bulkMillis + " rows/s (" + bulkMillis + " ms)");
+        }
+    }
+
+    public void testReplaceRowsPerSecond() {
+        // Before every row, so nothing is pruned
+        Uri replaceUri = WeatherEntry.buildWeatherReplaceUri(TestUtilities.TEST_DATE - DAY_IN_MILLIS);
+        for (int count : ROW_COUNTS) {
+            clearWeather();
+            long start = System.nanoTime();
+            int insertCount = mContext.getContentResolver().bulkInsert(replaceUri,
+                    createWeatherValues(count));
+            long insertMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            assertEquals(count, insertCount);
+
+            start = System.nanoTime();
+            int unchangedCount = mContext.getContentResolver().bulkInsert(replaceUri,
+                    createWeatherValues(count));
+            long unchangedMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            assertEquals(0, unchangedCount);
+
+            ContentValues[] changed = createWeatherValues(count);
+            for (ContentValues value : changed) {
+                value.put(WeatherEntry.COLUMN_MIN_TEMP, 60);
+            }
+            start = System.nanoTime();
+            int updateCount = mContext.getContentResolver().bulkInsert(replaceUri, changed);
+            long updateMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            assertEquals(count, updateCount);
+            assertEquals(count, countWeather());
+
+            Log.i(LOG_TAG, count + " rows replaced: new " + count * 1000L / insertMillis +
+                    " rows/s (" + insertMillis + " ms), unchanged " +
+                    count * 1000L / unchangedMillis + " rows/s (" + unchangedMillis +
+                    " ms), changed " + count * 1000L / updateMillis + " rows/s (" +
+                    updateMillis + " ms)");
+        }
+    }
+
+    // One day per row, so no two rows collide on the location and date
+    private ContentValues[] createWeatherValues(int count) {
+        ContentValues[] values = new ContentValues[count];
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < count; i++, date += DAY_IN_MILLIS) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(mLocationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, date);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 10);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private void insertOneAtATime(ContentValues[] values) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                value.put(WeatherEntry.COLUMN_DATE, TestWeatherContract.normalizeDateWithTime(
+                        value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                db.insert(WeatherEntry.TABLE_NAME, null, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+    }
+
+    private void clearWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private int countWeather() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                null
+        );
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TestCityIndex extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestCityIndex.class.getSimpleName();
+
+    // About as many names as the weather server's city list has
+    private static final int CITY_COUNT = 200000;
+    private static final int LOOKUP_COUNT = 10000;
+
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mi", "ber", "san", "to", "vel", "dor", "ra", "ne", "har", "stad"};
+    private static final String[] COUNTRIES = {"US", "GB", "DE", "FR", "BR", "IN", "CN", "JP"};
+
+    private File mFile;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mFile != null) {
+            mFile.delete();
+        }
+        super.tearDown();
+    }
+
+    // Writes an index of the names to the cache and maps it
+    private CityIndex writeIndex(List<String> names) throws IOException {
+        mFile = new File(mContext.getCacheDir(), "test_" + CityIndex.ASSET_NAME);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            CityIndexWriter.write(names, out);
+        } finally {
+            out.close();
+        }
+        return CityIndex.open(mFile);
+    }
+
+    // Made up names of two to four syllables, each with a country, the same on every run
+    private static List<String> generateNames(int count) {
+        Random random = new Random(42);
+        List<String> names = new ArrayList<String>(count);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            name.setLength(0);
+            int syllables = 2 + random.nextInt(3);
+            for (int j = 0; j < syllables; j++) {
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+            if (random.nextInt(4) == 0) {
+                name.append(' ').append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            names.add(name.append(',').append(COUNTRIES[random.nextInt(COUNTRIES.length)])
+                    .toString());
+        }
+        return names;
+    }
+
+    public void testComplete() throws IOException {
+        CityIndex index = writeIndex(Arrays.asList("Mountain View,US", "London,GB",
+                "London,CA", "Londrina,BR", "S\u00e3o Paulo,BR", "Sao Paulo,BR", "Paris,FR"));
+        // The two Sao Paulos fold to one
+        assertEquals(6, index.getCount());
+
+        assertEquals(Arrays.asList("London,CA", "London,GB", "Londrina,BR"),
+                index.complete("lon", 10));
+        assertEquals(Arrays.asList("London,CA"), index.complete("LON", 1));
+        assertEquals(Arrays.asList("S\u00e3o Paulo,BR"), index.complete("sao  p", 10));
+        assertTrue(index.complete("x", 10).isEmpty());
+        assertTrue(index.complete(" ", 10).isEmpty());
+        assertEquals(Arrays.asList("Mountain View,US"), index.complete("mountain view , us", 10));
+    }
+
+    // The writer keeps its own copy of the fold, since it's built without the app
+    public void testWriterFoldsAsIndex() {
+        String[] names = {"S\u00e3o Paulo , BR", "  Mountain\tView,US", "Z\u00fcrich,CH",
+                "K\u00f8benhavn,DK", "Nu\u0000ll,XX", ""};
+        for (String name : names) {
+            assertEquals(CityIndex.fold(name), CityIndexWriter.fold(name));
+        }
+    }
+
+    /*
+        Prefix lookups over 200 000 names, as the user types them: the first three letters of
+        a name, then more.  The numbers go to the log; each has to stay well under a
+        millisecond.
+     */
+    public void testLookupBenchmark() throws IOException {
+        List<String> names = generateNames(CITY_COUNT);
+        CityIndex index = writeIndex(names);
+
+        // Once over the names, so every page is read before the timing
+        int found = 0;
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            found += index.complete(names.get(i).substring(0, 3), 8).size();
+        }
+        assertTrue(found >= LOOKUP_COUNT);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            String name = names.get(i);
+            assertFalse(index.complete(name.substring(0, 3 + i % 4), 8).isEmpty());
+        }
+        long completeMicros = (System.nanoTime() - start) / 1000 / LOOKUP_COUNT;
+
+        Log.i(LOG_TAG, index.getCount() + " names in " + index.getByteCount() + " bytes: " +
+                "completion " + completeMicros + " us per lookup");
+        assertTrue("Error: completion takes " + completeMicros + " us", completeMicros < 1000);
+    }
+
+    /*
+        The index is mapped, not loaded: opening it and looking names up must leave the Java
+        heap about where it was, however big the file.
+     */
+    public void testMemoryFootprint() throws IOException {
+        List<String> names = generateNames(CITY_COUNT);
+        writeIndex(names);
+        names = null;
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        CityIndex index = CityIndex.open(mFile);
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            index.complete(SYLLABLES[i % SYLLABLES.length] + SYLLABLES[i / 12 % 12], 8);
+        }
+        System.gc();
+        long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+        Log.i(LOG_TAG, "Index of " + index.getByteCount() + " bytes, heap grew " +
+                heapGrowth + " bytes");
+        assertTrue("Error: the heap grew " + heapGrowth + " bytes for an index of " +
+                index.getByteCount(), heapGrowth < index.getByteCount() / 10);
+    }
+}
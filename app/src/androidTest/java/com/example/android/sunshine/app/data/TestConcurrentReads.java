@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Reader latency while a writer replaces the forecast without pause, the way the loaders,
+    widgets and the sync share the database: once with a rollback journal and once in WAL mode.
+    It runs against a database of its own, through the same query the forecast list makes.
+    The percentiles go to the log; the assertions only check that every read found the forecast.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "weather_concurrent_reads.db";
+    private static final int READER_COUNT = 4;
+    private static final int DAYS = 14;
+    private static final long RUN_MILLIS = 5000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String FORECAST_QUERY = SQLiteQueryBuilder.buildQueryString(false,
+            WeatherProvider.getWeatherByLocationSettingTables(),
+            new String[]{
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                    WeatherEntry.COLUMN_DATE,
+                    WeatherEntry.COLUMN_SHORT_DESC,
+                    WeatherEntry.COLUMN_MAX_TEMP,
+                    WeatherEntry.COLUMN_MIN_TEMP,
+                    LocationEntry.COLUMN_LOCATION_SETTING,
+                    WeatherEntry.COLUMN_WEATHER_ID,
+                    LocationEntry.COLUMN_COORD_LAT,
+                    LocationEntry.COLUMN_COORD_LONG
+            },
+            WeatherProvider.sLocationSettingWithStartDateSelection,
+            null, null, WeatherEntry.COLUMN_DATE + " ASC", null);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReaderLatency() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // Without setWriteAheadLoggingEnabled there is no rollback journal run to compare
+            Log.i(LOG_TAG, "Skipped, needs API 16");
+            return;
+        }
+        run("rollback journal", false);
+        mContext.deleteDatabase(DATABASE_NAME);
+        run("WAL", true);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void run(String mode, boolean writeAheadLogging) throws Exception {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, DATABASE_NAME);
+        dbHelper.setWriteAheadLoggingEnabled(writeAheadLogging);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertEquals(writeAheadLogging, db.isWriteAheadLoggingEnabled());
+
+        final long locationRowId = db.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        writeForecast(db, locationRowId, 0);
+
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final int[] emptyReads = new int[1];
+        Thread[] readers = new Thread[READER_COUNT];
+        for (int i = 0; i < READER_COUNT; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    String[] args = {TestUtilities.TEST_LOCATION,
+                            Long.toString(TestUtilities.TEST_DATE)};
+                    while (System.currentTimeMillis() < end) {
+                        long start = System.nanoTime();
+                        Cursor cursor = db.rawQuery(FORECAST_QUERY, args);
+                        int count = cursor.getCount();
+                        cursor.close();
+                        latencies.add((System.nanoTime() - start) / 1000);
+                        if (count != DAYS) {
+                            synchronized (emptyReads) {
+                                emptyReads[0]++;
+                            }
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        int writes = 0;
+        while (System.currentTimeMillis() < end) {
+            writeForecast(db, locationRowId, ++writes);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        dbHelper.close();
+
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        assertFalse("Error: no reads completed with a " + mode, sorted.isEmpty());
+        assertEquals("Error: a read missed part of the forecast with a " + mode, 0, emptyReads[0]);
+
+        Log.i(LOG_TAG, mode + ": " + writes + " forecasts written, " + sorted.size() +
+                " reads, latency p50 " + WeatherProvider.percentile(sorted, 50) +
+                " us, p95 " + WeatherProvider.percentile(sorted, 95) +
+                " us, p99 " + WeatherProvider.percentile(sorted, 99) +
+                " us, max " + sorted.get(sorted.size() - 1) + " us");
+    }
+
+    // Replaces the location's days in one transaction, as a sync does
+    private static void writeForecast(SQLiteDatabase db, long locationRowId, int version) {
+        db.beginTransaction();
+        try {
+            long date = TestUtilities.TEST_DATE;
+            for (int i = 0; i < DAYS; i++, date += DAY_IN_MILLIS) {
+                ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+                weatherValues.put(WeatherEntry.COLUMN_DATE, date);
+                weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + version % 10);
+                db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -17,9 +17,15 @@ package com.example.android.sunshine.app.data;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.test.AndroidTestCase;
 
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
 import java.util.HashSet;
 
 public class TestDb extends AndroidTestCase {
@@ -55,6 +61,10 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncMetricsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HistoryEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherDbHelper.FORECAST_LIST_TABLE);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -91,6 +101,7 @@ public class TestDb extends AndroidTestCase {
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_GEOHASH);
 
         int columnNameIndex = c.getColumnIndex("name");
         do {
@@ -234,4 +245,231 @@ public class TestDb extends AndroidTestCase {
         db.close();
         return locationRowId;
     }
+
+    /*
+        The migrations have to be a step for every version after the oldest one we migrate,
+        ending at the current one, or some upgrade would skip a change.
+     */
+    public void testMigrationsAreContiguous() {
+        int version = WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION;
+        for (WeatherDbMigrations.Migration migration : WeatherDbMigrations.MIGRATIONS) {
+            assertEquals("Error: the migrations skip or repeat a version", version + 1,
+                    migration.version);
+            version = migration.version;
+        }
+        assertEquals("Error: no migration reaches the current version",
+                WeatherDbHelper.DATABASE_VERSION, version);
+    }
+
+    /*
+        Upgrading from every version we can migrate has to keep the locations and weather, and
+        end with the same schema a new install gets.
+     */
+    public void testUpgradeKeepsData() {
+        HashMap<String, String> freshSchema = readFreshSchema();
+
+        for (int version = WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION;
+                version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            deleteTheDatabase();
+            SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                    mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME), null);
+            createVersion2Schema(db);
+            WeatherDbMigrations.migrate(db,
+                    WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION, version);
+            db.setVersion(version);
+
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            long locationRowId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+            assertTrue(locationRowId != -1);
+            ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+            assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, weatherValues) != -1);
+            db.close();
+
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+            db = dbHelper.getWritableDatabase();
+
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null, null);
+            assertTrue("Error: the locations were lost upgrading from version " + version,
+                    cursor.moveToFirst());
+            TestUtilities.validateCurrentRecord("Error: a location changed upgrading from version "
+                    + version, cursor, locationValues);
+            assertEquals("Error: a location has no geohash after upgrading from version " + version,
+                    Geohash.encode(locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT),
+                            locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LONG)),
+                    cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_GEOHASH)));
+            cursor.close();
+
+            cursor = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+            assertTrue("Error: the weather was lost upgrading from version " + version,
+                    cursor.moveToFirst());
+            TestUtilities.validateCurrentRecord("Error: the weather changed upgrading from version "
+                    + version, cursor, weatherValues);
+            cursor.close();
+
+            cursor = db.query(WeatherDbHelper.FORECAST_LIST_TABLE, null, null, null, null, null,
+                    null);
+            assertTrue("Error: the forecast list is empty after upgrading from version " + version,
+                    cursor.moveToFirst());
+            TestUtilities.validateCurrentRecord("Error: the forecast list doesn't match the " +
+                    "weather after upgrading from version " + version, cursor, weatherValues);
+            TestUtilities.validateCurrentRecord("Error: the forecast list doesn't match the " +
+                    "location after upgrading from version " + version, cursor, locationValues);
+            cursor.close();
+
+            assertEquals("Error: upgrading from version " + version +
+                    " doesn't end with the schema of a new install", freshSchema, readSchema(db));
+            dbHelper.close();
+        }
+    }
+
+    /*
+        The forecast list has to be one range of the forecast list table's index, with no join
+        to the location and no sort of its own.
+     */
+    public void testForecastListUsesIndex() {
+        String[] columns = {
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_MIN_TEMP,
+                LocationEntry.COLUMN_LOCATION_SETTING,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                LocationEntry.COLUMN_COORD_LAT,
+                LocationEntry.COLUMN_COORD_LONG
+        };
+        String plan = explainWeatherQuery(columns,
+                WeatherProvider.sLocationSettingWithStartDateSelection,
+                WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertTrue("Error: the forecast list isn't a range of the forecast list index: " + plan,
+                plan.contains("sqlite_autoindex_" + WeatherDbHelper.FORECAST_LIST_TABLE));
+        assertFalse("Error: the forecast list still reads the location table: " + plan,
+                plan.contains(" " + LocationEntry.TABLE_NAME + " USING"));
+        assertFalse("Error: the forecast list is sorted after it's read: " + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    public void testDetailUsesIndex() {
+        String plan = explainWeatherQuery(null,
+                WeatherProvider.sLocationSettingAndDaySelection, null);
+
+        assertTrue("Error: the day isn't found through the forecast list index: " + plan,
+                plan.contains("sqlite_autoindex_" + WeatherDbHelper.FORECAST_LIST_TABLE));
+    }
+
+    /*
+        The triggers have to keep the forecast list equal to the weather joined to its location,
+        through inserts, replaced days, updates and deletes of either table.
+     */
+    public void testForecastListFollowsWrites() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        long locationRowId = db.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        assertForecastListMatches(db);
+
+        // A newer forecast for the same day replaces the row
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        assertForecastListMatches(db);
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, WeatherDbHelper.FORECAST_LIST_TABLE));
+
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Snow");
+        db.update(WeatherEntry.TABLE_NAME, updateValues, null, null);
+        assertForecastListMatches(db);
+
+        updateValues = new ContentValues();
+        updateValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        db.update(LocationEntry.TABLE_NAME, updateValues, null, null);
+        assertForecastListMatches(db);
+
+        db.delete(LocationEntry.TABLE_NAME, null, null);
+        assertForecastListMatches(db);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherDbHelper.FORECAST_LIST_TABLE));
+        dbHelper.close();
+    }
+
+    private static void assertForecastListMatches(SQLiteDatabase db) {
+        String difference = "SELECT * FROM " + WeatherDbHelper.FORECAST_LIST_SOURCE_VIEW +
+                " EXCEPT SELECT * FROM " + WeatherDbHelper.FORECAST_LIST_TABLE;
+        assertEquals("Error: a row is missing from the forecast list", 0,
+                DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (" + difference + ")", null));
+        difference = "SELECT * FROM " + WeatherDbHelper.FORECAST_LIST_TABLE +
+                " EXCEPT SELECT * FROM " + WeatherDbHelper.FORECAST_LIST_SOURCE_VIEW;
+        assertEquals("Error: the forecast list holds a row it shouldn't", 0,
+                DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (" + difference + ")", null));
+    }
+
+    // The details of EXPLAIN QUERY PLAN for a query the provider makes, one step per line
+    private String explainWeatherQuery(String[] columns, String selection, String sortOrder) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        String sql = SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.getWeatherByLocationSettingTables(), columns, selection,
+                null, null, sortOrder, null);
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                new String[]{TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE)});
+
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+        db.close();
+        return plan.toString();
+    }
+
+    // The tables and indexes of a new install, by name
+    private HashMap<String, String> readFreshSchema() {
+        deleteTheDatabase();
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        HashMap<String, String> schema = readSchema(dbHelper.getReadableDatabase());
+        dbHelper.close();
+        return schema;
+    }
+
+    // The SQL of every table and index we created, without its whitespace, by name
+    private static HashMap<String, String> readSchema(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT name, sql FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        HashMap<String, String> schema = new HashMap<String, String>();
+        while (cursor.moveToNext()) {
+            String sql = cursor.getString(1);
+            schema.put(cursor.getString(0), sql == null ? null : sql.replaceAll("\\s+", ""));
+        }
+        cursor.close();
+        return schema;
+    }
+
+    // The location and weather tables as version 2 created them, which the migrations start from
+    private static void createVersion2Schema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+                LocationEntry._ID + " INTEGER PRIMARY KEY," +
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                " );");
+        db.execSQL("CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestForecastCursor extends AndroidTestCase {
+
+    private static final int DAYS = 14;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    private WeatherProvider mProvider;
+    private long mLocationRowId;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new WeatherProvider();
+        mProvider.attachInfo(mContext, null);
+        mProvider.delete(WeatherEntry.CONTENT_URI, null, null);
+        mProvider.delete(LocationEntry.CONTENT_URI, null, null);
+
+        mLocationRowId = ContentUris.parseId(mProvider.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+        mProvider.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(75));
+        mToday = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.delete(WeatherEntry.CONTENT_URI, null, null);
+        mProvider.delete(LocationEntry.CONTENT_URI, null, null);
+        mProvider.shutdown();
+        super.tearDown();
+    }
+
+    private ContentValues[] createWeatherValues(double maxTemp) {
+        ContentValues[] values = new ContentValues[DAYS];
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < DAYS; i++, date += DAY_IN_MILLIS) {
+            values[i] = TestUtilities.createWeatherValues(mLocationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, date);
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp + i * 0.25);
+        }
+        return values;
+    }
+
+    // The cache has to give what SQLite gives, column names and strings included
+    public void testMatchesSqlite() {
+        assertSameRows(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null,
+                null, DAYS);
+        assertSameRows(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, mToday + 3 * DAY_IN_MILLIS), DETAIL_COLUMNS,
+                WeatherEntry.COLUMN_DATE + " ASC", DAYS - 3);
+        assertSameRows(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, mToday + DAY_IN_MILLIS), DETAIL_COLUMNS, null, 1);
+        assertSameRows(WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, mToday + DAYS * DAY_IN_MILLIS), DETAIL_COLUMNS,
+                null, 0);
+        assertSameRows(WeatherEntry.buildWeatherLocation("no such location"), DETAIL_COLUMNS,
+                null, 0);
+    }
+
+    // Anything but a snapshot's own columns in date order goes to SQLite
+    public void testFallsBackToSqlite() {
+        Uri uri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        Cursor cursor = mProvider.query(uri, DETAIL_COLUMNS, null, null,
+                WeatherEntry.COLUMN_DATE + " DESC");
+        assertFalse(cursor instanceof ForecastCursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(mToday + (DAYS - 1) * DAY_IN_MILLIS, cursor.getLong(1));
+        cursor.close();
+
+        cursor = mProvider.query(uri, new String[]{"MAX(" + WeatherEntry.COLUMN_MAX_TEMP + ")"},
+                null, null, null);
+        assertFalse(cursor instanceof ForecastCursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(75 + (DAYS - 1) * 0.25, cursor.getDouble(0));
+        cursor.close();
+    }
+
+    // Writes through the provider have to reach the next read
+    public void testWritesInvalidate() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, mToday);
+        assertEquals(75.0, readMaxTemp(uri));
+
+        mProvider.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(80));
+        assertEquals(80.0, readMaxTemp(uri));
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 85);
+        mProvider.update(WeatherEntry.CONTENT_URI, values, null, null);
+        assertEquals(85.0, readMaxTemp(uri));
+
+        values = new ContentValues();
+        values.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mProvider.update(LocationEntry.CONTENT_URI, values, null, null);
+        Cursor cursor = mProvider.query(uri, new String[]{LocationEntry.COLUMN_CITY_NAME},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Santa's Village", cursor.getString(0));
+        cursor.close();
+
+        mProvider.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mToday)});
+        cursor = mProvider.query(uri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testFormatDouble() {
+        assertEquals("75", ForecastCursor.formatDouble(75));
+        assertEquals("1.1", ForecastCursor.formatDouble(1.1));
+        assertEquals("-147.353", ForecastCursor.formatDouble(-147.353));
+        assertEquals("64.7488", ForecastCursor.formatDouble(64.7488));
+        assertEquals("1.23457", ForecastCursor.formatDouble(1.234567));
+        assertEquals("0.0001", ForecastCursor.formatDouble(0.0001));
+        assertEquals("1e-05", ForecastCursor.formatDouble(0.00001));
+        assertEquals("1.5e+06", ForecastCursor.formatDouble(1500000));
+        assertEquals("0", ForecastCursor.formatDouble(0));
+    }
+
+    private void assertSameRows(Uri uri, String[] projection, String sortOrder, int count) {
+        Cursor stored = mProvider.query(uri, projection, null, null, sortOrder);
+        assertTrue("Error: " + uri + " wasn't read from the forecast cache",
+                stored instanceof ForecastCursor);
+
+        // The same query through SQLite; without a start date, every date is on or after 0
+        boolean oneDay = uri.getPathSegments().size() > 2;
+        Cursor sqlite = mProvider.queryWeatherByLocationSetting(projection,
+                oneDay ? WeatherProvider.sLocationSettingAndDaySelection
+                        : WeatherProvider.sLocationSettingWithStartDateSelection,
+                new String[]{WeatherEntry.getLocationSettingFromUri(uri), Long.toString(oneDay
+                        ? WeatherEntry.getDateFromUri(uri)
+                        : WeatherEntry.getStartDateFromUri(uri))},
+                sortOrder);
+
+        assertEquals("Error: " + uri + " has other columns in the cache",
+                sqlite.getColumnCount(), stored.getColumnCount());
+        for (int column = 0; column < sqlite.getColumnCount(); column++) {
+            assertEquals(sqlite.getColumnName(column), stored.getColumnName(column));
+        }
+        assertEquals("Error: " + uri + " has other rows in the cache", count, stored.getCount());
+        assertEquals(count, sqlite.getCount());
+        while (sqlite.moveToNext()) {
+            assertTrue(stored.moveToNext());
+            for (int column = 0; column < sqlite.getColumnCount(); column++) {
+                assertEquals(sqlite.getType(column), stored.getType(column));
+                assertEquals(sqlite.getString(column), stored.getString(column));
+                assertEquals(sqlite.getDouble(column), stored.getDouble(column));
+            }
+        }
+        sqlite.close();
+        stored.close();
+    }
+
+    private double readMaxTemp(Uri uri) {
+        Cursor cursor = mProvider.query(uri, new String[]{WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(0);
+        cursor.close();
+        return maxTemp;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    The forecast list and detail queries with 50 locations of 14 days stored: read from the
+    weather joined to the location, as before the forecast list table, and from that table.
+    The numbers go to the log; the assertions check both give the same rows.
+ */
+public class TestForecastListBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastListBenchmark.class.getSimpleName();
+
+    private static final int LOCATION_COUNT = 50;
+    private static final int DAYS = 14;
+    private static final int QUERY_COUNT = 1000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    //weather INNER JOIN location ON weather.location_id = location._id
+    private static final String JOINED_TABLES = WeatherEntry.TABLE_NAME + " INNER JOIN " +
+            LocationEntry.TABLE_NAME + " ON " +
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting(i));
+            long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, locationValues));
+
+            ContentValues[] values = new ContentValues[DAYS];
+            long date = TestUtilities.TEST_DATE;
+            for (int day = 0; day < DAYS; day++, date += DAY_IN_MILLIS) {
+                values[day] = TestUtilities.createWeatherValues(locationRowId);
+                values[day].put(WeatherEntry.COLUMN_DATE, date);
+            }
+            assertEquals(DAYS, mContext.getContentResolver().bulkInsert(
+                    WeatherEntry.CONTENT_URI, values));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private static String locationSetting(int index) {
+        return TestUtilities.TEST_LOCATION + "-" + index;
+    }
+
+    public void testForecastList() {
+        compare("forecast list", FORECAST_COLUMNS,
+                WeatherProvider.sLocationSettingWithStartDateSelection, SORT_ORDER, DAYS);
+    }
+
+    public void testDetail() {
+        compare("detail", FORECAST_COLUMNS, WeatherProvider.sLocationSettingAndDaySelection,
+                null, 1);
+    }
+
+    private void compare(String name, String[] columns, String selection, String sortOrder,
+                         int expectedRows) {
+        String joinedSql = SQLiteQueryBuilder.buildQueryString(false, JOINED_TABLES, columns,
+                selection.replace(LocationEntry.COLUMN_LOCATION_SETTING,
+                        LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING),
+                null, null, sortOrder, null);
+        String listSql = SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.getWeatherByLocationSettingTables(), columns, selection,
+                null, null, sortOrder, null);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        long date = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+
+        // Once each first, so both measure prepared statements, and give the same rows
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            String[] args = {locationSetting(i), Long.toString(date)};
+            assertEquals("Error: the " + name + " tables differ for " + args[0],
+                    readAll(db.rawQuery(joinedSql, args)), readAll(db.rawQuery(listSql, args)));
+        }
+
+        long joinedMillis = time(db, joinedSql, date, expectedRows);
+        long listMillis = time(db, listSql, date, expectedRows);
+        dbHelper.close();
+
+        Log.i(LOG_TAG, name + ", " + QUERY_COUNT + " queries over " + LOCATION_COUNT +
+                " locations: joined " + joinedMillis + " ms, forecast list table " +
+                listMillis + " ms");
+    }
+
+    private static long time(SQLiteDatabase db, String sql, long date, int expectedRows) {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Cursor cursor = db.rawQuery(sql, new String[]{
+                    locationSetting(i % LOCATION_COUNT), Long.toString(date)});
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                count++;
+            }
+            cursor.close();
+            assertEquals(expectedRows, count);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    // Every row of the cursor, one value after another, and closes it
+    private static String readAll(Cursor cursor) {
+        StringBuilder rows = new StringBuilder();
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < cursor.getColumnCount(); column++) {
+                rows.append(cursor.getString(column)).append(',');
+            }
+            rows.append('\n');
+        }
+        cursor.close();
+        return rows.toString();
+    }
+}
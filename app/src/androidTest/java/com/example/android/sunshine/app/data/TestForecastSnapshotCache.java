@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestForecastSnapshotCache extends AndroidTestCase {
+
+    private static final int DAYS = 14;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final String OTHER_LOCATION = "94043";
+
+    private ContentResolver mResolver;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+        mLocationRowId = ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(mLocationRowId, 75));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private static ContentValues[] createWeatherValues(long locationRowId, double maxTemp) {
+        ContentValues[] values = new ContentValues[DAYS];
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < DAYS; i++, date += DAY_IN_MILLIS) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, date);
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        }
+        return values;
+    }
+
+    public void testSnapshot() {
+        ForecastSnapshotCache cache = new ForecastSnapshotCache();
+        ForecastSnapshot forecast = cache.get(mResolver, TestUtilities.TEST_LOCATION);
+        assertEquals(DAYS, forecast.size());
+        assertEquals(TestUtilities.TEST_LOCATION, forecast.getLocationSetting());
+
+        ContentValues expected = TestUtilities.createWeatherValues(mLocationRowId);
+        long today = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        int first = forecast.indexOfFirstDayFrom(TestUtilities.TEST_DATE);
+        assertEquals(0, first);
+        assertEquals(first, forecast.indexOfDay(TestUtilities.TEST_DATE));
+        assertEquals(today, forecast.getDate(first));
+        assertEquals(expected.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID).intValue(),
+                forecast.getWeatherId(first));
+        assertEquals(expected.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                forecast.getShortDesc(first));
+        assertEquals(75.0, forecast.getMaxTemp(first));
+        assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                forecast.getMinTemp(first));
+        for (int i = 1; i < DAYS; i++) {
+            assertTrue(forecast.getDate(i) > forecast.getDate(i - 1));
+        }
+
+        // Past the last day there is nothing to show
+        long afterLast = forecast.getDate(DAYS - 1) + DAY_IN_MILLIS;
+        assertEquals(-1, forecast.indexOfFirstDayFrom(afterLast));
+        assertEquals(-1, forecast.indexOfDay(afterLast));
+    }
+
+    public void testHitRate() {
+        ForecastSnapshotCache cache = new ForecastSnapshotCache();
+        assertEquals(0f, cache.getHitRate());
+
+        ForecastSnapshot forecast = cache.get(mResolver, TestUtilities.TEST_LOCATION);
+        for (int i = 0; i < 3; i++) {
+            assertSame("Error: a cached snapshot should be shared", forecast,
+                    cache.get(mResolver, TestUtilities.TEST_LOCATION));
+        }
+        assertEquals(0.75f, cache.getHitRate());
+        assertEquals(1, cache.size());
+    }
+
+    // A setting without days isn't kept, so asking for mistyped ones can't fill the cache
+    public void testMissesNotCached() {
+        ForecastSnapshotCache cache = new ForecastSnapshotCache();
+        for (int i = 0; i < 3; i++) {
+            ForecastSnapshot forecast = cache.get(mResolver, "no such location " + i);
+            assertEquals(0, forecast.size());
+        }
+        assertEquals(0, cache.size());
+    }
+
+    // Only the most recently read locations are kept
+    public void testBounded() {
+        ForecastSnapshotCache cache = new ForecastSnapshotCache();
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        for (int i = 0; i <= ForecastSnapshotCache.MAX_LOCATIONS; i++) {
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "location " + i);
+            long rowId = ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI, location));
+            mResolver.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(rowId, 75));
+        }
+        for (int i = 0; i <= ForecastSnapshotCache.MAX_LOCATIONS; i++) {
+            assertEquals(DAYS, cache.get(mResolver, "location " + i).size());
+        }
+        assertEquals(ForecastSnapshotCache.MAX_LOCATIONS, cache.size());
+    }
+
+    // Writes through the provider have to drop the snapshots of the process-wide cache
+    public void testWritesInvalidate() {
+        ForecastSnapshotCache cache = ForecastSnapshotCache.getInstance();
+        cache.invalidate();
+        ForecastSnapshot forecast = cache.get(mResolver, TestUtilities.TEST_LOCATION);
+        assertEquals(75.0, forecast.getMaxTemp(0));
+
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(mLocationRowId, 80));
+        assertEquals(0, cache.size());
+        forecast = cache.get(mResolver, TestUtilities.TEST_LOCATION);
+        assertEquals("Error: the snapshot should show the new forecast", 80.0,
+                forecast.getMaxTemp(0));
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertEquals(0, cache.get(mResolver, TestUtilities.TEST_LOCATION).size());
+    }
+
+    // Replacing the forecast drops only the locations it changed
+    public void testReplaceInvalidatesChangedLocations() {
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        long otherRowId = ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI,
+                otherLocation));
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(otherRowId, 75));
+
+        ForecastSnapshotCache cache = ForecastSnapshotCache.getInstance();
+        cache.invalidate();
+        cache.get(mResolver, TestUtilities.TEST_LOCATION);
+        ForecastSnapshot other = cache.get(mResolver, OTHER_LOCATION);
+
+        mResolver.bulkInsert(WeatherEntry.buildWeatherReplaceUri(0),
+                createWeatherValues(mLocationRowId, 80));
+        assertEquals(80.0, cache.get(mResolver, TestUtilities.TEST_LOCATION).getMaxTemp(0));
+        assertSame("Error: an unchanged location should keep its snapshot", other,
+                cache.get(mResolver, OTHER_LOCATION));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Calendar;
+
+public class TestHistory extends AndroidTestCase {
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String[] HISTORY_COLUMNS = {
+            HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_DATE,
+            HistoryEntry.COLUMN_LAST_DATE,
+            HistoryEntry.COLUMN_PERIOD,
+            HistoryEntry.COLUMN_DAY_COUNT,
+            HistoryEntry.COLUMN_MAX_TEMP
+    };
+    private static final int COL_DATE = 0;
+    private static final int COL_LAST_DATE = 1;
+    private static final int COL_PERIOD = 2;
+    private static final int COL_DAY_COUNT = 3;
+    private static final int COL_MAX_TEMP = 4;
+
+    private WeatherProvider mProvider;
+    private WeatherDbHelper mDbHelper;
+    private long mLocationRowId;
+    // June 17th, 2015 at noon, local time
+    private long mNow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new WeatherProvider();
+        mProvider.attachInfo(mContext, null);
+        mProvider.delete(WeatherEntry.CONTENT_URI, null, null);
+        mProvider.delete(HistoryEntry.CONTENT_URI, null, null);
+        mProvider.delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper = new WeatherDbHelper(mContext);
+
+        mLocationRowId = ContentUris.parseId(mProvider.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2015, Calendar.JUNE, 17, 12, 0);
+        mNow = calendar.getTimeInMillis();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.delete(WeatherEntry.CONTENT_URI, null, null);
+        mProvider.delete(HistoryEntry.CONTENT_URI, null, null);
+        mProvider.delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper.close();
+        mProvider.shutdown();
+        super.tearDown();
+    }
+
+    // The local midnight the given number of days before today
+    private long daysAgo(int days) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(mNow);
+        calendar.add(Calendar.DAY_OF_MONTH, -days);
+        return WeatherContract.normalizeDate(calendar.getTimeInMillis());
+    }
+
+    // The days the replace mode prunes move to the history table, as they were
+    public void testReplaceArchivesPrunedDays() {
+        ContentValues[] values = new ContentValues[5];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = TestUtilities.createWeatherValues(mLocationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, daysAgo(2 - i));
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, 70 + i);
+        }
+        mProvider.bulkInsert(WeatherEntry.CONTENT_URI, values);
+        mProvider.bulkInsert(WeatherEntry.buildWeatherReplaceUri(daysAgo(1)), values);
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        assertEquals(3, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME));
+
+        Cursor cursor = mProvider.query(HistoryEntry.buildHistoryLocationWithDate(
+                TestUtilities.TEST_LOCATION, daysAgo(1)), HISTORY_COLUMNS, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getCount());
+        assertEquals(daysAgo(1), cursor.getLong(COL_DATE));
+        assertEquals(daysAgo(1), cursor.getLong(COL_LAST_DATE));
+        assertEquals(HistoryEntry.PERIOD_DAY, cursor.getInt(COL_PERIOD));
+        assertEquals(1, cursor.getInt(COL_DAY_COUNT));
+        assertEquals(71.0, cursor.getDouble(COL_MAX_TEMP));
+        cursor.close();
+
+        cursor = mProvider.query(HistoryEntry.buildHistoryLocationWithRange(
+                TestUtilities.TEST_LOCATION, daysAgo(10), daysAgo(0)), HISTORY_COLUMNS,
+                null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(daysAgo(2), cursor.getLong(COL_DATE));
+        assertTrue(cursor.moveToNext());
+        assertEquals(daysAgo(1), cursor.getLong(COL_DATE));
+        cursor.close();
+    }
+
+    /*
+        Five years of days come out as a year of days, two of weeks and two of months, with
+        every day counted once and nothing covered twice.
+     */
+    public void testCompactRollsUp() {
+        int days = 5 * 365;
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = days; i >= 1; i--) {
+                insertDay(db, mLocationRowId, daysAgo(i), i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        int removed = mProvider.delete(HistoryEntry.buildCompactUri(mNow), null, null);
+        long rows = DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME);
+        assertEquals(days - removed, rows);
+        assertTrue("Error: " + rows + " rows left of " + days + " days",
+                rows < HistoryArchive.DAILY_DAYS + 7 + 2 * 53 + 2 * 12 + 2);
+        assertEquals(days, DatabaseUtils.longForQuery(db,
+                "SELECT SUM(" + HistoryEntry.COLUMN_DAY_COUNT + ") FROM " +
+                        HistoryEntry.TABLE_NAME, null));
+
+        // Nothing covered twice
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                HistoryEntry.TABLE_NAME + " a, " + HistoryEntry.TABLE_NAME + " b WHERE " +
+                "a._id != b._id AND a.date <= b.last_date AND b.date <= a.last_date", null));
+        // Every week left is whole, as the data has no gaps
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_PERIOD + " = ? AND " + HistoryEntry.COLUMN_DAY_COUNT + " != 7",
+                new String[]{Integer.toString(HistoryEntry.PERIOD_WEEK)}));
+
+        // The aggregates keep the extremes and the weighted means of the days
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT MIN(" +
+                HistoryEntry.COLUMN_MIN_TEMP + ") FROM " + HistoryEntry.TABLE_NAME, null));
+        assertEquals(29, DatabaseUtils.longForQuery(db, "SELECT MAX(" +
+                HistoryEntry.COLUMN_MAX_TEMP + ") FROM " + HistoryEntry.TABLE_NAME, null));
+        Cursor cursor = db.rawQuery("SELECT SUM(" + HistoryEntry.COLUMN_WIND_SPEED + " * " +
+                HistoryEntry.COLUMN_DAY_COUNT + ") FROM " + HistoryEntry.TABLE_NAME, null);
+        assertTrue(cursor.moveToFirst());
+        double windSum = 0;
+        for (int i = days; i >= 1; i--) {
+            windSum += i % 2;
+        }
+        assertEquals(windSum, cursor.getDouble(0), 1e-6);
+        cursor.close();
+
+        // A day, a week and a month, as they age
+        assertCovered(daysAgo(365), HistoryEntry.PERIOD_DAY);
+        assertCovered(daysAgo(2 * 365), HistoryEntry.PERIOD_WEEK);
+        assertCovered(daysAgo(4 * 365), HistoryEntry.PERIOD_MONTH);
+
+        // Only whole weeks and months were rolled, so nothing is left to do today
+        assertEquals(0, mProvider.delete(HistoryEntry.buildCompactUri(mNow), null, null));
+    }
+
+    // Months past the limit and the history of deleted locations go
+    public void testCompactDropsOld() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int oldest = HistoryArchive.MONTHLY_DAYS + 200;
+        db.beginTransaction();
+        try {
+            for (int i = oldest; i > HistoryArchive.MONTHLY_DAYS - 200; i--) {
+                insertDay(db, mLocationRowId, daysAgo(i), i);
+            }
+            insertDay(db, mLocationRowId + 1, daysAgo(1), 1);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mProvider.delete(HistoryEntry.buildCompactUri(mNow), null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_LAST_DATE + " < ?",
+                new String[]{Long.toString(daysAgo(HistoryArchive.MONTHLY_DAYS))}));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_LOC_KEY + " != ?",
+                new String[]{Long.toString(mLocationRowId)}));
+        assertTrue(DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME) > 0);
+    }
+
+    /*
+        A range of a location's history has to be one range of the history table's index,
+        found through the location's, and come out in date order without a sort.
+     */
+    public void testRangeUsesIndex() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.getHistoryByLocationSettingTables(), HISTORY_COLUMNS,
+                WeatherProvider.sHistoryLocationSettingWithRangeSelection, null, null,
+                HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_DATE + " ASC", null);
+        Cursor cursor = mDbHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql,
+                WeatherProvider.getHistoryRangeArgs(TestUtilities.TEST_LOCATION,
+                        daysAgo(30), daysAgo(0)));
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+
+        assertTrue("Error: the range isn't read from the history index: " + plan,
+                plan.toString().contains("sqlite_autoindex_" + HistoryEntry.TABLE_NAME));
+        assertFalse("Error: the range is sorted after it's read: " + plan,
+                plan.toString().contains("TEMP B-TREE"));
+    }
+
+    // Asserts the one row covering the date is of the period
+    private void assertCovered(long date, int period) {
+        Uri uri = HistoryEntry.buildHistoryLocationWithDate(TestUtilities.TEST_LOCATION, date);
+        Cursor cursor = mProvider.query(uri, HISTORY_COLUMNS, null, null, null);
+        assertEquals("Error: " + uri + " isn't covered once", 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(period, cursor.getInt(COL_PERIOD));
+        assertTrue(cursor.getLong(COL_DATE) <= date);
+        assertTrue(cursor.getLong(COL_LAST_DATE) >= date);
+        cursor.close();
+    }
+
+    // An archived day, its values made from the number of days ago it was
+    static void insertDay(SQLiteDatabase db, long locationRowId, long date, int daysAgo) {
+        ContentValues values = new ContentValues();
+        values.put(HistoryEntry.COLUMN_LOC_KEY, locationRowId);
+        values.put(HistoryEntry.COLUMN_DATE, date);
+        values.put(HistoryEntry.COLUMN_LAST_DATE, date);
+        values.put(HistoryEntry.COLUMN_PERIOD, HistoryEntry.PERIOD_DAY);
+        values.put(HistoryEntry.COLUMN_DAY_COUNT, 1);
+        values.put(HistoryEntry.COLUMN_WEATHER_ID, daysAgo % 3 == 0 ? 500 : 800);
+        values.put(HistoryEntry.COLUMN_MIN_TEMP, daysAgo % 10);
+        values.put(HistoryEntry.COLUMN_MAX_TEMP, 20 + daysAgo % 10);
+        values.put(HistoryEntry.COLUMN_HUMIDITY, 50);
+        values.put(HistoryEntry.COLUMN_PRESSURE, 1000);
+        values.put(HistoryEntry.COLUMN_WIND_SPEED, daysAgo % 2);
+        assertTrue(db.insert(HistoryEntry.TABLE_NAME, null, values) != -1);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Calendar;
+
+/*
+    The history of 24 locations over 5 years: how long compacting it takes, how many rows it
+    leaves, and how fast this day last year and a month two years ago are read from it.  The
+    numbers go to the log; the assertions check the queries find what they should.
+ */
+public class TestHistoryBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHistoryBenchmark.class.getSimpleName();
+
+    private static final int LOCATION_COUNT = 24;
+    private static final int DAYS = 5 * 365;
+    private static final int QUERY_COUNT = 1000;
+
+    //INSERT INTO history (location_id, date, last_date, period, day_count, weather_id, min, max, humidity, pressure, wind) VALUES (?, ?, ?, 0, 1, ?, ?, ?, ?, ?, ?)
+    private static final String INSERT_DAY_SQL = "INSERT INTO " + HistoryEntry.TABLE_NAME + " (" +
+            HistoryEntry.COLUMN_LOC_KEY + ", " +
+            HistoryEntry.COLUMN_DATE + ", " +
+            HistoryEntry.COLUMN_LAST_DATE + ", " +
+            HistoryEntry.COLUMN_PERIOD + ", " +
+            HistoryEntry.COLUMN_DAY_COUNT + ", " +
+            HistoryEntry.COLUMN_WEATHER_ID + ", " +
+            HistoryEntry.COLUMN_MIN_TEMP + ", " +
+            HistoryEntry.COLUMN_MAX_TEMP + ", " +
+            HistoryEntry.COLUMN_HUMIDITY + ", " +
+            HistoryEntry.COLUMN_PRESSURE + ", " +
+            HistoryEntry.COLUMN_WIND_SPEED + ") VALUES (?, ?, ?, " +
+            HistoryEntry.PERIOD_DAY + ", 1, ?, ?, ?, ?, ?, ?)";
+
+    private static final String[] HISTORY_COLUMNS = {
+            HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_DATE,
+            HistoryEntry.COLUMN_PERIOD,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_WEATHER_ID
+    };
+
+    private WeatherDbHelper mDbHelper;
+    // The local midnight of every day archived, oldest first
+    private long[] mDates;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HistoryEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper = new WeatherDbHelper(mContext);
+
+        mDates = new long[DAYS];
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_MONTH, -DAYS);
+        for (int day = 0; day < DAYS; day++) {
+            mDates[day] = WeatherContract.normalizeDate(calendar.getTimeInMillis());
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        long[] locationRowIds = new long[LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting(i));
+            locationRowIds[i] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, locationValues));
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_DAY_SQL);
+        try {
+            for (long locationRowId : locationRowIds) {
+                for (int day = 0; day < DAYS; day++) {
+                    insert.bindLong(1, locationRowId);
+                    insert.bindLong(2, mDates[day]);
+                    insert.bindLong(3, mDates[day]);
+                    insert.bindLong(4, day % 7 == 0 ? 500 : 800);
+                    insert.bindDouble(5, 5 + day % 11);
+                    insert.bindDouble(6, 15 + day % 13);
+                    insert.bindDouble(7, 60 + day % 30);
+                    insert.bindDouble(8, 1000 + day % 20);
+                    insert.bindDouble(9, day % 9);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(HistoryEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    private static String locationSetting(int index) {
+        return TestUtilities.TEST_LOCATION + "-" + index;
+    }
+
+    public void testCompactAndQuery() {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        long start = System.nanoTime();
+        int removed = mContext.getContentResolver().delete(
+                HistoryEntry.buildCompactUri(System.currentTimeMillis()), null, null);
+        long compactMillis = (System.nanoTime() - start) / 1000000;
+        long rows = DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME);
+        assertEquals((long) LOCATION_COUNT * DAYS - removed, rows);
+
+        String sql = SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.getHistoryByLocationSettingTables(), HISTORY_COLUMNS,
+                WeatherProvider.sHistoryLocationSettingWithRangeSelection, null, null,
+                HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_DATE + " ASC", null);
+        // This day last year is still a day; a month two years ago is four or five weeks
+        long lastYear = mDates[DAYS - 365];
+        long twoYearsAgo = mDates[DAYS - 2 * 365];
+        long dayMillis = time(db, sql, lastYear, lastYear, 1);
+        long monthMillis = time(db, sql, twoYearsAgo, mDates[DAYS - 2 * 365 + 29], -1);
+
+        Log.i(LOG_TAG, LOCATION_COUNT + " locations of " + DAYS + " days compacted to " +
+                rows + " rows in " + compactMillis + " ms; " + QUERY_COUNT +
+                " queries of this day last year " + dayMillis + " ms, of a month two years ago " +
+                monthMillis + " ms");
+    }
+
+    // Runs the range query over every location in turn, checking how many rows each gives,
+    // or that it gives some when expectedRows is -1
+    private static long time(SQLiteDatabase db, String sql, long startDate, long endDate,
+                             int expectedRows) {
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Cursor cursor = db.rawQuery(sql, WeatherProvider.getHistoryRangeArgs(
+                    locationSetting(i % LOCATION_COUNT), startDate, endDate));
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getDouble(3);
+                count++;
+            }
+            cursor.close();
+            if (expectedRows == -1) {
+                assertTrue(count > 0);
+            } else {
+                assertEquals(expectedRows, count);
+            }
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
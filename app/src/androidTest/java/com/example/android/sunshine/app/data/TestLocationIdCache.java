@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class TestLocationIdCache extends AndroidTestCase {
+
+    private static final int LOCATION_COUNT = 20;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        mResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private static List<ContentValues> createLocations(int count) {
+        List<ContentValues> locations = new ArrayList<ContentValues>(count);
+        for (int i = 0; i < count; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "location " + i);
+            locations.add(location);
+        }
+        return locations;
+    }
+
+    // The bulk insert adds only the settings that aren't there, in one call
+    public void testBulkInsertMissingLocations() {
+        long existingId = ContentUris.parseId(mResolver.insert(LocationEntry.CONTENT_URI,
+                createLocations(1).get(0)));
+
+        List<ContentValues> locations = createLocations(LOCATION_COUNT);
+        int insertCount = mResolver.bulkInsert(LocationEntry.CONTENT_URI,
+                locations.toArray(new ContentValues[LOCATION_COUNT]));
+        assertEquals(LOCATION_COUNT - 1, insertCount);
+
+        Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{"location 0"},
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: an existing location should keep its row", existingId,
+                cursor.getLong(0));
+        cursor.close();
+
+        assertEquals("Error: inserting the same locations again should add nothing", 0,
+                mResolver.bulkInsert(LocationEntry.CONTENT_URI,
+                        locations.toArray(new ContentValues[LOCATION_COUNT])));
+    }
+
+    public void testResolve() {
+        LocationIdCache cache = new LocationIdCache();
+        List<ContentValues> locations = createLocations(LOCATION_COUNT);
+
+        Map<String, Long> ids = cache.resolve(mResolver, locations);
+        assertEquals(LOCATION_COUNT, ids.size());
+        assertEquals(LOCATION_COUNT, cache.size());
+        for (ContentValues location : locations) {
+            String setting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+            Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI,
+                    new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                    LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(ids.get(setting))},
+                    null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(setting, cursor.getString(0));
+            cursor.close();
+        }
+
+        // A second resolve is answered from the cache, with the same ids
+        assertEquals(ids, cache.resolve(mResolver, locations));
+    }
+
+    // A new location reads back its own row, not the whole table again
+    public void testResolveReadsOnlyNewLocations() {
+        LocationIdCache cache = new LocationIdCache();
+        List<ContentValues> locations = createLocations(3);
+        cache.resolve(mResolver, locations.subList(0, 1));
+        assertEquals(1, cache.size());
+
+        // Added behind the cache's back, and not asked for
+        mResolver.insert(LocationEntry.CONTENT_URI, locations.get(2));
+
+        Map<String, Long> ids = cache.resolve(mResolver, locations.subList(1, 2));
+        assertNotNull(ids.get("location 1"));
+        assertEquals("Error: only the inserted location should have been read", 2, cache.size());
+    }
+
+    // Deleting locations through the provider has to drop the ids the process-wide cache holds
+    public void testDeleteInvalidates() {
+        LocationIdCache cache = LocationIdCache.getInstance();
+        List<ContentValues> locations = createLocations(1);
+        cache.resolve(mResolver, locations);
+        assertTrue(cache.size() > 0);
+
+        mResolver.delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals(0, cache.size());
+
+        // Resolving again has to add the row back rather than trust a stale id
+        long id = cache.resolve(mResolver, locations).get("location 0");
+        Cursor cursor = mResolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(id, cursor.getLong(0));
+        cursor.close();
+    }
+}
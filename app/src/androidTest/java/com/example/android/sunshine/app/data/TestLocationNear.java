@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/*
+    The near queries over 10 000 stored locations: that they find what reading every location
+    finds, through the geohash index, and how fast, against reading every location.  The
+    numbers go to the log.
+ */
+public class TestLocationNear extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationNear.class.getSimpleName();
+
+    private static final int LOCATION_COUNT = 10000;
+    private static final int CHECK_COUNT = 200;
+    private static final int QUERY_COUNT = 1000;
+    private static final double RADIUS_KM = 250;
+
+    private static final String[] NEAR_PROJECTION = {
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_DISTANCE
+    };
+
+    private WeatherDbHelper mDbHelper;
+    // The coordinates of the location whose setting ends in each index
+    private double[] mLats;
+    private double[] mLongs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HistoryEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper = new WeatherDbHelper(mContext);
+
+        // Spread evenly over the globe, the same on every run
+        Random random = new Random(42);
+        mLats = new double[LOCATION_COUNT];
+        mLongs = new double[LOCATION_COUNT];
+        ContentValues[] values = new ContentValues[LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            mLats[i] = randomLat(random);
+            mLongs[i] = randomLong(random);
+            values[i] = new ContentValues();
+            values[i].put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting(i));
+            values[i].put(LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            values[i].put(LocationEntry.COLUMN_COORD_LAT, mLats[i]);
+            values[i].put(LocationEntry.COLUMN_COORD_LONG, mLongs[i]);
+        }
+        assertEquals(LOCATION_COUNT,
+                mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI, values));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    private static String locationSetting(int index) {
+        return TestUtilities.TEST_LOCATION + "-" + index;
+    }
+
+    private static double randomLat(Random random) {
+        return Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+    }
+
+    private static double randomLong(Random random) {
+        return 360 * random.nextDouble() - 180;
+    }
+
+    /*
+        Inserting and moving a location keeps its geohash, moved on one axis or both.
+     */
+    public void testGeohashKept() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, values));
+        assertGeohash(locationRowId, 64.7488, -147.353);
+
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, -33.87);
+        assertEquals(1, mContext.getContentResolver().update(LocationEntry.CONTENT_URI, moved,
+                LocationEntry.COLUMN_COORD_LAT + " = ?", new String[]{"64.7488"}));
+        assertGeohash(locationRowId, -33.87, -147.353);
+
+        moved.put(LocationEntry.COLUMN_COORD_LONG, 151.21);
+        assertEquals(1, mContext.getContentResolver().update(LocationEntry.CONTENT_URI, moved,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)}));
+        assertGeohash(locationRowId, -33.87, 151.21);
+    }
+
+    private void assertGeohash(long locationRowId, double lat, double lon) {
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_GEOHASH}, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Geohash.encode(lat, lon), cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+        The nearest location, and every one within the radius in order, have to be the ones
+        measuring the distance to every location finds, anywhere on the globe.
+     */
+    public void testNearMatchesFullScan() {
+        Random random = new Random(7);
+        for (int i = 0; i < CHECK_COUNT; i++) {
+            double lat = randomLat(random);
+            double lon = randomLong(random);
+            // A pole and the date line each time round too
+            if (i == 0) {
+                lat = 89.9;
+            } else if (i == 1) {
+                lon = 179.99;
+            }
+
+            Cursor cursor = mContext.getContentResolver().query(
+                    LocationEntry.buildNearestUri(lat, lon), NEAR_PROJECTION, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Error: not the nearest location to " + lat + "," + lon,
+                    locationSetting(nearest(lat, lon)), cursor.getString(0));
+            cursor.close();
+
+            cursor = mContext.getContentResolver().query(
+                    LocationEntry.buildNearUri(lat, lon, RADIUS_KM), NEAR_PROJECTION, null, null,
+                    null);
+            List<String> found = new ArrayList<String>();
+            double lastDistance = 0;
+            while (cursor.moveToNext()) {
+                found.add(cursor.getString(0));
+                assertTrue("Error: the locations aren't nearest first",
+                        cursor.getDouble(1) >= lastDistance);
+                lastDistance = cursor.getDouble(1);
+            }
+            cursor.close();
+            assertEquals("Error: not the locations within " + RADIUS_KM + " km of " + lat + "," +
+                    lon, within(lat, lon, RADIUS_KM), found);
+        }
+    }
+
+    private int nearest(double lat, double lon) {
+        int nearest = -1;
+        double nearestKm = Double.MAX_VALUE;
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            double distanceKm = Geohash.distanceKm(lat, lon, mLats[i], mLongs[i]);
+            if (distanceKm < nearestKm) {
+                nearest = i;
+                nearestKm = distanceKm;
+            }
+        }
+        return nearest;
+    }
+
+    // The settings of the locations within the distance, nearest first
+    private List<String> within(double lat, double lon, double radiusKm) {
+        List<double[]> distances = new ArrayList<double[]>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            double distanceKm = Geohash.distanceKm(lat, lon, mLats[i], mLongs[i]);
+            if (distanceKm <= radiusKm) {
+                distances.add(new double[]{distanceKm, i});
+            }
+        }
+        double[][] sorted = distances.toArray(new double[distances.size()][]);
+        Arrays.sort(sorted, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        List<String> settings = new ArrayList<String>();
+        for (double[] distance : sorted) {
+            settings.add(locationSetting((int) distance[1]));
+        }
+        return settings;
+    }
+
+    /*
+        The cells of a search have to be ranges of the geohash index, not a scan of the table.
+     */
+    public void testNearUsesIndex() {
+        List<String> cells = Geohash.coverCells(51.5, -0.12, RADIUS_KM);
+        String sql = "EXPLAIN QUERY PLAN SELECT * FROM " + LocationEntry.TABLE_NAME + " WHERE " +
+                WeatherProvider.buildGeohashSelection(cells.size());
+        Cursor cursor = mDbHelper.getReadableDatabase().rawQuery(sql,
+                WeatherProvider.buildGeohashArgs(cells));
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+
+        assertTrue("Error: the cells aren't read from the geohash index: " + plan,
+                plan.toString().contains(LocationEntry.TABLE_NAME + "_" +
+                        LocationEntry.COLUMN_GEOHASH));
+        assertFalse("Error: the search scans the location table: " + plan,
+                plan.toString().contains("SCAN"));
+    }
+
+    /*
+        The nearest location and the locations within the radius of QUERY_COUNT points, through
+        the provider, against reading every location and measuring each.
+     */
+    public void testNearBenchmark() {
+        Random random = new Random(11);
+        double[] lats = new double[QUERY_COUNT];
+        double[] longs = new double[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            lats[i] = randomLat(random);
+            longs[i] = randomLong(random);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            assertEquals(1, readAll(LocationEntry.buildNearestUri(lats[i], longs[i])));
+        }
+        long nearestMicros = (System.nanoTime() - start) / 1000 / QUERY_COUNT;
+
+        start = System.nanoTime();
+        int withinCount = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            withinCount += readAll(LocationEntry.buildNearUri(lats[i], longs[i], RADIUS_KM));
+        }
+        long withinMicros = (System.nanoTime() - start) / 1000 / QUERY_COUNT;
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME, new String[]{
+                    LocationEntry.COLUMN_LOCATION_SETTING,
+                    LocationEntry.COLUMN_COORD_LAT,
+                    LocationEntry.COLUMN_COORD_LONG}, null, null, null, null, null);
+            String nearest = null;
+            double nearestKm = Double.MAX_VALUE;
+            while (cursor.moveToNext()) {
+                double distanceKm = Geohash.distanceKm(lats[i], longs[i], cursor.getDouble(1),
+                        cursor.getDouble(2));
+                if (distanceKm < nearestKm) {
+                    nearest = cursor.getString(0);
+                    nearestKm = distanceKm;
+                }
+            }
+            cursor.close();
+            assertNotNull(nearest);
+        }
+        long scanMicros = (System.nanoTime() - start) / 1000 / QUERY_COUNT;
+
+        Log.i(LOG_TAG, LOCATION_COUNT + " locations, " + QUERY_COUNT + " queries: nearest " +
+                nearestMicros + " us, within " + RADIUS_KM + " km " + withinMicros + " us (" +
+                withinCount / QUERY_COUNT + " locations each), full scan " + scanMicros +
+                " us per query");
+    }
+
+    private int readAll(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, NEAR_PROJECTION, null, null,
+                null);
+        int count = 0;
+        while (cursor.moveToNext()) {
+            cursor.getDouble(1);
+            count++;
+        }
+        cursor.close();
+        return count;
+    }
+}
@@ -27,9 +27,16 @@ import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,11 +63,21 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                SyncMetricsEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +177,13 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(
+                HourlyEntry.buildHourlyLocation(testLocation));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/hourly
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
     }
 
 
@@ -423,6 +447,7 @@ public class TestProvider extends AndroidTestCase {
 
 
     static private final int BULK_INSERT_RECORDS_TO_INSERT = 10;
+    static private final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     static ContentValues[] createBulkInsertWeatherValues(long locationRowId) {
         long currentTestDate = TestUtilities.TEST_DATE;
         long millisecondsInADay = 1000*60*60*24;
@@ -512,4 +537,493 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Writing the same forecast twice through the diff uri should change nothing, not even the
+    // row ids, and a changed day should be updated in place.
+    public void testBulkInsertDiff() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        Uri diffUri = WeatherEntry.buildWeatherDiffUri();
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        int writtenCount = mContext.getContentResolver().bulkInsert(diffUri,
+                createBulkInsertWeatherValues(locationRowId));
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, writtenCount);
+        long[] ids = queryWeatherIds();
+
+        // The same forecast again
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        writtenCount = mContext.getContentResolver().bulkInsert(diffUri,
+                createBulkInsertWeatherValues(locationRowId));
+        weatherObserver.expectNoNotificationOrFail(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: identical rows should not be written", 0, writtenCount);
+
+        // One day's forecast changes
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        writtenCount = mContext.getContentResolver().bulkInsert(diffUri, changedValues);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: only the changed row should be written", 1, writtenCount);
+
+        assertTrue("Error: rows should be updated in place, keeping their ids",
+                Arrays.equals(ids, queryWeatherIds()));
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testBulkInsertDiff.  Error validating WeatherEntry " + i,
+                    cursor, changedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // The sync's write, old and new: the diff bulk insert and the delete of past days used to
+    // notify every weather observer once each; the replace uri does both in one transaction and
+    // notifies only the location that changed, once.
+    public void testReplaceWeather() {
+        ContentValues northPole = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, northPole));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "elsewhere");
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation);
+
+        long pruneDate = WeatherContract.normalizeDate(TestUtilities.TEST_DATE + 2 * DAY_IN_MILLIS);
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[5].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, observer);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherDiffUri(), changedValues);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " <= ?", new String[]{Long.toString(pruneDate)});
+        int twoStepCount = observer.countNotifications(500);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, observer);
+        TestUtilities.TestContentObserver otherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("elsewhere"), true, otherObserver);
+        changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[5].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        int writtenCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherReplaceUri(pruneDate), changedValues);
+        int replaceCount = observer.countNotifications(500);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+        mContext.getContentResolver().unregisterContentObserver(otherObserver);
+
+        Log.i(LOG_TAG, "Loader re-queries for a sync that changes and prunes days: " +
+                twoStepCount + " with a bulk insert and a delete, " + replaceCount +
+                " with the replace uri");
+        assertEquals(2, twoStepCount);
+        assertEquals("Error: the replace should notify the location exactly once", 1, replaceCount);
+        assertEquals("Error: the replace shouldn't notify other locations", 0,
+                otherObserver.countNotifications(0));
+        assertEquals("Error: only the changed day should be written", 1, writtenCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals("Error: days on or before the prune date should be gone",
+                BULK_INSERT_RECORDS_TO_INSERT - 3, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 3; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testReplaceWeather.  Error validating WeatherEntry " + i,
+                    cursor, changedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // A sync over three locations, with each one's list and two days of the first one open:
+    // only the cursors showing what changed should be told to query again.
+    public void testScopedNotifications() {
+        String[] settings = {TestUtilities.TEST_LOCATION, "elsewhere", "nowhere"};
+        long[] locationRowIds = new long[settings.length];
+        for (int i = 0; i < settings.length; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, settings[i]);
+            locationRowIds[i] = ContentUris.parseId(
+                    mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    createBulkInsertWeatherValues(locationRowIds[i]));
+        }
+
+        TestUtilities.TestContentObserver[] listObservers =
+                new TestUtilities.TestContentObserver[settings.length];
+        for (int i = 0; i < settings.length; i++) {
+            listObservers[i] = TestUtilities.getTestContentObserver();
+            mContext.getContentResolver().registerContentObserver(
+                    WeatherEntry.buildWeatherLocation(settings[i]), true, listObservers[i]);
+        }
+        long changedDay = TestUtilities.TEST_DATE + 5 * DAY_IN_MILLIS;
+        TestUtilities.TestContentObserver changedDetailObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(settings[0], changedDay), true,
+                changedDetailObserver);
+        TestUtilities.TestContentObserver otherDetailObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(settings[0],
+                        TestUtilities.TEST_DATE + 7 * DAY_IN_MILLIS), true, otherDetailObserver);
+
+        // The first location changes one day, the second every day, the third none
+        ContentValues[] sync = new ContentValues[BULK_INSERT_RECORDS_TO_INSERT * settings.length];
+        for (int i = 0; i < settings.length; i++) {
+            ContentValues[] days = createBulkInsertWeatherValues(locationRowIds[i]);
+            for (int day = 0; day < days.length; day++) {
+                if ((i == 0 && day == 5) || i == 1) {
+                    days[day].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+                }
+                sync[i * BULK_INSERT_RECORDS_TO_INSERT + day] = days[day];
+            }
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherReplaceUri(0), sync);
+
+        int[] listCounts = new int[settings.length];
+        int requeries = 0;
+        for (int i = 0; i < settings.length; i++) {
+            listCounts[i] = listObservers[i].countNotifications(i == 0 ? 500 : 0);
+            requeries += listCounts[i];
+            mContext.getContentResolver().unregisterContentObserver(listObservers[i]);
+        }
+        int changedDetailCount = changedDetailObserver.countNotifications(0);
+        int otherDetailCount = otherDetailObserver.countNotifications(0);
+        requeries += changedDetailCount + otherDetailCount;
+        mContext.getContentResolver().unregisterContentObserver(changedDetailObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherDetailObserver);
+
+        Log.i(LOG_TAG, "Re-queries for a sync of " + settings.length +
+                " locations with 3 lists and 2 details open: " + requeries);
+        assertEquals("Error: the list with a changed day should query again once", 1,
+                listCounts[0]);
+        assertEquals("Error: the list with every day changed should query again once", 1,
+                listCounts[1]);
+        assertEquals("Error: the unchanged list shouldn't query again", 0, listCounts[2]);
+        assertEquals("Error: the detail of the changed day should query again", 1,
+                changedDetailCount);
+        assertEquals("Error: the detail of an unchanged day shouldn't query again", 0,
+                otherDetailCount);
+    }
+
+    // The summary should rank each metric over the requested number of syncs only, and the
+    // table should never keep more than SYNC_METRICS_SYNCS_KEPT syncs.
+    public void testSyncMetricsSummary() {
+        final int syncs = WeatherProvider.SYNC_METRICS_SYNCS_KEPT + 10;
+        final long firstSyncId = 1419033600000L;
+        for (int i = 0; i < syncs; i++) {
+            // Sync i took i ms, so the last 20 syncs took 90 to 109 ms
+            ContentValues[] rows = new ContentValues[2];
+            rows[0] = createSyncMetricValues(firstSyncId + i, SyncMetricsEntry.METRIC_TOTAL, i);
+            rows[1] = createSyncMetricValues(firstSyncId + i, SyncMetricsEntry.METRIC_LOCATIONS, 1);
+            mContext.getContentResolver().bulkInsert(SyncMetricsEntry.CONTENT_URI, rows);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                SyncMetricsEntry.CONTENT_URI,
+                new String[]{"DISTINCT " + SyncMetricsEntry.COLUMN_SYNC_ID},
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: old syncs should be pruned",
+                WeatherProvider.SYNC_METRICS_SYNCS_KEPT, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                SyncMetricsEntry.buildSummaryUri(20),
+                null,
+                null,
+                null,
+                null
+        );
+        assertTrue("Error: no summary for " + SyncMetricsEntry.METRIC_TOTAL, findMetric(cursor,
+                SyncMetricsEntry.METRIC_TOTAL));
+        assertEquals(20, cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_COUNT)));
+        assertEquals(syncs - 11, cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_P50)));
+        assertEquals(syncs - 2, cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_P95)));
+        assertEquals(syncs - 1, cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_MAX)));
+        cursor.close();
+    }
+
+    public void testPercentile() {
+        List<Long> sorted = new ArrayList<Long>();
+        sorted.add(7L);
+        assertEquals(7, WeatherProvider.percentile(sorted, 50));
+        assertEquals(7, WeatherProvider.percentile(sorted, 95));
+        for (long i = 8; i <= 26; i++) {
+            sorted.add(i);
+        }
+        // 20 values from 7 to 26: the 10th and the 19th
+        assertEquals(16, WeatherProvider.percentile(sorted, 50));
+        assertEquals(25, WeatherProvider.percentile(sorted, 95));
+        assertEquals(26, WeatherProvider.percentile(sorted, 100));
+    }
+
+    static private final int HOURLY_DAYS = 5;
+    static private final int HOURLY_SAMPLES_PER_DAY = 8;
+    static private final long HOURLY_STEP_MILLIS = 3 * 60 * 60 * 1000;
+
+    // Five days of samples every 3 hours from the start of the test day, packed a day a row
+    static ContentValues[] createBulkInsertHourlyValues(long locationRowId) {
+        long firstDate = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        int sampleCount = HOURLY_DAYS * HOURLY_SAMPLES_PER_DAY;
+        long[] times = new long[sampleCount];
+        float[] temperatures = new float[sampleCount];
+        float[] precipitation = new float[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            times[i] = firstDate + i * HOURLY_STEP_MILLIS;
+            temperatures[i] = hourlyTemperature(locationRowId, i);
+            precipitation[i] = i % 4 == 0 ? 0.5f * i : 0;
+        }
+
+        ContentValues[] returnContentValues = new ContentValues[HOURLY_DAYS];
+        for (int day = 0; day < HOURLY_DAYS; day++) {
+            int from = day * HOURLY_SAMPLES_PER_DAY;
+            long date = times[from];
+            ContentValues dayValues = new ContentValues();
+            dayValues.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            dayValues.put(HourlyEntry.COLUMN_DATE, date);
+            dayValues.put(HourlyEntry.COLUMN_SAMPLE_COUNT, HOURLY_SAMPLES_PER_DAY);
+            dayValues.put(HourlyEntry.COLUMN_SAMPLES, HourlyEntry.packSamples(date, times,
+                    temperatures, precipitation, from, from + HOURLY_SAMPLES_PER_DAY));
+            returnContentValues[day] = dayValues;
+        }
+        return returnContentValues;
+    }
+
+    private static float hourlyTemperature(long locationRowId, int sample) {
+        return locationRowId + sample * 0.25f - 5;
+    }
+
+    // Every sample should come back, in time order, one row each, for the location and for a
+    // single day of it.
+    public void testBulkInsertHourly() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        TestUtilities.TestContentObserver hourlyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HourlyEntry.CONTENT_URI, true, hourlyObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                createBulkInsertHourlyValues(locationRowId));
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+        assertEquals(HOURLY_DAYS, insertCount);
+
+        // Writing the same days again replaces them rather than adding to them
+        mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                createBulkInsertHourlyValues(locationRowId));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals(HOURLY_DAYS * HOURLY_SAMPLES_PER_DAY, cursor.getCount());
+        int timeIndex = cursor.getColumnIndex(HourlyEntry.COLUMN_TIME);
+        int temperatureIndex = cursor.getColumnIndex(HourlyEntry.COLUMN_TEMP);
+        int precipitationIndex = cursor.getColumnIndex(HourlyEntry.COLUMN_PRECIPITATION);
+        int dateIndex = cursor.getColumnIndex(HourlyEntry.COLUMN_DATE);
+        int idIndex = cursor.getColumnIndex(HourlyEntry._ID);
+        long firstDate = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        HashSet<Long> ids = new HashSet<Long>();
+        for (int i = 0; cursor.moveToNext(); i++) {
+            long time = firstDate + i * HOURLY_STEP_MILLIS;
+            assertEquals("Error: sample " + i + " is out of order", time, cursor.getLong(timeIndex));
+            assertEquals(WeatherContract.normalizeDate(time), cursor.getLong(dateIndex));
+            assertEquals(hourlyTemperature(locationRowId, i), cursor.getFloat(temperatureIndex));
+            assertEquals(i % 4 == 0 ? 0.5f * i : 0, cursor.getFloat(precipitationIndex));
+            assertTrue("Error: sample ids should be unique", ids.add(cursor.getLong(idIndex)));
+        }
+        // Walking backwards crosses days the other way
+        assertTrue(cursor.moveToPosition(HOURLY_SAMPLES_PER_DAY));
+        assertTrue(cursor.moveToPrevious());
+        assertEquals(hourlyTemperature(locationRowId, HOURLY_SAMPLES_PER_DAY - 1),
+                cursor.getFloat(temperatureIndex));
+        cursor.close();
+
+        long secondDate = firstDate + HOURLY_SAMPLES_PER_DAY * HOURLY_STEP_MILLIS;
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithDate(TestUtilities.TEST_LOCATION, secondDate),
+                new String[]{HourlyEntry.COLUMN_TEMP, HourlyEntry.COLUMN_TIME},
+                null,
+                null,
+                null
+        );
+        assertEquals(HOURLY_SAMPLES_PER_DAY, cursor.getCount());
+        assertEquals(2, cursor.getColumnCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(hourlyTemperature(locationRowId, HOURLY_SAMPLES_PER_DAY), cursor.getFloat(0));
+        assertEquals(secondDate, cursor.getLong(1));
+        cursor.close();
+    }
+
+    // The replace uri drops the days on or before its date in the same bulk insert, with one
+    // notification
+    public void testBulkInsertHourlyPrunes() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] days = createBulkInsertHourlyValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, days);
+
+        long secondDate = WeatherContract.normalizeDate(TestUtilities.TEST_DATE)
+                + HOURLY_SAMPLES_PER_DAY * HOURLY_STEP_MILLIS;
+        TestUtilities.TestContentObserver hourlyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HourlyEntry.CONTENT_URI, true, hourlyObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                HourlyEntry.buildHourlyReplaceUri(secondDate),
+                Arrays.copyOfRange(days, 2, days.length));
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+        assertEquals(HOURLY_DAYS - 2, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        assertEquals((HOURLY_DAYS - 2) * HOURLY_SAMPLES_PER_DAY, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the days on or before the prune date should be gone",
+                secondDate + HOURLY_SAMPLES_PER_DAY * HOURLY_STEP_MILLIS,
+                cursor.getLong(cursor.getColumnIndex(HourlyEntry.COLUMN_TIME)));
+        cursor.close();
+    }
+
+    public void testHourlyUnknownColumn() {
+        try {
+            mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                    new String[]{WeatherEntry.COLUMN_HUMIDITY}, null, null, null);
+            fail("Error: the hourly cursor has no " + WeatherEntry.COLUMN_HUMIDITY);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Writes and reads the hourly forecast for 1 to 100 locations and logs how long it takes,
+    // along with the weather list query for one location, which the hourly rows should leave
+    // alone.
+    public void testHourlyScaling() {
+        final int[] locationCounts = { 1, 10, 100 };
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        long firstLocationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, locationValues));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(firstLocationRowId));
+        long weatherListMillis = timeWeatherListQuery();
+
+        List<Long> locationRowIds = new ArrayList<Long>();
+        locationRowIds.add(firstLocationRowId);
+        for (int count : locationCounts) {
+            while (locationRowIds.size() < count) {
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                        "hourly " + locationRowIds.size());
+                locationRowIds.add(ContentUris.parseId(mContext.getContentResolver().insert(
+                        LocationEntry.CONTENT_URI, locationValues)));
+            }
+
+            List<ContentValues> days = new ArrayList<ContentValues>(count * HOURLY_DAYS);
+            for (long locationRowId : locationRowIds) {
+                days.addAll(Arrays.asList(createBulkInsertHourlyValues(locationRowId)));
+            }
+            long start = System.nanoTime();
+            mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                    days.toArray(new ContentValues[days.size()]));
+            long writeMillis = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    HourlyEntry.CONTENT_URI, null, null, null, null);
+            int temperatureIndex = cursor.getColumnIndex(HourlyEntry.COLUMN_TEMP);
+            float sum = 0;
+            while (cursor.moveToNext()) {
+                sum += cursor.getFloat(temperatureIndex);
+            }
+            long readMillis = (System.nanoTime() - start) / 1000000;
+            int sampleCount = cursor.getCount();
+            cursor.close();
+            assertEquals(count * HOURLY_DAYS * HOURLY_SAMPLES_PER_DAY, sampleCount);
+
+            Log.i(LOG_TAG, "hourly: " + count + " locations, " + sampleCount +
+                    " samples written in " + writeMillis + " ms, read in " + readMillis +
+                    " ms (sum " + sum + "); weather list " + timeWeatherListQuery() +
+                    " ms, " + weatherListMillis + " ms without hourly rows");
+        }
+    }
+
+    private long timeWeatherListQuery() {
+        long start = System.nanoTime();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static ContentValues createSyncMetricValues(long syncId, String name, long value) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_SYNC_ID, syncId);
+        values.put(SyncMetricsEntry.COLUMN_NAME, name);
+        values.put(SyncMetricsEntry.COLUMN_VALUE, value);
+        return values;
+    }
+
+    private static boolean findMetric(Cursor cursor, String name) {
+        int nameIndex = cursor.getColumnIndex(SyncMetricsEntry.COLUMN_NAME);
+        while (cursor.moveToNext()) {
+            if (name.equals(cursor.getString(nameIndex))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long[] queryWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
 }
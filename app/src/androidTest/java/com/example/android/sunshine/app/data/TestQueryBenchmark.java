@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Queries per second of weather/<location>?date=, the query behind every list load, widget
+    update and Muzei refresh: from a query builder that builds the SQL on every call, from the
+    provider's SQL path, which builds the SQL of each query shape once, and from the provider's
+    forecast cache, which doesn't touch SQLite.  All run in this process, so the resolver's
+    overhead doesn't hide the difference, and each counts what it allocates per query.  The
+    numbers go to the log; the assertions check the results match and that one shape holds one
+    SQL string.
+ */
+public class TestQueryBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryBenchmark.class.getSimpleName();
+
+    private static final int QUERY_COUNT = 2000;
+    private static final int DAYS = 14;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] values = new ContentValues[DAYS];
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < DAYS; i++, date += DAY_IN_MILLIS) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, date);
+        }
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                values));
+
+        mProvider = new WeatherProvider();
+        mProvider.attachInfo(mContext, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.shutdown();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testForecastQueriesPerSecond() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        String[] selectionArgs = {TestUtilities.TEST_LOCATION,
+                Long.toString(WeatherContract.normalizeDate(TestUtilities.TEST_DATE))};
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(WeatherProvider.getWeatherByLocationSettingTables());
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        // Once each first, so all measure prepared statements and a filled store
+        String expected = readAll(queryBuilder.query(db, FORECAST_COLUMNS,
+                WeatherProvider.sLocationSettingWithStartDateSelection, selectionArgs,
+                null, null, SORT_ORDER));
+        assertEquals("Error: the SQL path doesn't match the query builder", expected,
+                readAll(mProvider.queryWeatherByLocationSetting(FORECAST_COLUMNS,
+                        WeatherProvider.sLocationSettingWithStartDateSelection, selectionArgs,
+                        SORT_ORDER)));
+        Cursor cursor = mProvider.query(uri, FORECAST_COLUMNS, null, null, SORT_ORDER);
+        assertTrue("Error: the forecast list wasn't read from the forecast cache",
+                cursor instanceof ForecastCursor);
+        assertEquals("Error: the forecast cache doesn't match the query builder", expected,
+                readAll(cursor));
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            sum(queryBuilder.query(db, FORECAST_COLUMNS,
+                    WeatherProvider.sLocationSettingWithStartDateSelection, selectionArgs,
+                    null, null, SORT_ORDER));
+        }
+        long builderMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        long builderBytes = Debug.getThreadAllocSize() / QUERY_COUNT;
+
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            sum(mProvider.queryWeatherByLocationSetting(FORECAST_COLUMNS,
+                    WeatherProvider.sLocationSettingWithStartDateSelection, selectionArgs,
+                    SORT_ORDER));
+        }
+        long sqlMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        long sqlBytes = Debug.getThreadAllocSize() / QUERY_COUNT;
+
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            sum(mProvider.query(uri, FORECAST_COLUMNS, null, null, SORT_ORDER));
+        }
+        long storeMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        long storeBytes = Debug.getThreadAllocSize() / QUERY_COUNT;
+        Debug.stopAllocCounting();
+        dbHelper.close();
+
+        assertEquals("Error: one query shape should hold one SQL string", 1,
+                mProvider.getQuerySqlCacheSize());
+
+        // The Java heap only: a cursor window's memory is native, so SQLite allocates more
+        Log.i(LOG_TAG, QUERY_COUNT + " queries: built each time " +
+                QUERY_COUNT * 1000L / builderMillis + " queries/s (" + builderMillis +
+                " ms, " + builderBytes + " bytes/query), SQL built once " +
+                QUERY_COUNT * 1000L / sqlMillis + " queries/s (" + sqlMillis + " ms, " +
+                sqlBytes + " bytes/query), forecast cache " +
+                QUERY_COUNT * 1000L / storeMillis + " queries/s (" + storeMillis + " ms, " +
+                storeBytes + " bytes/query)");
+    }
+
+    // Reads every row, as the adapter eventually does, and closes the cursor
+    private static double sum(Cursor cursor) {
+        double sum = 0;
+        while (cursor.moveToNext()) {
+            sum += cursor.getLong(1) + cursor.getString(2).length() +
+                    cursor.getDouble(3) + cursor.getDouble(4);
+        }
+        cursor.close();
+        return sum;
+    }
+
+    // Every row of the cursor, one value after another, and closes it
+    private static String readAll(Cursor cursor) {
+        StringBuilder rows = new StringBuilder();
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < cursor.getColumnCount(); column++) {
+                rows.append(cursor.getColumnName(column)).append('=')
+                        .append(cursor.getString(column)).append(',');
+            }
+            rows.append('\n');
+        }
+        cursor.close();
+        return rows.toString();
+    }
+}
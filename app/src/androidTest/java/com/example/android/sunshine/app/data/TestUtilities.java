@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
@@ -122,6 +123,7 @@ public class TestUtilities extends AndroidTestCase {
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        volatile int mChangeCount;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -143,6 +145,7 @@ public class TestUtilities extends AndroidTestCase {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             mContentChanged = true;
+            mChangeCount++;
         }
 
         public void waitForNotificationOrFail() {
@@ -158,6 +161,23 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        // For writes that are expected to change nothing.  Notifications are delivered on mHT,
+        // so give a stray one a moment to arrive before checking.
+        public void expectNoNotificationOrFail(long waitMillis) {
+            SystemClock.sleep(waitMillis);
+            mHT.quit();
+            assertFalse("Error: observers were notified of a write that changed nothing",
+                    mContentChanged);
+        }
+
+        // Each notification is a re-query for a loader watching the uri, so some writes should
+        // cause an exact number of them.  Waits as above for stragglers.
+        public int countNotifications(long waitMillis) {
+            SystemClock.sleep(waitMillis);
+            mHT.quit();
+            return mChangeCount;
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
@@ -17,6 +17,9 @@ package com.example.android.sunshine.app.data;
 
 import android.net.Uri;
 import android.test.AndroidTestCase;
+import android.text.format.Time;
+
+import java.util.TimeZone;
 
 /*
     Students: This is NOT a complete test for the WeatherContract --- just for the functions
@@ -42,4 +45,36 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    // The arithmetic has to land on the same instant the Time based version did, including
+    // across daylight saving time changes, or stored days would stop matching new ones.
+    public void testNormalizeDate() {
+        final long hour = 60 * 60 * 1000;
+        String[] zoneIds = { "UTC", "America/Los_Angeles", "Europe/London", "Australia/Lord_Howe",
+                "Asia/Kathmandu", "Pacific/Apia" };
+        TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (String zoneId : zoneIds) {
+                TimeZone zone = TimeZone.getTimeZone(zoneId);
+                TimeZone.setDefault(zone);
+                // Every 7 hours through 2014 and 2015, so every hour of the day comes up
+                for (long date = 1388534400000L; date < 1451606400000L; date += 7 * hour) {
+                    assertEquals("Error: " + date + " in " + zoneId + " normalized differently",
+                            normalizeDateWithTime(date), WeatherContract.normalizeDate(date, zone));
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+        assertEquals(normalizeDateWithTime(TEST_WEATHER_DATE),
+                WeatherContract.normalizeDate(TEST_WEATHER_DATE));
+    }
+
+    // How WeatherContract.normalizeDate used to work, in the default time zone
+    static long normalizeDateWithTime(long startDate) {
+        Time time = new Time();
+        time.set(startDate);
+        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
 }
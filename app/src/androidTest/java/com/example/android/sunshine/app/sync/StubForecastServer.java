@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A tiny HTTP server on the loopback interface that answers every GET with the same forecast
+    after an injected delay.  It counts requests and the most it ever had in flight at once, so
+    tests can check the concurrency limits of the sync code without the real OWM server.  Given
+    an ETag or Last-Modified value it also honours conditional requests with a 304.  Bodies are
+    gzipped for clients that accept it, connections are kept alive, and both the connections
+    accepted and the body bytes actually written are counted.  A share of requests can be made
+    to fail, with a short error body, and createPayload() builds forecasts of any size to serve.
+ */
+class StubForecastServer {
+
+    private static final String LOG_TAG = StubForecastServer.class.getSimpleName();
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+    private final byte[] mBody;
+    private final byte[] mGzippedBody;
+    private volatile long mLatencyMillis;
+    private volatile boolean mGzip = true;
+    private volatile boolean mKeepAlive = true;
+    private volatile String mETag;
+    private volatile String mLastModified;
+    private volatile float mErrorRate;
+    private volatile int mErrorStatus = 503;
+    private final Random mRandom = new Random(42);
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mGzipCount = new AtomicInteger();
+    private final AtomicLong mBodyBytesSent = new AtomicLong();
+
+    StubForecastServer(byte[] body) throws IOException {
+        mBody = body;
+        mGzippedBody = gzip(body);
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, LOG_TAG);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Whether to gzip the body for clients that ask for it.  On by default.
+     */
+    void setGzip(boolean gzip) {
+        mGzip = gzip;
+    }
+
+    /**
+     * Whether to keep connections open between requests.  On by default.
+     */
+    void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    void setETag(String eTag) {
+        mETag = eTag;
+    }
+
+    void setLastModified(String lastModified) {
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Fails about this share of requests, from 0 to 1, with the error status and a short body.
+     */
+    void setErrorRate(float errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * The status failed requests get.  503 by default.
+     */
+    void setErrorStatus(int errorStatus) {
+        mErrorStatus = errorStatus;
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    URL urlFor(String locationSetting) throws IOException {
+        return new URL(getBaseUrl() + "q=" + URLEncoder.encode(locationSetting, "UTF-8"));
+    }
+
+    /**
+     * @return an OWM source pointed at this server, on a transport of its own
+     */
+    OwmForecastSource forecastSource() {
+        return new OwmForecastSource(getBaseUrl());
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return how many TCP connections were accepted; fewer than requests means reuse
+     */
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    int getGzipCount() {
+        return mGzipCount.get();
+    }
+
+    /**
+     * @return the response body bytes written to the socket, after any compression
+     */
+    long getBodyBytesSent() {
+        return mBodyBytesSent.get();
+    }
+
+    int getBodyLength() {
+        return mBody.length;
+    }
+
+    void resetCounters() {
+        mRequestCount.set(0);
+        mMaxInFlight.set(0);
+        mNotModifiedCount.set(0);
+        mErrorCount.set(0);
+        mConnectionCount.set(0);
+        mGzipCount.set(0);
+        mBodyBytesSent.set(0);
+    }
+
+    void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing server socket", e);
+        }
+        mWorkers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // closed by shutdown()
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        mConnectionCount.incrementAndGet();
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            // Keep answering on this socket for as long as the client keeps it open
+            while (serveRequest(in, out)) {
+                // next request
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error serving request", e);
+        } catch (InterruptedException e) {
+            // shutting down
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing socket", e);
+            }
+        }
+    }
+
+    /**
+     * @return whether the connection stays open for another request
+     */
+    private boolean serveRequest(BufferedReader in, OutputStream out)
+            throws IOException, InterruptedException {
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return false;
+        }
+        int inFlight = mInFlight.incrementAndGet();
+        try {
+            int max;
+            do {
+                max = mMaxInFlight.get();
+            } while (inFlight > max && !mMaxInFlight.compareAndSet(max, inFlight));
+
+            String ifNoneMatch = null;
+            String ifModifiedSince = null;
+            boolean acceptsGzip = false;
+            boolean keepAlive = true;
+            String header;
+            while ((header = in.readLine()) != null && header.length() > 0) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if ("If-None-Match".equalsIgnoreCase(name)) {
+                    ifNoneMatch = value;
+                } else if ("If-Modified-Since".equalsIgnoreCase(name)) {
+                    ifModifiedSince = value;
+                } else if ("Accept-Encoding".equalsIgnoreCase(name)) {
+                    acceptsGzip = value.toLowerCase(Locale.US).contains("gzip");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = !"close".equalsIgnoreCase(value);
+                }
+            }
+            keepAlive &= mKeepAlive;
+            mRequestCount.incrementAndGet();
+
+            if (mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+
+            String eTag = mETag;
+            String lastModified = mLastModified;
+            StringBuilder headers = new StringBuilder();
+            if (eTag != null) {
+                headers.append("ETag: ").append(eTag).append("\r\n");
+            }
+            if (lastModified != null) {
+                headers.append("Last-Modified: ").append(lastModified).append("\r\n");
+            }
+            headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close")
+                    .append("\r\n");
+
+            boolean notModified = (eTag != null && eTag.equals(ifNoneMatch)) ||
+                    (eTag == null && lastModified != null && lastModified.equals(ifModifiedSince));
+            boolean error;
+            synchronized (mRandom) {
+                error = mRandom.nextFloat() < mErrorRate;
+            }
+            if (error) {
+                mErrorCount.incrementAndGet();
+                int status = mErrorStatus;
+                byte[] body = ("{\"cod\":\"" + status + "\",\"message\":\"Server error\"}")
+                        .getBytes("US-ASCII");
+                out.write(("HTTP/1.1 " + status + " Server Error\r\n" +
+                        "Content-Type: application/json; charset=utf-8\r\n" +
+                        "Content-Length: " + body.length + "\r\n" +
+                        headers +
+                        "\r\n").getBytes("US-ASCII"));
+                out.write(body);
+            } else if (notModified) {
+                mNotModifiedCount.incrementAndGet();
+                out.write(("HTTP/1.1 304 Not Modified\r\n" +
+                        headers +
+                        "\r\n").getBytes("US-ASCII"));
+            } else {
+                byte[] body = mBody;
+                if (acceptsGzip && mGzip) {
+                    body = mGzippedBody;
+                    headers.append("Content-Encoding: gzip\r\n");
+                    mGzipCount.incrementAndGet();
+                }
+                out.write(("HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: application/json; charset=utf-8\r\n" +
+                        "Content-Length: " + body.length + "\r\n" +
+                        headers +
+                        "\r\n").getBytes("US-ASCII"));
+                out.write(body);
+                mBodyBytesSent.addAndGet(body.length);
+            }
+            out.flush();
+            return keepAlive;
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Builds an OWM style forecast with the given number of days, for payloads of a chosen size.
+     * Temperatures drift a little from day to day so no two days are alike.
+     */
+    static byte[] createPayload(int days) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.0,")
+                .append("\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cnt\":").append(days).append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(1419019200L + i * 86400L)
+                    .append(",\"temp\":{\"day\":15.2,\"min\":").append(8 + i % 5)
+                    .append(".3,\"max\":").append(17 + i % 7).append(".9,")
+                    .append("\"night\":9.1,\"eve\":14.6,\"morn\":8.3},")
+                    .append("\"pressure\":1015.37,\"humidity\":").append(60 + i % 30)
+                    .append(",\"weather\":[{\"id\":").append(i % 2 == 0 ? 800 : 500)
+                    .append(",\"main\":\"").append(i % 2 == 0 ? "Clear" : "Rain")
+                    .append("\",\"description\":\"sky is clear\",\"icon\":\"01d\"}],")
+                    .append("\"speed\":1.96,\"deg\":").append(i * 17 % 360)
+                    .append(",\"clouds\":0}");
+        }
+        json.append("]}");
+        return json.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(body);
+        gzip.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+public class TestAdaptiveSyncScheduler extends AndroidTestCase {
+
+    private static final String TEST_PREFS_NAME = "test_adaptive_sync_scheduler";
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    private static class FakeClock implements AdaptiveSyncScheduler.Clock {
+        long mNow = 1419033600000L;  // December 20th, 2014
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+
+        void advance(long millis) {
+            mNow += millis;
+        }
+    }
+
+    private SharedPreferences mPrefs;
+    private FakeClock mClock;
+    private AdaptiveSyncScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = mContext.getSharedPreferences(TEST_PREFS_NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        mClock = new FakeClock();
+        mScheduler = new AdaptiveSyncScheduler(mPrefs, mClock);
+    }
+
+    private AdaptiveSyncScheduler.Decision decide(float changedFraction, boolean severe) {
+        return mScheduler.decide(new AdaptiveSyncScheduler.Signals(changedFraction, severe));
+    }
+
+    public void testVolatileWeatherSyncsOften() {
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_APP);
+        mClock.advance(HOUR_IN_MILLIS);
+
+        assertEquals(AdaptiveSyncScheduler.SEVERE_INTERVAL, decide(0f, true).intervalSeconds);
+        assertEquals(AdaptiveSyncScheduler.VOLATILE_INTERVAL, decide(0.8f, false).intervalSeconds);
+        assertEquals(AdaptiveSyncScheduler.NORMAL_INTERVAL, decide(0.3f, false).intervalSeconds);
+        assertEquals(AdaptiveSyncScheduler.CALM_INTERVAL, decide(0f, false).intervalSeconds);
+    }
+
+    public void testIdleUserSyncsRarely() {
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_WIDGET);
+        mClock.advance(2 * AdaptiveSyncScheduler.IDLE_MILLIS);
+        AdaptiveSyncScheduler.Decision idle = decide(0.3f, false);
+        assertEquals(2 * AdaptiveSyncScheduler.NORMAL_INTERVAL, idle.intervalSeconds);
+
+        mClock.advance(AdaptiveSyncScheduler.DORMANT_MILLIS);
+        AdaptiveSyncScheduler.Decision dormant = decide(0f, false);
+        assertEquals(4 * AdaptiveSyncScheduler.CALM_INTERVAL, dormant.intervalSeconds);
+
+        // Looking at the watch makes the user active again
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_WATCH, mClock.currentTimeMillis());
+        assertEquals(AdaptiveSyncScheduler.CALM_INTERVAL, decide(0f, false).intervalSeconds);
+    }
+
+    public void testNeverViewedCountsAsDormant() {
+        assertEquals(4 * AdaptiveSyncScheduler.SEVERE_INTERVAL, decide(0f, true).intervalSeconds);
+    }
+
+    public void testOlderViewIgnored() {
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_APP);
+        long viewed = mClock.currentTimeMillis();
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_APP, viewed - HOUR_IN_MILLIS);
+        assertEquals(viewed, mScheduler.getLastViewedMillis());
+    }
+
+    public void testOpenedFromWidget() {
+        long viewed = mClock.currentTimeMillis();
+        mScheduler.recordOpened(new Intent().putExtra(AdaptiveSyncScheduler.EXTRA_SURFACE,
+                AdaptiveSyncScheduler.SURFACE_WIDGET));
+        assertEquals(viewed, mPrefs.getLong(AdaptiveSyncScheduler.KEY_VIEWED_PREFIX +
+                AdaptiveSyncScheduler.SURFACE_WIDGET, 0));
+        assertEquals(0, mPrefs.getLong(AdaptiveSyncScheduler.KEY_VIEWED_PREFIX +
+                AdaptiveSyncScheduler.SURFACE_APP, 0));
+
+        mClock.advance(HOUR_IN_MILLIS);
+        mScheduler.recordOpened(new Intent());
+        assertEquals(viewed + HOUR_IN_MILLIS, mPrefs.getLong(
+                AdaptiveSyncScheduler.KEY_VIEWED_PREFIX + AdaptiveSyncScheduler.SURFACE_APP, 0));
+    }
+
+    public void testFlexIsAThirdOfTheInterval() {
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_APP);
+        AdaptiveSyncScheduler.Decision decision = decide(0.3f, false);
+        assertEquals(decision.intervalSeconds / 3, decision.flexSeconds);
+    }
+
+    public void testHistory() {
+        mScheduler.recordViewed(AdaptiveSyncScheduler.SURFACE_APP);
+        AdaptiveSyncScheduler.Decision first = decide(0.8f, false);
+        mClock.advance(HOUR_IN_MILLIS);
+        AdaptiveSyncScheduler.Decision second = decide(0f, true);
+
+        // Read back through a new instance, as after a restart
+        List<AdaptiveSyncScheduler.Decision> history =
+                new AdaptiveSyncScheduler(mPrefs, mClock).getHistory();
+        assertEquals(2, history.size());
+        assertEquals(first.timeMillis, history.get(0).timeMillis);
+        assertEquals(first.intervalSeconds, history.get(0).intervalSeconds);
+        assertEquals(first.reason, history.get(0).reason);
+        assertEquals(second.timeMillis, history.get(1).timeMillis);
+        assertEquals(second.intervalSeconds, history.get(1).intervalSeconds);
+        assertTrue("Error: the reason should name the storm",
+                history.get(1).reason.contains("storm"));
+
+        for (int i = 0; i < AdaptiveSyncScheduler.HISTORY_SIZE; i++) {
+            mClock.advance(HOUR_IN_MILLIS);
+            decide(0.3f, false);
+        }
+        history = mScheduler.getHistory();
+        assertEquals(AdaptiveSyncScheduler.HISTORY_SIZE, history.size());
+        assertEquals("Error: the oldest decisions should be dropped first",
+                mClock.currentTimeMillis(), history.get(history.size() - 1).timeMillis);
+    }
+}
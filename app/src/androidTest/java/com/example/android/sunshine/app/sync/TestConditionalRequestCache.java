@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+
+public class TestConditionalRequestCache extends InstrumentationTestCase {
+
+    private static final String TEST_PREFS_NAME = "test_conditional_request_cache";
+    private static final String TEST_LOCATION = "94043";
+
+    private StubForecastServer mServer;
+    private ConditionalRequestCache mCache;
+    private OwmForecastSource mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SharedPreferences prefs = getInstrumentation().getTargetContext()
+                .getSharedPreferences(TEST_PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        mCache = new ConditionalRequestCache(prefs);
+        mServer = new StubForecastServer(TestForecastJsonParser.readFixture(
+                getInstrumentation().getContext(), TestForecastJsonParser.FIXTURE_14_DAYS));
+        mSource = new OwmForecastSource(mServer.getBaseUrl(), null, new SyncHttpTransport(), mCache);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private ParallelForecastFetcher.LocationForecast fetch() throws Exception {
+        ParallelForecastFetcher.LocationForecast forecast =
+                new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+        mSource.fetch(TEST_LOCATION, forecast);
+        return forecast;
+    }
+
+    public void testETagRevalidation() throws Exception {
+        mServer.setETag("\"forecast-1\"");
+
+        ParallelForecastFetcher.LocationForecast first = fetch();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, first.locationStatus);
+        assertFalse(first.notModified);
+        assertEquals(14, first.rows.days.size());
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(0, mCache.getHitCount());
+
+        ParallelForecastFetcher.LocationForecast second = fetch();
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, second.locationStatus);
+        assertTrue("Error: an unchanged forecast should come back not modified",
+                second.notModified);
+        assertTrue(second.rows.days.isEmpty());
+        assertEquals(1, mServer.getNotModifiedCount());
+        assertEquals(1, mCache.getHitCount());
+
+        // The server has new data: it's downloaded again, and the new validator kept
+        mServer.setETag("\"forecast-2\"");
+        ParallelForecastFetcher.LocationForecast third = fetch();
+        assertFalse(third.notModified);
+        assertEquals(14, third.rows.days.size());
+        assertEquals(2, mCache.getMissCount());
+        assertTrue(fetch().notModified);
+    }
+
+    public void testLastModifiedRevalidation() throws Exception {
+        mServer.setLastModified("Sat, 20 Dec 2014 00:00:00 GMT");
+
+        assertFalse(fetch().notModified);
+        assertTrue(fetch().notModified);
+        assertEquals(1, mServer.getNotModifiedCount());
+    }
+
+    public void testForgetForcesFullDownload() throws Exception {
+        mServer.setETag("\"forecast-1\"");
+        fetch();
+
+        mSource.forget(TEST_LOCATION);
+
+        ParallelForecastFetcher.LocationForecast forecast = fetch();
+        assertFalse(forecast.notModified);
+        assertEquals(14, forecast.rows.days.size());
+        assertEquals(0, mServer.getNotModifiedCount());
+    }
+
+    // A daily 304 isn't followed by a full download of the hourly forecast
+    public void testHourlyRevalidation() throws Exception {
+        StubForecastServer hourlyServer = new StubForecastServer(("{\"cod\":\"200\","
+                + "\"city\":{\"name\":\"Mountain View\",\"coord\":{\"lat\":37.4,\"lon\":-122.1}},"
+                + "\"list\":[{\"dt\":1419033600,\"main\":{\"temp\":10.5,\"humidity\":80}}]}")
+                .getBytes("UTF-8"));
+        try {
+            hourlyServer.setETag("\"hourly-1\"");
+            OwmForecastSource source = new OwmForecastSource(mServer.getBaseUrl(),
+                    hourlyServer.getBaseUrl(), null, new SyncHttpTransport(), mCache);
+
+            ParallelForecastFetcher.LocationForecast first =
+                    new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+            source.fetchHourly(TEST_LOCATION, first);
+            assertNotNull(first.hourly);
+            assertEquals(1, first.hourly.count);
+
+            ParallelForecastFetcher.LocationForecast second =
+                    new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+            source.fetchHourly(TEST_LOCATION, second);
+            assertNull("Error: unchanged steps should not be parsed again", second.hourly);
+            assertEquals(1, hourlyServer.getNotModifiedCount());
+
+            // Forgetting the location drops the hourly validator along with the daily one
+            source.forget(TEST_LOCATION);
+            ParallelForecastFetcher.LocationForecast third =
+                    new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+            source.fetchHourly(TEST_LOCATION, third);
+            assertNotNull(third.hourly);
+            assertEquals(1, hourlyServer.getNotModifiedCount());
+        } finally {
+            hourlyServer.shutdown();
+        }
+    }
+
+    public void testNoValidatorsWithoutCache() throws Exception {
+        mServer.setETag("\"forecast-1\"");
+        ParallelForecastFetcher.LocationForecast forecast =
+                new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+        OwmForecastSource uncached = mServer.forecastSource();
+        uncached.fetch(TEST_LOCATION, forecast);
+        uncached.fetch(TEST_LOCATION, forecast);
+        assertEquals(0, mServer.getNotModifiedCount());
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/*
+    Checks that the streaming forecast parser produces exactly what the org.json parser does, and
+    compares the two on the recorded OpenWeatherMap responses in the androidTest assets.  This is
+    an InstrumentationTestCase rather than an AndroidTestCase because the fixtures live in the
+    test APK, not the app.
+ */
+public class TestForecastJsonParser extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    static final String FIXTURE_14_DAYS = "forecast_daily_94043_14.json";
+    static final String FIXTURE_16_DAYS = "forecast_daily_94043_16.json";
+    static final String FIXTURE_NOT_FOUND = "forecast_daily_not_found.json";
+
+    private static final int BENCHMARK_WARMUP = 50;
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    byte[] readFixture(String name) throws IOException {
+        return readFixture(getInstrumentation().getContext(), name);
+    }
+
+    static byte[] readFixture(Context testContext, String name) throws IOException {
+        InputStream in = testContext.getAssets().open(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // This is what onPerformSync used to do with the response before handing it to org.json
+    static String readFully(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        reader.close();
+        return buffer.toString();
+    }
+
+    public void testStreamMatchesTree() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        for (String fixture : new String[] { FIXTURE_14_DAYS, FIXTURE_16_DAYS }) {
+            byte[] payload = readFixture(fixture);
+
+            ForecastJsonParser.ForecastRows tree = new ForecastJsonParser.ForecastRows();
+            assertEquals(HttpURLConnection.HTTP_OK,
+                    ForecastJsonParser.parseTree(new String(payload, "UTF-8"), tree));
+
+            ForecastJsonParser.ForecastRows stream = new ForecastJsonParser.ForecastRows();
+            assertEquals(HttpURLConnection.HTTP_OK,
+                    ForecastJsonParser.parseStream(new ByteArrayInputStream(payload), stream));
+
+            assertEquals("Error: city differs for " + fixture, tree.cityName, stream.cityName);
+            assertEquals(tree.cityLatitude, stream.cityLatitude);
+            assertEquals(tree.cityLongitude, stream.cityLongitude);
+            assertEquals("Error: day count differs for " + fixture,
+                    tree.days.size(), stream.days.size());
+            for (int i = 0; i < tree.days.size(); i++) {
+                ContentValues expected = tree.days.get(i);
+                ContentValues actual = stream.days.get(i);
+                assertEquals("Error: day " + i + " of " + fixture + " differs",
+                        expected, actual);
+            }
+        }
+    }
+
+    public void testNotFoundCode() throws Exception {
+        byte[] payload = readFixture(FIXTURE_NOT_FOUND);
+
+        ForecastJsonParser.ForecastRows tree = new ForecastJsonParser.ForecastRows();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                ForecastJsonParser.parseTree(new String(payload, "UTF-8"), tree));
+        assertTrue(tree.days.isEmpty());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            ForecastJsonParser.ForecastRows stream = new ForecastJsonParser.ForecastRows();
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                    ForecastJsonParser.parseStream(new ByteArrayInputStream(payload), stream));
+            assertTrue(stream.days.isEmpty());
+        }
+    }
+
+    // More steps than HourlyRows starts with room for, with rain, snow, both and neither
+    public void testParseHourly() throws Exception {
+        final int steps = 45;
+        final long firstTime = 1419033600L;
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",\"city\":{\"name\":\"Mountain View\","
+                + "\"coord\":{\"lat\":37.4,\"lon\":-122.1}},\"list\":[");
+        for (int i = 0; i < steps; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(firstTime + i * 3 * 60 * 60)
+                    .append(",\"main\":{\"temp\":").append(10 + i * 0.5)
+                    .append(",\"humidity\":80}");
+            if (i % 2 == 0) {
+                json.append(",\"rain\":{\"3h\":0.25}");
+            }
+            if (i % 3 == 0) {
+                json.append(",\"snow\":{\"3h\":1.5}");
+            }
+            json.append('}');
+        }
+        json.append("]}");
+
+        ForecastJsonParser.HourlyRows rows = new ForecastJsonParser.HourlyRows();
+        assertEquals(HttpURLConnection.HTTP_OK, ForecastJsonParser.parseHourly(
+                new ByteArrayInputStream(json.toString().getBytes("UTF-8")), rows));
+        assertEquals("Mountain View", rows.cityName);
+        assertEquals(37.4, rows.cityLatitude);
+        assertEquals(steps, rows.count);
+        for (int i = 0; i < steps; i++) {
+            assertEquals((firstTime + i * 3 * 60 * 60) * 1000, rows.times[i]);
+            assertEquals(10 + i * 0.5f, rows.temperatures[i]);
+            float precipitation = (i % 2 == 0 ? 0.25f : 0) + (i % 3 == 0 ? 1.5f : 0);
+            assertEquals(precipitation, rows.precipitation[i]);
+        }
+
+        // Whichever way parseHourly went, the other way gets the same steps
+        ForecastJsonParser.HourlyRows tree = new ForecastJsonParser.HourlyRows();
+        assertEquals(HttpURLConnection.HTTP_OK,
+                ForecastJsonParser.parseHourlyTree(json.toString(), tree));
+        assertEquals(rows.count, tree.count);
+        for (int i = 0; i < steps; i++) {
+            assertEquals(rows.times[i], tree.times[i]);
+            assertEquals(rows.temperatures[i], tree.temperatures[i]);
+            assertEquals(rows.precipitation[i], tree.precipitation[i]);
+        }
+
+        rows = new ForecastJsonParser.HourlyRows();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, ForecastJsonParser.parseHourly(
+                new ByteArrayInputStream(readFixture(FIXTURE_NOT_FOUND)), rows));
+        assertEquals(0, rows.count);
+    }
+
+    public void testStreamRejectsTruncatedPayload() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        byte[] payload = readFixture(FIXTURE_14_DAYS);
+        byte[] truncated = new byte[payload.length / 2];
+        System.arraycopy(payload, 0, truncated, 0, truncated.length);
+        try {
+            ForecastJsonParser.parseStream(new ByteArrayInputStream(truncated),
+                    new ForecastJsonParser.ForecastRows());
+            fail("Error: a truncated forecast should not parse");
+        } catch (IOException expected) {
+            // the stream ended early
+        } catch (JSONException expected) {
+            // or what was there didn't make sense
+        }
+    }
+
+    /*
+        Not a pass/fail test: logs time and bytes allocated per parse for both parsers.  The tree
+        numbers include reading the response into a String, since that is part of its cost.
+     */
+    public void testParserBenchmark() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        for (String fixture : new String[] { FIXTURE_14_DAYS, FIXTURE_16_DAYS }) {
+            byte[] payload = readFixture(fixture);
+
+            for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+                runTree(payload);
+                runStream(payload);
+            }
+
+            long treeBytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                treeBytes += measureAllocations(payload, false);
+            }
+            long treeNanos = System.nanoTime() - start;
+
+            long streamBytes = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                streamBytes += measureAllocations(payload, true);
+            }
+            long streamNanos = System.nanoTime() - start;
+
+            Log.i(LOG_TAG, String.format("%s (%d bytes): tree %.1f us / %d B per parse, " +
+                            "stream %.1f us / %d B per parse",
+                    fixture, payload.length,
+                    treeNanos / 1000.0 / BENCHMARK_ITERATIONS, treeBytes / BENCHMARK_ITERATIONS,
+                    streamNanos / 1000.0 / BENCHMARK_ITERATIONS, streamBytes / BENCHMARK_ITERATIONS));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private long measureAllocations(byte[] payload, boolean stream) throws Exception {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        if (stream) {
+            runStream(payload);
+        } else {
+            runTree(payload);
+        }
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocSize();
+    }
+
+    private static int runTree(byte[] payload) throws Exception {
+        ForecastJsonParser.ForecastRows rows = new ForecastJsonParser.ForecastRows();
+        ForecastJsonParser.parseTree(readFully(new ByteArrayInputStream(payload)), rows);
+        return rows.days.size();
+    }
+
+    private static int runStream(byte[] payload) throws Exception {
+        ForecastJsonParser.ForecastRows rows = new ForecastJsonParser.ForecastRows();
+        ForecastJsonParser.parseStream(new ByteArrayInputStream(payload), rows);
+        return rows.days.size();
+    }
+}
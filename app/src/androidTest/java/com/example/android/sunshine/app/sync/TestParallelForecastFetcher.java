@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs the multi-location fetcher against a local stub server that adds a fixed delay to every
+    response, so the timings only depend on how many requests overlap.
+ */
+public class TestParallelForecastFetcher extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestParallelForecastFetcher.class.getSimpleName();
+
+    private static final long LATENCY_MILLIS = 250;
+
+    private StubForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubForecastServer(TestForecastJsonParser.readFixture(
+                getInstrumentation().getContext(), TestForecastJsonParser.FIXTURE_14_DAYS));
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    static List<String> createLocations(int count) {
+        List<String> locations = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add("City " + i);
+        }
+        return locations;
+    }
+
+    public void testFetchAllKeepsOrder() throws Exception {
+        List<String> locations = createLocations(5);
+        List<ParallelForecastFetcher.LocationForecast> forecasts =
+                new ParallelForecastFetcher(4, 4).fetchAll(locations, mServer.forecastSource());
+
+        assertEquals(locations.size(), forecasts.size());
+        for (int i = 0; i < locations.size(); i++) {
+            ParallelForecastFetcher.LocationForecast forecast = forecasts.get(i);
+            assertEquals(locations.get(i), forecast.locationSetting);
+            assertEquals("Error: " + forecast.locationSetting + " did not sync",
+                    SunshineSyncAdapter.LOCATION_STATUS_OK, forecast.locationStatus);
+            assertEquals(14, forecast.rows.days.size());
+        }
+        assertEquals(locations.size(), mServer.getRequestCount());
+    }
+
+    public void testPerHostCap() throws Exception {
+        final int perHost = 2;
+        new ParallelForecastFetcher(8, perHost).fetchAll(createLocations(8), mServer.forecastSource());
+
+        assertEquals(8, mServer.getRequestCount());
+        assertTrue("Error: " + mServer.getMaxInFlight() + " requests were in flight at once",
+                mServer.getMaxInFlight() <= perHost);
+    }
+
+    public void testServerDownIsPerLocation() throws Exception {
+        mServer.shutdown();
+        List<ParallelForecastFetcher.LocationForecast> forecasts =
+                new ParallelForecastFetcher(4, 4).fetchAll(createLocations(3), mServer.forecastSource());
+
+        for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, forecast.locationStatus);
+        }
+    }
+
+    /*
+        Sync time has to grow slower than the number of locations.  With four requests in flight
+        twelve locations should take about three round trips, not twelve; the assertion only asks
+        for better than half of linear to leave room for a slow emulator.
+     */
+    public void testWallClockScalesSubLinearly() throws Exception {
+        ParallelForecastFetcher fetcher = new ParallelForecastFetcher(4, 4);
+
+        // warm up the connection machinery so the single location run isn't penalised
+        fetcher.fetchAll(createLocations(1), mServer.forecastSource());
+
+        long single = 0;
+        for (int count : new int[] { 1, 2, 4, 8, 12 }) {
+            long start = System.nanoTime();
+            fetcher.fetchAll(createLocations(count), mServer.forecastSource());
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            Log.i(LOG_TAG, count + " locations synced in " + elapsed + " ms");
+
+            if (count == 1) {
+                single = elapsed;
+            } else if (count == 12) {
+                assertTrue("Error: 12 locations took " + elapsed + " ms against " + single +
+                        " ms for one", elapsed < 12 * single / 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestPostSyncDispatcher extends AndroidTestCase {
+
+    private static final long CONSUMER_MILLIS = 300;
+    private static final long SYNC_ID = 1419033600000L;
+
+    private PostSyncDispatcher mDispatcher;
+    private final Map<String, Integer> mResults = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Long> mLatencies = new ConcurrentHashMap<String, Long>();
+    private CountDownLatch mFinished;
+
+    private void createDispatcher(int consumers) {
+        createDispatcher(consumers, consumers);
+    }
+
+    private void createDispatcher(int threads, int consumers) {
+        mDispatcher = new PostSyncDispatcher(threads);
+        mFinished = new CountDownLatch(consumers);
+        mDispatcher.setListener(new PostSyncDispatcher.Listener() {
+            @Override
+            public void onConsumerFinished(long syncId, String name, int result,
+                    long latencyMillis) {
+                assertEquals(SYNC_ID, syncId);
+                mResults.put(name, result);
+                mLatencies.put(name, latencyMillis);
+                mFinished.countDown();
+            }
+        });
+    }
+
+    private static Runnable sleeper(final long millis) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(millis);
+            }
+        };
+    }
+
+    public void testConsumersRunConcurrently() throws Exception {
+        createDispatcher(3);
+        for (int i = 0; i < 3; i++) {
+            mDispatcher.addConsumer("consumer" + i, 5000, sleeper(CONSUMER_MILLIS));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        mDispatcher.dispatch(SYNC_ID);
+        long dispatchMillis = SystemClock.elapsedRealtime() - start;
+        assertTrue("Error: dispatch() waited " + dispatchMillis + "ms for its consumers",
+                dispatchMillis < CONSUMER_MILLIS);
+
+        assertTrue(mFinished.await(5, TimeUnit.SECONDS));
+        long totalMillis = SystemClock.elapsedRealtime() - start;
+        assertTrue("Error: three consumers took " + totalMillis + "ms, they ran one by one",
+                totalMillis < 3 * CONSUMER_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.valueOf(PostSyncDispatcher.RESULT_OK), mResults.get("consumer" + i));
+        }
+    }
+
+    public void testSlowConsumerTimesOut() throws Exception {
+        createDispatcher(2);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        mDispatcher.addConsumer("hung", 200, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        mDispatcher.addConsumer("quick", 5000, sleeper(10));
+        mDispatcher.dispatch(SYNC_ID);
+
+        assertTrue(mFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(PostSyncDispatcher.RESULT_TIMED_OUT), mResults.get("hung"));
+        assertEquals(Integer.valueOf(PostSyncDispatcher.RESULT_OK), mResults.get("quick"));
+        assertTrue("Error: the timed out consumer was left running",
+                interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testQueuedConsumerKeepsItsTimeout() throws Exception {
+        // One thread, so the second consumer waits for the first before it starts
+        createDispatcher(1, 2);
+        mDispatcher.addConsumer("first", 5000, sleeper(CONSUMER_MILLIS));
+        mDispatcher.addConsumer("queued", CONSUMER_MILLIS / 2, sleeper(10));
+        mDispatcher.dispatch(SYNC_ID);
+
+        assertTrue(mFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(PostSyncDispatcher.RESULT_OK), mResults.get("first"));
+        assertEquals("Error: the time waiting behind another consumer counted against its timeout",
+                Integer.valueOf(PostSyncDispatcher.RESULT_OK), mResults.get("queued"));
+        assertTrue("Error: the latency took in the time waiting behind another consumer",
+                mLatencies.get("queued") < CONSUMER_MILLIS);
+    }
+
+    public void testFailingConsumerIsIsolated() throws Exception {
+        createDispatcher(2);
+        mDispatcher.addConsumer("broken", 5000, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Broken on purpose");
+            }
+        });
+        mDispatcher.addConsumer("working", 5000, sleeper(10));
+        mDispatcher.dispatch(SYNC_ID);
+
+        assertTrue(mFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(PostSyncDispatcher.RESULT_FAILED), mResults.get("broken"));
+        assertEquals(Integer.valueOf(PostSyncDispatcher.RESULT_OK), mResults.get("working"));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import java.io.File;
+
+public class TestReplayForecastSource extends InstrumentationTestCase {
+
+    private static final String TEST_LOCATION = "94043";
+    private static final String OTHER_LOCATION = "London, UK";
+
+    private File mDirectory;
+    private ReplayForecastSource mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = createReplayDirectory(getInstrumentation().getTargetContext(), "replay_test");
+        mSource = new ReplayForecastSource(mDirectory, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory(mDirectory);
+        super.tearDown();
+    }
+
+    static File createReplayDirectory(Context context, String name) {
+        File directory = new File(context.getCacheDir(), name);
+        deleteDirectory(directory);
+        return directory;
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private ParallelForecastFetcher.LocationForecast fetch(String location) throws Exception {
+        ParallelForecastFetcher.LocationForecast forecast =
+                new ParallelForecastFetcher.LocationForecast(location);
+        mSource.fetch(location, forecast);
+        return forecast;
+    }
+
+    public void testRecordedPayloadPerLocation() throws Exception {
+        Context testContext = getInstrumentation().getContext();
+        mSource.record(TEST_LOCATION, TestForecastJsonParser.readFixture(
+                testContext, TestForecastJsonParser.FIXTURE_14_DAYS));
+        mSource.record(OTHER_LOCATION, TestForecastJsonParser.readFixture(
+                testContext, TestForecastJsonParser.FIXTURE_16_DAYS));
+
+        ParallelForecastFetcher.LocationForecast forecast = fetch(TEST_LOCATION);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, forecast.locationStatus);
+        assertEquals(14, forecast.rows.days.size());
+        assertEquals("Mountain View", forecast.rows.cityName);
+
+        assertEquals(16, fetch(OTHER_LOCATION).rows.days.size());
+    }
+
+    public void testDefaultPayload() throws Exception {
+        assertEquals("Error: a location without a recording should be invalid",
+                SunshineSyncAdapter.LOCATION_STATUS_INVALID, fetch(TEST_LOCATION).locationStatus);
+
+        mSource.record(ReplayForecastSource.DEFAULT_PAYLOAD, StubForecastServer.createPayload(5));
+        ParallelForecastFetcher.LocationForecast forecast = fetch("Anywhere " + TEST_LOCATION);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, forecast.locationStatus);
+        assertEquals(5, forecast.rows.days.size());
+    }
+
+    public void testRecordedHourly() throws Exception {
+        ParallelForecastFetcher.LocationForecast forecast =
+                new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+        mSource.fetchHourly(TEST_LOCATION, forecast);
+        assertNull("Error: there should be no hourly forecast without a recording",
+                forecast.hourly);
+
+        mSource.recordHourly(ReplayForecastSource.DEFAULT_PAYLOAD, ("{\"city\":{\"name\":\"Anywhere\","
+                + "\"coord\":{\"lat\":1,\"lon\":2}},\"list\":["
+                + "{\"dt\":1419033600,\"main\":{\"temp\":3.5}},"
+                + "{\"dt\":1419044400,\"main\":{\"temp\":4.5},\"rain\":{\"3h\":0.5}}]}")
+                .getBytes("UTF-8"));
+        mSource.fetchHourly(TEST_LOCATION, forecast);
+        assertNotNull(forecast.hourly);
+        assertEquals(2, forecast.hourly.count);
+        assertEquals(1419044400000L, forecast.hourly.times[1]);
+        assertEquals(0.5f, forecast.hourly.precipitation[1]);
+    }
+
+    public void testRecordedErrors() throws Exception {
+        mSource.record(TEST_LOCATION, TestForecastJsonParser.readFixture(
+                getInstrumentation().getContext(), TestForecastJsonParser.FIXTURE_NOT_FOUND));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                fetch(TEST_LOCATION).locationStatus);
+
+        mSource.record(OTHER_LOCATION, "{\"list\": [".getBytes("UTF-8"));
+        int status = fetch(OTHER_LOCATION).locationStatus;
+        assertTrue("Error: a truncated payload came back with status " + status,
+                status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID ||
+                        status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+    }
+}
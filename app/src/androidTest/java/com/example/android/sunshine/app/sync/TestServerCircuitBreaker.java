@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class TestServerCircuitBreaker extends AndroidTestCase {
+
+    private static final String TEST_PREFS_NAME = "test_server_circuit_breaker";
+    private static final String ENDPOINT = "api.openweathermap.org";
+    private static final String OTHER_ENDPOINT = "example.com";
+
+    private static class FakeClock implements AdaptiveSyncScheduler.Clock {
+        long mNow = 1419033600000L;  // December 20th, 2014
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+
+        void advance(long millis) {
+            mNow += millis;
+        }
+    }
+
+    private SharedPreferences mPrefs;
+    private FakeClock mClock;
+    private ServerCircuitBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = mContext.getSharedPreferences(TEST_PREFS_NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        mClock = new FakeClock();
+        mBreaker = new ServerCircuitBreaker(mPrefs, mClock, new Random(42));
+    }
+
+    public void testBackoffGrowsWithJitter() {
+        long previousCap = 0;
+        for (int failures = 1; failures <= 6; failures++) {
+            mBreaker.recordFailure(ENDPOINT);
+            long cap = Math.min(ServerCircuitBreaker.MAX_DELAY_MILLIS,
+                    ServerCircuitBreaker.BASE_DELAY_MILLIS << (failures - 1));
+            long wait = mBreaker.getMillisUntilRetry(ENDPOINT);
+            assertTrue("Error: waiting " + wait + "ms after " + failures + " failures",
+                    wait >= cap / 2 && wait <= cap);
+            assertTrue("Error: the backoff should grow", cap > previousCap);
+            previousCap = cap;
+
+            assertFalse(mBreaker.allowRequest(ENDPOINT));
+            mClock.advance(wait);
+        }
+
+        for (int failures = 7; failures <= 40; failures++) {
+            mBreaker.recordFailure(ENDPOINT);
+        }
+        assertTrue("Error: the backoff should be capped",
+                mBreaker.getMillisUntilRetry(ENDPOINT) <= ServerCircuitBreaker.MAX_DELAY_MILLIS);
+    }
+
+    public void testJitterSpreadsDevices() {
+        // Two devices that failed at the same moment shouldn't come back at the same moment
+        ServerCircuitBreaker other = new ServerCircuitBreaker(
+                mContext.getSharedPreferences(TEST_PREFS_NAME + "_other", Context.MODE_PRIVATE),
+                mClock, new Random(7));
+        for (int i = 0; i < 4; i++) {
+            mBreaker.recordFailure(OTHER_ENDPOINT);
+            other.recordFailure(OTHER_ENDPOINT);
+        }
+        assertTrue(mBreaker.getMillisUntilRetry(OTHER_ENDPOINT) !=
+                other.getMillisUntilRetry(OTHER_ENDPOINT));
+        other.recordSuccess(OTHER_ENDPOINT);
+    }
+
+    public void testOpensAfterConsecutiveFailures() {
+        for (int i = 1; i < ServerCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            mBreaker.recordFailure(ENDPOINT);
+            assertEquals(ServerCircuitBreaker.STATE_CLOSED, mBreaker.getState(ENDPOINT));
+        }
+        mBreaker.recordFailure(ENDPOINT);
+        assertEquals(ServerCircuitBreaker.STATE_OPEN, mBreaker.getState(ENDPOINT));
+        assertFalse(mBreaker.allowRequest(ENDPOINT));
+
+        // Other endpoints are on their own
+        assertEquals(ServerCircuitBreaker.STATE_CLOSED, mBreaker.getState(OTHER_ENDPOINT));
+        assertTrue(mBreaker.allowRequest(OTHER_ENDPOINT));
+    }
+
+    public void testHalfOpenLetsOneProbeThrough() {
+        openBreaker();
+        mClock.advance(mBreaker.getMillisUntilRetry(ENDPOINT));
+        assertEquals(ServerCircuitBreaker.STATE_HALF_OPEN, mBreaker.getState(ENDPOINT));
+
+        assertTrue("Error: the probe should go out", mBreaker.allowRequest(ENDPOINT));
+        assertFalse("Error: only one probe at a time", mBreaker.allowRequest(ENDPOINT));
+
+        // A probe that never reports back doesn't keep the breaker shut forever
+        mClock.advance(ServerCircuitBreaker.PROBE_TIMEOUT_MILLIS);
+        assertTrue(mBreaker.allowRequest(ENDPOINT));
+
+        mBreaker.recordSuccess(ENDPOINT);
+        assertEquals(ServerCircuitBreaker.STATE_CLOSED, mBreaker.getState(ENDPOINT));
+        assertEquals(0, mBreaker.getFailureCount(ENDPOINT));
+        assertTrue(mBreaker.allowRequest(ENDPOINT));
+        assertTrue(mBreaker.allowRequest(ENDPOINT));
+    }
+
+    public void testFailedProbeReopens() {
+        openBreaker();
+        mClock.advance(mBreaker.getMillisUntilRetry(ENDPOINT));
+        assertTrue(mBreaker.allowRequest(ENDPOINT));
+
+        mBreaker.recordFailure(ENDPOINT);
+        assertEquals(ServerCircuitBreaker.STATE_OPEN, mBreaker.getState(ENDPOINT));
+        assertFalse(mBreaker.allowRequest(ENDPOINT));
+        assertTrue("Error: a failed probe should back off for longer",
+                mBreaker.getMillisUntilRetry(ENDPOINT) >= (ServerCircuitBreaker.BASE_DELAY_MILLIS
+                        << ServerCircuitBreaker.FAILURE_THRESHOLD) / 2);
+    }
+
+    public void testStateSurvivesRestart() {
+        openBreaker();
+        long wait = mBreaker.getMillisUntilRetry(ENDPOINT);
+
+        // A new instance on the same preferences, as after the process was killed
+        ServerCircuitBreaker restarted = new ServerCircuitBreaker(mPrefs, mClock, new Random());
+        assertEquals(ServerCircuitBreaker.STATE_OPEN, restarted.getState(ENDPOINT));
+        assertEquals(wait, restarted.getMillisUntilRetry(ENDPOINT));
+        assertFalse(restarted.allowRequest(ENDPOINT));
+    }
+
+    private void openBreaker() {
+        for (int i = 0; i < ServerCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            mBreaker.recordFailure(ENDPOINT);
+        }
+        assertEquals(ServerCircuitBreaker.STATE_OPEN, mBreaker.getState(ENDPOINT));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+
+public class TestSyncHttpTransport extends InstrumentationTestCase {
+
+    private static final String LOG_TAG = TestSyncHttpTransport.class.getSimpleName();
+    private static final String TEST_LOCATION = "94043";
+
+    private byte[] mFixture;
+    private StubForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFixture = TestForecastJsonParser.readFixture(
+                getInstrumentation().getContext(), TestForecastJsonParser.FIXTURE_16_DAYS);
+        mServer = new StubForecastServer(mFixture);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    // Trimmed, as readFully() ends every line with a newline
+    private String get(SyncHttpTransport transport) throws Exception {
+        SyncHttpTransport.Response response = transport.get(mServer.urlFor(TEST_LOCATION), null);
+        try {
+            return TestForecastJsonParser.readFully(response.getBody()).trim();
+        } finally {
+            response.close();
+        }
+    }
+
+    public void testGzipNegotiated() throws Exception {
+        SyncHttpTransport transport = new SyncHttpTransport();
+        String body = get(transport);
+
+        assertEquals("Error: the decompressed body doesn't match what was served",
+                new String(mFixture, "UTF-8").trim(), body);
+        assertEquals(1, mServer.getGzipCount());
+        assertEquals("Error: the transport and the server disagree on the bytes sent",
+                mServer.getBodyBytesSent(), transport.getBytesOnWire());
+        assertEquals(mFixture.length, transport.getBytesDecoded());
+        assertTrue("Error: the gzipped forecast should be smaller than the plain one",
+                transport.getBytesOnWire() < mFixture.length);
+
+        Log.d(LOG_TAG, "Forecast: " + mFixture.length + " bytes plain, " +
+                transport.getBytesOnWire() + " bytes on the wire");
+    }
+
+    public void testUncompressedResponse() throws Exception {
+        mServer.setGzip(false);
+        SyncHttpTransport transport = new SyncHttpTransport();
+        String body = get(transport);
+
+        assertEquals(new String(mFixture, "UTF-8").trim(), body);
+        assertEquals(0, mServer.getGzipCount());
+        assertEquals(mFixture.length, transport.getBytesOnWire());
+    }
+
+    public void testConnectionsReused() throws Exception {
+        final int requests = 5;
+        OwmForecastSource source = mServer.forecastSource();
+        for (int i = 0; i < requests; i++) {
+            ParallelForecastFetcher.LocationForecast forecast =
+                    new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+            source.fetch(TEST_LOCATION, forecast);
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, forecast.locationStatus);
+            assertEquals(16, forecast.rows.days.size());
+        }
+
+        assertEquals(requests, mServer.getRequestCount());
+        assertTrue("Error: " + requests + " sequential requests opened " +
+                mServer.getConnectionCount() + " connections",
+                mServer.getConnectionCount() < requests);
+    }
+
+    /*
+        A server error throws from getBody() without opening the body; closing the response
+        still has to drain the error body, so the connection goes back to the pool instead of
+        leaking until it is collected.
+     */
+    public void testErrorResponseClosed() throws Exception {
+        final int requests = 5;
+        mServer.setErrorRate(1);
+        mServer.setErrorStatus(500);
+        SyncHttpTransport transport = new SyncHttpTransport();
+        for (int i = 0; i < requests; i++) {
+            SyncHttpTransport.Response response =
+                    transport.get(mServer.urlFor(TEST_LOCATION), null);
+            try {
+                assertEquals(500, response.responseCode);
+                response.getBody();
+                fail("Error: a 500 gave a body");
+            } catch (IOException expected) {
+                // as the sync adapter sees it
+            } finally {
+                response.close();
+            }
+        }
+
+        assertEquals(requests, mServer.getErrorCount());
+        assertTrue("Error: " + requests + " failed requests opened " +
+                mServer.getConnectionCount() + " connections",
+                mServer.getConnectionCount() < requests);
+    }
+
+    public void testReadTimeout() throws Exception {
+        final long latencyMillis = 3000;
+        mServer.setLatencyMillis(latencyMillis);
+        OwmForecastSource source = new OwmForecastSource(
+                mServer.getBaseUrl(), null, new SyncHttpTransport(1000, 250), null);
+
+        ParallelForecastFetcher.LocationForecast forecast =
+                new ParallelForecastFetcher.LocationForecast(TEST_LOCATION);
+        long start = SystemClock.elapsedRealtime();
+        source.fetch(TEST_LOCATION, forecast);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, forecast.locationStatus);
+        assertTrue("Error: a hung server held the request for " + elapsed + "ms",
+                elapsed < latencyMillis);
+    }
+}
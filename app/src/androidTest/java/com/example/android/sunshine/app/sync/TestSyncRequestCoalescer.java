@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+public class TestSyncRequestCoalescer extends AndroidTestCase {
+
+    private static final String NORTH_POLE = SyncRequestCoalescer.keyFor(Arrays.asList("99705"));
+    private static final String LONDON = SyncRequestCoalescer.keyFor(Arrays.asList("London, UK"));
+
+    private static class FakeClock implements AdaptiveSyncScheduler.Clock {
+        long mNow = 1419033600000L;  // December 20th, 2014
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+
+        void advance(long millis) {
+            mNow += millis;
+        }
+    }
+
+    private FakeClock mClock;
+    private SyncRequestCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mCoalescer = new SyncRequestCoalescer(mClock);
+    }
+
+    public void testBurstWhilePending() {
+        assertTrue(mCoalescer.request(NORTH_POLE, false));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(mCoalescer.request(NORTH_POLE, false));
+        }
+        // A different location is a different sync
+        assertTrue(mCoalescer.request(LONDON, false));
+
+        assertEquals(7, mCoalescer.getRequestCount());
+        assertEquals(5, mCoalescer.getCoalescedCount());
+    }
+
+    public void testRequestWhileRunning() {
+        assertTrue(mCoalescer.request(NORTH_POLE, false));
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+        assertFalse(mCoalescer.request(NORTH_POLE, false));
+        assertFalse("Error: two syncs of the same locations at once",
+                mCoalescer.startSync(NORTH_POLE, false));
+        mCoalescer.finishSync(NORTH_POLE, true);
+        assertEquals(2, mCoalescer.getCoalescedCount());
+    }
+
+    public void testFreshResultIsReused() {
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+        mCoalescer.finishSync(NORTH_POLE, true);
+
+        mClock.advance(SyncRequestCoalescer.FRESH_MILLIS / 2);
+        assertFalse(mCoalescer.request(NORTH_POLE, false));
+        assertFalse(mCoalescer.startSync(NORTH_POLE, false));
+
+        mClock.advance(SyncRequestCoalescer.FRESH_MILLIS);
+        assertTrue(mCoalescer.request(NORTH_POLE, false));
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+    }
+
+    public void testFailedSyncIsNotReused() {
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+        mCoalescer.finishSync(NORTH_POLE, false);
+        assertTrue(mCoalescer.request(NORTH_POLE, false));
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+    }
+
+    public void testManualRequestIsNotAnsweredFromFreshResult() {
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+        mCoalescer.finishSync(NORTH_POLE, true);
+
+        mClock.advance(SyncRequestCoalescer.FRESH_MILLIS / 2);
+        assertFalse(mCoalescer.startSync(NORTH_POLE, false));
+        assertTrue("Error: a manual refresh was dropped for a sync that just finished",
+                mCoalescer.request(NORTH_POLE, true));
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+        mCoalescer.finishSync(NORTH_POLE, true);
+
+        // Straight from the framework, e.g. the account's sync now
+        assertTrue(mCoalescer.startSync(NORTH_POLE, true));
+    }
+
+    public void testManualRequestMergedIntoPending() {
+        assertTrue(mCoalescer.startSync(NORTH_POLE, false));
+        mCoalescer.finishSync(NORTH_POLE, true);
+        assertTrue(mCoalescer.request(NORTH_POLE, true));
+        assertFalse(mCoalescer.request(NORTH_POLE, true));
+
+        // The periodic sync runs first and takes the pending request's place
+        assertTrue("Error: the manual request merged into the pending sync was dropped",
+                mCoalescer.startSync(NORTH_POLE, false));
+        assertFalse(mCoalescer.startSync(NORTH_POLE, true));
+    }
+
+    public void testForgottenRequestExpires() {
+        assertTrue(mCoalescer.request(NORTH_POLE, false));
+        mClock.advance(SyncRequestCoalescer.PENDING_TIMEOUT_MILLIS);
+        assertTrue("Error: a request the framework never ran shouldn't block others",
+                mCoalescer.request(NORTH_POLE, false));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+
+/*
+    Sync throughput for 1 to 1000 locations, fully offline: once against recorded payloads, so
+    only parsing and the fetcher's own overhead count, and once against the local stub server
+    with a round trip delay and failures injected.  The numbers go to the log; the assertions
+    only check that every location was accounted for.
+ */
+public class TestSyncThroughput extends InstrumentationTestCase {
+
+    public static final String LOG_TAG = TestSyncThroughput.class.getSimpleName();
+
+    private static final int[] LOCATION_COUNTS = { 1, 10, 100, 1000 };
+    private static final int PAYLOAD_DAYS = 14;
+    private static final int MAX_CONCURRENT = 4;
+
+    private File mReplayDirectory;
+    private StubForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReplayDirectory = TestReplayForecastSource.createReplayDirectory(
+                getInstrumentation().getTargetContext(), "replay_throughput");
+        mServer = new StubForecastServer(StubForecastServer.createPayload(PAYLOAD_DAYS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        TestReplayForecastSource.deleteDirectory(mReplayDirectory);
+        super.tearDown();
+    }
+
+    public void testReplayThroughput() throws Exception {
+        ReplayForecastSource source = new ReplayForecastSource(mReplayDirectory, 0);
+        source.record(ReplayForecastSource.DEFAULT_PAYLOAD,
+                StubForecastServer.createPayload(PAYLOAD_DAYS));
+
+        for (int count : LOCATION_COUNTS) {
+            List<ParallelForecastFetcher.LocationForecast> forecasts = run("replay", source, count);
+            for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+                assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, forecast.locationStatus);
+                assertEquals(PAYLOAD_DAYS, forecast.rows.days.size());
+            }
+        }
+    }
+
+    public void testStubServerThroughput() throws Exception {
+        mServer.setLatencyMillis(10);
+        mServer.setErrorRate(0.05f);
+        OwmForecastSource source = mServer.forecastSource();
+
+        for (int count : LOCATION_COUNTS) {
+            mServer.resetCounters();
+            List<ParallelForecastFetcher.LocationForecast> forecasts = run("stub", source, count);
+
+            int ok = 0;
+            int down = 0;
+            for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+                if (forecast.locationStatus == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                    ok++;
+                } else if (forecast.locationStatus ==
+                        SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN) {
+                    down++;
+                }
+            }
+            assertEquals(count, mServer.getRequestCount());
+            assertEquals("Error: every injected error should show up as the server being down",
+                    mServer.getErrorCount(), down);
+            assertEquals(count, ok + down);
+        }
+    }
+
+    private List<ParallelForecastFetcher.LocationForecast> run(String name, ForecastSource source,
+            int count) throws InterruptedException {
+        ParallelForecastFetcher fetcher = new ParallelForecastFetcher(MAX_CONCURRENT, MAX_CONCURRENT);
+        List<String> locations = TestParallelForecastFetcher.createLocations(count);
+
+        long start = System.nanoTime();
+        List<ParallelForecastFetcher.LocationForecast> forecasts =
+                fetcher.fetchAll(locations, source);
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        Log.i(LOG_TAG, name + ": " + count + " locations in " + elapsedMillis + " ms, " +
+                count * 1000 / elapsedMillis + " locations/s");
+        assertEquals(count, forecasts.size());
+        return forecasts;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the file {@link CityIndex} reads.  It is a build tool, not part of the app: the build
+ * compiles it on its own, without Android, and runs it to make the index asset from a list of
+ * city names, one name a line, as in "Mountain View,US", with blank lines and lines starting
+ * with # left out.  The tests compile it too, to write indexes of their own.
+ *
+ * <pre>
+ *   java CityIndexWriter cities.txt cities.idx
+ * </pre>
+ */
+public final class CityIndexWriter {
+
+    // The header CityIndex checks, and the key fold below, have to stay as it has them
+    static final int MAGIC = 0x43494458;  // "CIDX"
+    static final int VERSION = 3;
+
+    private CityIndexWriter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CityIndexWriter <city list> <index>");
+            System.exit(1);
+        }
+        List<String> names = readNames(new File(args[0]));
+        File index = new File(args[1]);
+        File directory = index.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(index));
+        try {
+            write(names, out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + names.size() + " cities to " + index);
+    }
+
+    private static List<String> readNames(File list) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(list), "UTF-8"));
+        try {
+            List<String> names = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    names.add(line);
+                }
+            }
+            return names;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the index of the names, dropping the ones that fold to a key already taken.
+     */
+    public static void write(List<String> names, OutputStream out) throws IOException {
+        byte[][][] entries = new byte[names.size()][][];
+        for (int i = 0; i < entries.length; i++) {
+            String name = names.get(i).replace("\u0000", "").trim();
+            entries[i] = new byte[][]{toKey(name), toUtf8(name)};
+        }
+        Arrays.sort(entries, new Comparator<byte[][]>() {
+            @Override
+            public int compare(byte[][] a, byte[][] b) {
+                return compareBytes(a[0], b[0]);
+            }
+        });
+
+        List<byte[][]> unique = new ArrayList<byte[][]>(entries.length);
+        for (byte[][] entry : entries) {
+            if (entry[0].length > 0 && (unique.isEmpty() ||
+                    compareBytes(unique.get(unique.size() - 1)[0], entry[0]) != 0)) {
+                unique.add(entry);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(unique.size());
+        int offset = 0;
+        for (byte[][] entry : unique) {
+            data.writeInt(offset);
+            offset += entry[0].length + entry[1].length + 2;
+        }
+        for (byte[][] entry : unique) {
+            data.write(entry[0]);
+            data.write(0);
+            data.write(entry[1]);
+            data.write(0);
+        }
+        data.flush();
+    }
+
+    // The same as CityIndex.fold
+    static String fold(String name) {
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.US)
+                .replaceAll("\\s+", " ")
+                .replaceAll(" ?, ?", ",")
+                .trim();
+        // A 0 ends an entry, so it can't be in a key
+        return folded.replace("\u0000", "");
+    }
+
+    private static byte[] toKey(String name) {
+        return toUtf8(fold(name));
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] toUtf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
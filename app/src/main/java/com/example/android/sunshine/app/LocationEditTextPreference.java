@@ -24,12 +24,30 @@ import android.preference.EditTextPreference;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Filter;
 
+import com.example.android.sunshine.app.data.CityIndex;
+
+import java.util.List;
+
+/**
+ * The location setting, with the cities of the bundled {@link CityIndex} offered as it's typed.
+ * The index only suggests: it is a shorter list than the weather server's, so whatever is typed
+ * is taken as it is, and the sync still says whether the server knows it.
+ */
 public class LocationEditTextPreference extends EditTextPreference {
     static final private int DEFAULT_MINIMUM_LOCATION_LENGTH = 2;
+    static final private int SUGGESTION_COUNT = 8;
     private int mMinLength;
+    private CityIndex mCityIndex;
+    // Stands in for the preference's own EditText in the dialog, which only it can fill in
+    private AutoCompleteTextView mAutoComplete;
 
     public LocationEditTextPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -44,12 +62,42 @@ public class LocationEditTextPreference extends EditTextPreference {
         }
     }
 
+    @Override
+    protected void onAddEditTextToDialogView(View dialogView, EditText editText) {
+        super.onAddEditTextToDialogView(dialogView, editText);
+        mCityIndex = CityIndex.getInstance(getContext());
+        if (mCityIndex == null) {
+            mAutoComplete = null;
+            return;
+        }
+
+        // Put the suggesting view where the EditText went, with the same settings
+        ViewGroup container = (ViewGroup) editText.getParent();
+        int index = container.indexOfChild(editText);
+        container.removeView(editText);
+        mAutoComplete = new AutoCompleteTextView(getContext());
+        mAutoComplete.setInputType(editText.getInputType());
+        mAutoComplete.setSingleLine(true);
+        mAutoComplete.setThreshold(mMinLength);
+        mAutoComplete.setAdapter(new CityAdapter(getContext(), mCityIndex));
+        mAutoComplete.setText(editText.getText());
+        mAutoComplete.setSelection(mAutoComplete.length());
+        container.addView(mAutoComplete, index, editText.getLayoutParams());
+    }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        if (positiveResult && mAutoComplete != null) {
+            getEditText().setText(mAutoComplete.getText());
+        }
+        super.onDialogClosed(positiveResult);
+    }
 
     @Override
     protected void showDialog(Bundle state) {
         super.showDialog(state);
 
-        EditText et = getEditText();
+        EditText et = mAutoComplete != null ? mAutoComplete : getEditText();
         et.addTextChangedListener(new TextWatcher() {
 
 
@@ -81,4 +129,51 @@ public class LocationEditTextPreference extends EditTextPreference {
             }
         });
     }
+
+    /**
+     * Offers the cities starting with what's typed, looked up off the main thread by the
+     * filter.
+     */
+    private static class CityAdapter extends ArrayAdapter<String> {
+        private final CityIndex mIndex;
+        private final Filter mFilter = new Filter() {
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                FilterResults results = new FilterResults();
+                if (constraint != null) {
+                    List<String> names = mIndex.complete(constraint.toString(), SUGGESTION_COUNT);
+                    results.values = names;
+                    results.count = names.size();
+                }
+                return results;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                setNotifyOnChange(false);
+                clear();
+                if (results.values != null) {
+                    for (String name : (List<String>) results.values) {
+                        add(name);
+                    }
+                }
+                if (results.count > 0) {
+                    notifyDataSetChanged();
+                } else {
+                    notifyDataSetInvalidated();
+                }
+            }
+        };
+
+        CityAdapter(Context context, CityIndex index) {
+            super(context, android.R.layout.simple_dropdown_item_1line);
+            mIndex = index;
+        }
+
+        @Override
+        public Filter getFilter() {
+            return mFilter;
+        }
+    }
 }
@@ -26,7 +26,10 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -36,6 +39,61 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns the locations the user has saved in addition to the preferred one.  They are kept
+     * as a single newline separated preference because string sets need Honeycomb.
+     *
+     * @param context Context used to get the SharedPreferences
+     * @return the saved location settings, in the order they were added
+     */
+    public static List<String> getSavedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return parseSavedLocations(
+                prefs.getString(context.getString(R.string.pref_saved_locations_key), ""));
+    }
+
+    /**
+     * The locations of the saved locations preference as the user typed it, one per line:
+     * trimmed, without blank lines or repeats.
+     */
+    public static List<String> parseSavedLocations(String saved) {
+        LinkedHashSet<String> locations = new LinkedHashSet<String>();
+        for (String location : saved.split("\n")) {
+            location = location.trim();
+            if (location.length() > 0) {
+                locations.add(location);
+            }
+        }
+        return new ArrayList<String>(locations);
+    }
+
+    /**
+     * The saved locations preference's value for the locations, one per line.
+     */
+    public static String joinSavedLocations(List<String> locations) {
+        StringBuilder saved = new StringBuilder();
+        for (String location : locations) {
+            if (saved.length() > 0) {
+                saved.append('\n');
+            }
+            saved.append(location);
+        }
+        return saved.toString();
+    }
+
+    /**
+     * Every location a sync has to fetch: the preferred location first, then the saved ones.
+     *
+     * @param context Context used to get the SharedPreferences
+     * @return the location settings to sync, without duplicates
+     */
+    public static List<String> getSyncLocations(Context context) {
+        LinkedHashSet<String> locations = new LinkedHashSet<String>();
+        locations.add(getPreferredLocation(context));
+        locations.addAll(getSavedLocations(context));
+        return new ArrayList<String>(locations);
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
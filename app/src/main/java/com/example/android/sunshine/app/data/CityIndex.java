@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Names of cities the weather server knows, searchable by prefix without the network, for the
+ * location setting to suggest.  The list is shorter than the server's own, so a name it
+ * doesn't hold may still be a city; it can't be used to refuse one.
+ *
+ * The index is one file, sorted by a folded form of each name, and is searched where it lies:
+ * mapped into memory, the lookups binary search its bytes, and only the pages they touch are
+ * ever read.  Nothing of it is on the Java heap, so even the server's 200 000 or so names
+ * would cost the app no memory it has to keep.  The app reads it from the {@link #ASSET_NAME}
+ * asset, which is stored uncompressed so that it can be mapped.  The build makes it from the
+ * city list with CityIndexWriter, a tool that isn't part of the app.
+ *
+ * The file is big-endian:
+ * <pre>
+ *   int magic, int version, int count
+ *   int offset[count]         where each entry starts, from the first entry
+ *   entries                   in key order, each the key and the name, each ending in a 0
+ * </pre>
+ * A key is the name folded by {@link #fold}, in UTF-8, and keys compare as
+ * unsigned bytes.
+ */
+public final class CityIndex {
+
+    private static final String LOG_TAG = CityIndex.class.getSimpleName();
+
+    public static final String ASSET_NAME = "cities.idx";
+
+    private static final int MAGIC = 0x43494458;  // "CIDX"
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 12;
+
+    private static CityIndex sInstance;
+    private static boolean sLoaded;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    // Where the first entry starts
+    private final int mEntriesStart;
+
+    CityIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC ||
+                buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a city index");
+        }
+        mBuffer = buffer;
+        mCount = buffer.getInt(8);
+        mEntriesStart = HEADER_BYTES + 4 * mCount;
+    }
+
+    /**
+     * The index in the app's assets, opened the first time it's asked for.
+     *
+     * @return the index, or null if the app has none or it can't be read, in which case no
+     * cities are suggested
+     */
+    public static synchronized CityIndex getInstance(Context context) {
+        if (!sLoaded) {
+            sLoaded = true;
+            try {
+                sInstance = openAsset(context, ASSET_NAME);
+            } catch (FileNotFoundException e) {
+                Log.w(LOG_TAG, "No city index, cities won't be suggested");
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Can't read the city index, cities won't be suggested", e);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Maps an asset, or reads it into memory outside the heap if it was stored compressed.
+     */
+    static CityIndex openAsset(Context context, String name) throws IOException {
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = context.getAssets().openFd(name);
+        } catch (FileNotFoundException e) {
+            // Either missing or compressed; only the second can be read as a stream
+            return new CityIndex(readFully(context.getAssets().open(name)));
+        }
+        FileInputStream stream = descriptor.createInputStream();
+        try {
+            return new CityIndex(stream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    descriptor.getStartOffset(), descriptor.getLength()));
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static CityIndex open(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return new CityIndex(stream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, file.length()));
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                bytes.write(chunk, 0, read);
+            }
+            byte[] all = bytes.toByteArray();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(all.length);
+            buffer.put(all);
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    // The size of the file, mapped or read
+    public int getByteCount() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * The names that start with the text, ignoring case and accents, in key order.
+     *
+     * @param limit The most names to return
+     */
+    public List<String> complete(String prefix, int limit) {
+        List<String> names = new ArrayList<String>(Math.min(limit, 16));
+        byte[] key = toKey(prefix);
+        if (key.length == 0) {
+            return names;
+        }
+        for (int entry = lowerBound(key); entry < mCount && names.size() < limit &&
+                startsWith(entry, key); entry++) {
+            names.add(readName(entry));
+        }
+        return names;
+    }
+
+    // The first entry whose key isn't less than the given one
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int entryStart(int entry) {
+        return mEntriesStart + mBuffer.getInt(HEADER_BYTES + 4 * entry);
+    }
+
+    // The entry's key against the given one, as unsigned bytes, read straight from the buffer
+    private int compare(int entry, byte[] key) {
+        int position = entryStart(entry);
+        for (int i = 0; ; i++) {
+            int stored = mBuffer.get(position + i) & 0xff;
+            if (i == key.length) {
+                return stored == 0 ? 0 : 1;
+            }
+            int difference = stored - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+    }
+
+    private boolean startsWith(int entry, byte[] prefix) {
+        int position = entryStart(entry);
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBuffer.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readName(int entry) {
+        int position = entryStart(entry);
+        while (mBuffer.get(position) != 0) {
+            position++;
+        }
+        int start = ++position;
+        while (mBuffer.get(position) != 0) {
+            position++;
+        }
+        byte[] name = new byte[position - start];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = mBuffer.get(start + i);
+        }
+        return fromUtf8(name);
+    }
+
+    /**
+     * The form names are compared in: lower case, without accents, with single spaces and none
+     * around a comma, so "S&atilde;o Paulo , BR" and "sao paulo,br" are the same city.
+     */
+    static String fold(String name) {
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.US)
+                .replaceAll("\\s+", " ")
+                .replaceAll(" ?, ?", ",")
+                .trim();
+        // A 0 ends an entry, so it can't be in a key
+        return folded.replace("\u0000", "");
+    }
+
+    private static byte[] toKey(String name) {
+        try {
+            return fold(name).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Presents a run of days of a {@link ForecastSnapshot} as the rows of a query on the
+ * forecast list table, reading the values straight from its arrays.
+ */
+class ForecastCursor extends AbstractCursor {
+
+    // A column named as the provider's queries name it, e.g. weather._id
+    private static final String QUALIFIER = WeatherEntry.TABLE_NAME + ".";
+
+    // printf's %g, which CursorWindow uses to turn a REAL into a string, keeps 6 digits
+    private static final MathContext STRING_DIGITS = new MathContext(6);
+
+    private final ForecastSnapshot mForecast;
+    private final String[] mColumnNames;
+    // For each requested column, its index in ForecastSnapshot.COLUMNS
+    private final int[] mColumns;
+    private final int mFirst;
+    private final int mCount;
+    private int mDay;
+
+    /**
+     * @param columns The result of {@link #columnsOf} for the projection
+     * @param first The index of the first day to present
+     * @param count The number of days from there
+     */
+    ForecastCursor(ForecastSnapshot forecast, String[] projection, int[] columns,
+                   int first, int count) {
+        mForecast = forecast;
+        mColumns = columns;
+        mColumnNames = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            // SQLite names a result column without its table
+            mColumnNames[i] = projection == null ? ForecastSnapshot.COLUMNS[columns[i]]
+                    : unqualified(projection[i]);
+        }
+        mFirst = first;
+        mCount = count;
+    }
+
+    /**
+     * @param projection Column names, with or without the weather table in front, or null for
+     *                   all of them
+     * @return for each, its index in {@link ForecastSnapshot#COLUMNS}, or null if any isn't a plain
+     * column this cursor can present
+     */
+    static int[] columnsOf(String[] projection) {
+        if (projection == null) {
+            int[] columns = new int[ForecastSnapshot.COLUMNS.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = i;
+            }
+            return columns;
+        }
+
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = indexOf(unqualified(projection[i]));
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    private static String unqualified(String column) {
+        return column.regionMatches(true, 0, QUALIFIER, 0, QUALIFIER.length())
+                ? column.substring(QUALIFIER.length()) : column;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < ForecastSnapshot.COLUMNS.length; i++) {
+            if (ForecastSnapshot.COLUMNS[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mDay = mFirst + newPosition;
+        return true;
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case ForecastSnapshot.COL_ID:
+                return mForecast.ids[mDay];
+            case ForecastSnapshot.COL_LOC_KEY:
+                return mForecast.locationId;
+            case ForecastSnapshot.COL_DATE:
+                return mForecast.dates[mDay];
+            case ForecastSnapshot.COL_WEATHER_ID:
+                return mForecast.weatherIds[mDay];
+            case ForecastSnapshot.COL_SHORT_DESC:
+            case ForecastSnapshot.COL_LOCATION_SETTING:
+            case ForecastSnapshot.COL_CITY_NAME:
+                return parseLong(getString(column));
+            default:
+                return (long) getDouble(column);
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case ForecastSnapshot.COL_MIN_TEMP:
+                return mForecast.minTemps[mDay];
+            case ForecastSnapshot.COL_MAX_TEMP:
+                return mForecast.maxTemps[mDay];
+            case ForecastSnapshot.COL_HUMIDITY:
+                return mForecast.humidity[mDay];
+            case ForecastSnapshot.COL_PRESSURE:
+                return mForecast.pressure[mDay];
+            case ForecastSnapshot.COL_WIND_SPEED:
+                return mForecast.windSpeeds[mDay];
+            case ForecastSnapshot.COL_DEGREES:
+                return mForecast.degrees[mDay];
+            case ForecastSnapshot.COL_COORD_LAT:
+                return mForecast.coordLat;
+            case ForecastSnapshot.COL_COORD_LONG:
+                return mForecast.coordLong;
+            case ForecastSnapshot.COL_SHORT_DESC:
+            case ForecastSnapshot.COL_LOCATION_SETTING:
+            case ForecastSnapshot.COL_CITY_NAME:
+                return parseDouble(getString(column));
+            default:
+                return getLong(column);
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case ForecastSnapshot.COL_SHORT_DESC:
+                return mForecast.shortDescs[mDay];
+            case ForecastSnapshot.COL_LOCATION_SETTING:
+                return mForecast.locationSetting;
+            case ForecastSnapshot.COL_CITY_NAME:
+                return mForecast.cityName;
+            default:
+                return getType(column) == FIELD_TYPE_FLOAT
+                        ? formatDouble(getDouble(column)) : Long.toString(getLong(column));
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (mColumns[column]) {
+            case ForecastSnapshot.COL_ID:
+            case ForecastSnapshot.COL_LOC_KEY:
+            case ForecastSnapshot.COL_DATE:
+            case ForecastSnapshot.COL_WEATHER_ID:
+                return FIELD_TYPE_INTEGER;
+            case ForecastSnapshot.COL_SHORT_DESC:
+            case ForecastSnapshot.COL_LOCATION_SETTING:
+            case ForecastSnapshot.COL_CITY_NAME:
+                return FIELD_TYPE_STRING;
+            default:
+                return FIELD_TYPE_FLOAT;
+        }
+    }
+
+    // A REAL as a SQLite cursor gives it as a string, so callers can't tell the two apart
+    static String formatDouble(double value) {
+        if (value == 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+            return value == 0 ? "0" : Double.toString(value);
+        }
+        BigDecimal rounded = new BigDecimal(value).round(STRING_DIGITS);
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent >= -4 && exponent < STRING_DIGITS.getPrecision()) {
+            return rounded.stripTrailingZeros().toPlainString();
+        }
+        int magnitude = Math.abs(exponent);
+        return rounded.movePointLeft(exponent).stripTrailingZeros().toPlainString() +
+                (exponent < 0 ? "e-" : "e+") + (magnitude < 10 ? "0" : "") + magnitude;
+    }
+
+    // Text read as a number, which SQLite makes 0 when it isn't one
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return (long) parseDouble(value);
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The stored forecast of one location, in date order, as it was when it was read.
+ *
+ * Each column is a plain array, and nothing changes once built, so any thread can read a
+ * snapshot without locking.  The notification, the watch, the widgets and Muzei read it through
+ * the getters; {@link WeatherProvider} hands its days to the list and the detail through a
+ * {@link ForecastCursor}.  A newer forecast means a new snapshot; see
+ * {@link ForecastSnapshotCache}.
+ */
+public final class ForecastSnapshot {
+
+    // The columns of the forecast list table a snapshot is read with, in this order
+    static final String[] COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    static final int COL_ID = 0;
+    static final int COL_LOC_KEY = 1;
+    static final int COL_DATE = 2;
+    static final int COL_SHORT_DESC = 3;
+    static final int COL_WEATHER_ID = 4;
+    static final int COL_MIN_TEMP = 5;
+    static final int COL_MAX_TEMP = 6;
+    static final int COL_HUMIDITY = 7;
+    static final int COL_PRESSURE = 8;
+    static final int COL_WIND_SPEED = 9;
+    static final int COL_DEGREES = 10;
+    static final int COL_LOCATION_SETTING = 11;
+    static final int COL_CITY_NAME = 12;
+    static final int COL_COORD_LAT = 13;
+    static final int COL_COORD_LONG = 14;
+
+    final long[] ids;
+    final long[] dates;
+    final String[] shortDescs;
+    final int[] weatherIds;
+    final double[] minTemps;
+    final double[] maxTemps;
+    final double[] humidity;
+    final double[] pressure;
+    final double[] windSpeeds;
+    final double[] degrees;
+    // The location's columns are the same on every row
+    final long locationId;
+    final String locationSetting;
+    final String cityName;
+    final double coordLat;
+    final double coordLong;
+
+    /**
+     * Reads every row of the cursor, which must have {@link #COLUMNS} and be in date order.
+     * The cursor is left open.
+     */
+    ForecastSnapshot(String locationSetting, Cursor cursor) {
+        int count = cursor.getCount();
+        ids = new long[count];
+        dates = new long[count];
+        shortDescs = new String[count];
+        weatherIds = new int[count];
+        minTemps = new double[count];
+        maxTemps = new double[count];
+        humidity = new double[count];
+        pressure = new double[count];
+        windSpeeds = new double[count];
+        degrees = new double[count];
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < count && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(COL_ID);
+            dates[i] = cursor.getLong(COL_DATE);
+            shortDescs[i] = cursor.getString(COL_SHORT_DESC);
+            weatherIds[i] = cursor.getInt(COL_WEATHER_ID);
+            minTemps[i] = cursor.getDouble(COL_MIN_TEMP);
+            maxTemps[i] = cursor.getDouble(COL_MAX_TEMP);
+            humidity[i] = cursor.getDouble(COL_HUMIDITY);
+            pressure[i] = cursor.getDouble(COL_PRESSURE);
+            windSpeeds[i] = cursor.getDouble(COL_WIND_SPEED);
+            degrees[i] = cursor.getDouble(COL_DEGREES);
+        }
+
+        this.locationSetting = locationSetting;
+        if (count > 0 && cursor.moveToFirst()) {
+            locationId = cursor.getLong(COL_LOC_KEY);
+            cityName = cursor.getString(COL_CITY_NAME);
+            coordLat = cursor.getDouble(COL_COORD_LAT);
+            coordLong = cursor.getDouble(COL_COORD_LONG);
+        } else {
+            locationId = 0;
+            cityName = null;
+            coordLat = 0;
+            coordLong = 0;
+        }
+    }
+
+    public String getLocationSetting() {
+        return locationSetting;
+    }
+
+    /**
+     * @return the number of days
+     */
+    public int size() {
+        return dates.length;
+    }
+
+    /**
+     * @param date Any time on or before the day sought
+     * @return the index of the first day on or after the date, or -1 if there is none
+     */
+    public int indexOfFirstDayFrom(long date) {
+        int index = searchFirstDayFrom(WeatherContract.normalizeDate(date));
+        return index < dates.length ? index : -1;
+    }
+
+    /**
+     * @param date Any time in the day sought
+     * @return the index of that day, or -1 if it isn't there
+     */
+    public int indexOfDay(long date) {
+        int index = indexOfFirstDayFrom(date);
+        return index != -1 && dates[index] == WeatherContract.normalizeDate(date) ? index : -1;
+    }
+
+    /**
+     * @param day A normalized date
+     * @return the index of the first day on or after it, or the size if there is none
+     */
+    int searchFirstDayFrom(long day) {
+        int low = 0;
+        int high = dates.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dates[middle] < day) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public long getDate(int index) {
+        return dates[index];
+    }
+
+    public int getWeatherId(int index) {
+        return weatherIds[index];
+    }
+
+    public String getShortDesc(int index) {
+        return shortDescs[index];
+    }
+
+    public double getMaxTemp(int index) {
+        return maxTemps[index];
+    }
+
+    public double getMinTemp(int index) {
+        return minTemps[index];
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The forecast of each location as a {@link ForecastSnapshot}, for the whole process.
+ *
+ * After a sync, the notification, the watch, both widgets and Muzei all want the same days of
+ * the preferred location, and the list and the detail query them over and over.  The first of
+ * them to ask reads the database; the rest share what it read, {@link WeatherProvider} through
+ * a {@link ForecastCursor} and the others through {@link #get(ContentResolver, String)}.  The
+ * sync asks as soon as its write is committed, so usually none of them has to.  The provider
+ * drops snapshots whenever the weather or location tables change.
+ *
+ * Only locations with days are kept, and only the most recently read few of them.
+ */
+public class ForecastSnapshotCache {
+
+    // Enough for the saved locations the app and the widgets go between; the one read least
+    // recently goes first
+    static final int MAX_LOCATIONS = 16;
+
+    //location_setting = ?
+    private static final String LOCATION_SETTING_SELECTION =
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+
+    private static ForecastSnapshotCache sInstance;
+
+    private final LinkedHashMap<String, ForecastSnapshot> mSnapshots =
+            new LinkedHashMap<String, ForecastSnapshot>(MAX_LOCATIONS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ForecastSnapshot> eldest) {
+                    return size() > MAX_LOCATIONS;
+                }
+            };
+    // Bumped by every invalidation, so a read that raced one isn't kept
+    private int mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mLastRebuildNanos;
+
+    public static synchronized ForecastSnapshotCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ForecastSnapshotCache();
+        }
+        return sInstance;
+    }
+
+    ForecastSnapshotCache() {
+    }
+
+    /**
+     * Returns the location's snapshot, reading it through the provider if there is none.  The
+     * provider isn't read under the lock, so a slow read doesn't hold up invalidations.
+     *
+     * @return the snapshot, or null if the provider couldn't be read
+     */
+    public ForecastSnapshot get(ContentResolver resolver, String locationSetting) {
+        int generation;
+        synchronized (this) {
+            ForecastSnapshot snapshot = mSnapshots.get(locationSetting);
+            if (snapshot != null) {
+                mHits++;
+                return snapshot;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        long start = System.nanoTime();
+        ForecastSnapshot snapshot;
+        Cursor cursor = resolver.query(WeatherEntry.buildWeatherLocation(locationSetting),
+                ForecastSnapshot.COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            // The provider in this process has usually just kept what it read for the query
+            synchronized (this) {
+                snapshot = mSnapshots.get(locationSetting);
+            }
+            if (snapshot == null) {
+                snapshot = new ForecastSnapshot(locationSetting, cursor);
+            }
+        } finally {
+            cursor.close();
+        }
+        long rebuildNanos = System.nanoTime() - start;
+
+        synchronized (this) {
+            mLastRebuildNanos = rebuildNanos;
+            put(generation, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the location's snapshot, reading it from the database if there is none.  For
+     * {@link WeatherProvider}, which doesn't count towards the hit rate.
+     */
+    ForecastSnapshot get(SQLiteDatabase db, String locationSetting) {
+        int generation;
+        synchronized (this) {
+            ForecastSnapshot snapshot = mSnapshots.get(locationSetting);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            generation = mGeneration;
+        }
+
+        ForecastSnapshot snapshot;
+        Cursor cursor = db.query(WeatherDbHelper.FORECAST_LIST_TABLE, ForecastSnapshot.COLUMNS,
+                LOCATION_SETTING_SELECTION, new String[]{locationSetting}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            snapshot = new ForecastSnapshot(locationSetting, cursor);
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            put(generation, snapshot);
+        }
+        return snapshot;
+    }
+
+    // Keeps a snapshot read since the generation, unless it raced an invalidation or there is
+    // nothing in it: a setting without days, perhaps mistyped, isn't worth a place
+    private void put(int generation, ForecastSnapshot snapshot) {
+        if (generation == mGeneration && snapshot.size() > 0) {
+            mSnapshots.put(snapshot.getLocationSetting(), snapshot);
+        }
+    }
+
+    /**
+     * Drops every snapshot.
+     */
+    public synchronized void invalidate() {
+        mSnapshots.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Drops the snapshot of one location.
+     */
+    public synchronized void invalidate(String locationSetting) {
+        mSnapshots.remove(locationSetting);
+        mGeneration++;
+    }
+
+    /**
+     * @return the share of lookups answered without reading the provider, from 0 to 1
+     */
+    public synchronized float getHitRate() {
+        long lookups = mHits + mMisses;
+        return lookups == 0 ? 0f : (float) mHits / lookups;
+    }
+
+    /**
+     * @return how long the last read from the provider took, in milliseconds
+     */
+    public synchronized long getLastRebuildMillis() {
+        return mLastRebuildNanos / 1000000;
+    }
+
+    synchronized int size() {
+        return mSnapshots.size();
+    }
+}
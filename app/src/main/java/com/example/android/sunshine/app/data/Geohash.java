@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Geohashes of the locations' coordinates, for {@link WeatherProvider}'s queries by distance.
+ *
+ * A geohash names a cell of the map, and every location in the cell has a geohash that starts
+ * with it, so the locations near a point are a few ranges of an index on the geohash column:
+ * those of the cells that cover a box around the point.  The ranges find every location that
+ * may be close enough, and the distance of each decides.
+ */
+final class Geohash {
+
+    // The length of a stored geohash, a cell of a few centimetres
+    static final int PRECISION = 12;
+
+    // The most cells a search covers.  Fewer, larger cells read more rows that are too far;
+    // more, smaller ones read more ranges of the index.
+    static final int MAX_CELLS = 16;
+
+    static final double EARTH_RADIUS_KM = 6371.0088;
+
+    // Half the way around, the farthest any two places are
+    static final double MAX_DISTANCE_KM = Math.PI * EARTH_RADIUS_KM;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    // Sorts after every geohash that starts with the same prefix
+    static final char AFTER_LAST = '{';
+
+    private Geohash() {
+    }
+
+    static String encode(double lat, double lon) {
+        return encode(lat, lon, PRECISION);
+    }
+
+    static String encode(double lat, double lon, int precision) {
+        double minLat = -90;
+        double maxLat = 90;
+        double minLon = -180;
+        double maxLon = 180;
+        char[] hash = new char[precision];
+        // Bits alternate, longitude first, 5 to a character
+        boolean isLon = true;
+        for (int i = 0; i < precision; i++) {
+            int value = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                value <<= 1;
+                if (isLon) {
+                    double middle = (minLon + maxLon) / 2;
+                    if (lon >= middle) {
+                        value |= 1;
+                        minLon = middle;
+                    } else {
+                        maxLon = middle;
+                    }
+                } else {
+                    double middle = (minLat + maxLat) / 2;
+                    if (lat >= middle) {
+                        value |= 1;
+                        minLat = middle;
+                    } else {
+                        maxLat = middle;
+                    }
+                }
+                isLon = !isLon;
+            }
+            hash[i] = BASE32[value];
+        }
+        return new String(hash);
+    }
+
+    // The height and width of a cell of the precision, in degrees
+    private static double cellLatDegrees(int precision) {
+        return 180.0 / (1L << (5 * precision / 2));
+    }
+
+    private static double cellLonDegrees(int precision) {
+        return 360.0 / (1L << ((5 * precision + 1) / 2));
+    }
+
+    /**
+     * The cells that together cover every point within the distance, as geohash prefixes, in
+     * order and none inside another.
+     *
+     * @return the prefixes, or null if the distance reaches too far around the world for
+     * cells to leave anything out
+     */
+    static List<String> coverCells(double lat, double lon, double radiusKm) {
+        double radiusDegrees = Math.toDegrees(radiusKm / EARTH_RADIUS_KM);
+        double minLat = lat - radiusDegrees;
+        double maxLat = lat + radiusDegrees;
+        if (minLat <= -90 && maxLat >= 90) {
+            return null;
+        }
+
+        // The longitudes within the distance, which are all of them if it reaches a pole
+        double minLon = -180;
+        double maxLon = 180;
+        if (minLat > -90 && maxLat < 90) {
+            double lonDegrees = Math.toDegrees(Math.asin(
+                    Math.sin(radiusKm / EARTH_RADIUS_KM) / Math.cos(Math.toRadians(lat))));
+            minLon = lon - lonDegrees;
+            maxLon = lon + lonDegrees;
+        }
+        minLat = Math.max(minLat, -90);
+        maxLat = Math.min(maxLat, 90);
+
+        // The finest cells that cover the box with no more than MAX_CELLS of them, or else the
+        // 32 cells of the whole map
+        for (int precision = PRECISION; precision >= 1; precision--) {
+            double cellLat = cellLatDegrees(precision);
+            double cellLon = cellLonDegrees(precision);
+            long rows = (long) Math.floor((maxLat + 90) / cellLat) -
+                    (long) Math.floor((minLat + 90) / cellLat) + 1;
+            long columns = Math.min((long) Math.floor((maxLon + 180) / cellLon) -
+                    (long) Math.floor((minLon + 180) / cellLon) + 1,
+                    Math.round(360 / cellLon));
+            if (rows * columns <= MAX_CELLS || precision == 1) {
+                return cells(minLat, maxLat, minLon, maxLon, precision);
+            }
+        }
+        return null;
+    }
+
+    // The cells of the precision the box touches.  Longitudes past 180 wrap around.
+    private static List<String> cells(double minLat, double maxLat, double minLon,
+                                      double maxLon, int precision) {
+        double cellLat = cellLatDegrees(precision);
+        double cellLon = cellLonDegrees(precision);
+        TreeSet<String> cells = new TreeSet<String>();
+        for (double lat = minLat; ; lat += cellLat) {
+            double rowLat = Math.min(lat, maxLat);
+            for (double lon = minLon; ; lon += cellLon) {
+                double columnLon = Math.min(lon, maxLon);
+                cells.add(encode(rowLat, wrap(columnLon), precision));
+                if (columnLon >= maxLon || lon - minLon >= 360) {
+                    break;
+                }
+            }
+            if (rowLat >= maxLat) {
+                break;
+            }
+        }
+        return new ArrayList<String>(cells);
+    }
+
+    private static double wrap(double lon) {
+        double wrapped = ((lon + 180) % 360 + 360) % 360 - 180;
+        // 180 itself is the east edge, in the last column rather than the first
+        return lon > 0 && wrapped == -180 ? 180 - 1e-9 : wrapped;
+    }
+
+    /**
+     * The great circle distance between two points, in kilometres.
+     */
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves pruned days into the history table and rolls the history up as it ages, for
+ * {@link WeatherProvider}.
+ *
+ * Days stay days for a little over a year, so this day last year can be compared day for day.
+ * After that a location keeps a row per week, and after three years a row per month, for ten
+ * years in all: at most some 700 rows a location, whatever the age of the install.  Weeks start
+ * on Monday.  A month holds the weeks that start in it, so no row straddles another.
+ */
+final class HistoryArchive {
+
+    static final int DAILY_DAYS = 400;
+    static final int WEEKLY_DAYS = 3 * 365;
+    static final int MONTHLY_DAYS = 10 * 365;
+
+    // No row covers more days than this, so the rows covering a day start at most this long
+    // before it.  A month of weeks runs from its first Monday to the Sunday after its last.
+    static final int MAX_DAYS_COVERED = 37;
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // The columns a day is archived with, the same in both tables
+    private static final String DAY_COLUMNS =
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherEntry.COLUMN_PRESSURE + ", " +
+                    WeatherEntry.COLUMN_WIND_SPEED;
+
+    // The columns rows are rolled up from, in this order
+    private static final String[] ROLLUP_COLUMNS = {
+            HistoryEntry.COLUMN_LOC_KEY,
+            HistoryEntry.COLUMN_DATE,
+            HistoryEntry.COLUMN_LAST_DATE,
+            HistoryEntry.COLUMN_DAY_COUNT,
+            HistoryEntry.COLUMN_WEATHER_ID,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_HUMIDITY,
+            HistoryEntry.COLUMN_PRESSURE,
+            HistoryEntry.COLUMN_WIND_SPEED
+    };
+    private static final int COL_LOC_KEY = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_LAST_DATE = 2;
+    private static final int COL_DAY_COUNT = 3;
+    private static final int COL_WEATHER_ID = 4;
+    private static final int COL_MIN_TEMP = 5;
+    private static final int COL_MAX_TEMP = 6;
+    private static final int COL_HUMIDITY = 7;
+    private static final int COL_PRESSURE = 8;
+    private static final int COL_WIND_SPEED = 9;
+
+    //period = ? AND date < ?
+    private static final String sPeriodBeforeSelection =
+            HistoryEntry.COLUMN_PERIOD + " = ? AND " + HistoryEntry.COLUMN_DATE + " < ? ";
+
+    private HistoryArchive() {
+    }
+
+    /**
+     * Copies the weather rows the selection matches into the history table, a day per row.
+     * The caller deletes them from the weather table in the same transaction.
+     */
+    static void archive(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.execSQL("INSERT INTO " + HistoryEntry.TABLE_NAME + " (" +
+                HistoryEntry.COLUMN_LOC_KEY + ", " +
+                HistoryEntry.COLUMN_DATE + ", " +
+                HistoryEntry.COLUMN_LAST_DATE + ", " +
+                HistoryEntry.COLUMN_PERIOD + ", " +
+                HistoryEntry.COLUMN_DAY_COUNT + ", " +
+                DAY_COLUMNS + ") SELECT " +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                HistoryEntry.PERIOD_DAY + ", 1, " +
+                DAY_COLUMNS + " FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + selection, selectionArgs);
+    }
+
+    /**
+     * Rolls days older than {@link #DAILY_DAYS} up into weeks and weeks older than
+     * {@link #WEEKLY_DAYS} into months, and drops months older than {@link #MONTHLY_DAYS} and
+     * the rows of deleted locations, in one transaction.  Only whole weeks and whole months are
+     * rolled up, so running this again later never has to merge into a row it wrote before.
+     *
+     * @param now The time to count the ages from
+     * @return how many rows fewer the table holds
+     */
+    static int compact(SQLiteDatabase db, long now) {
+        Calendar calendar = Calendar.getInstance();
+        long weekCutoff = startOfWeek(calendar, now - DAILY_DAYS * DAY_IN_MILLIS);
+        long monthCutoff = startOfMonth(calendar, now - WEEKLY_DAYS * DAY_IN_MILLIS);
+        long dropCutoff = WeatherContract.normalizeDate(now - MONTHLY_DAYS * DAY_IN_MILLIS);
+
+        int removed;
+        db.beginTransaction();
+        try {
+            removed = rollUp(db, calendar, HistoryEntry.PERIOD_DAY, HistoryEntry.PERIOD_WEEK,
+                    weekCutoff);
+            removed += rollUp(db, calendar, HistoryEntry.PERIOD_WEEK, HistoryEntry.PERIOD_MONTH,
+                    monthCutoff);
+            removed += db.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry.COLUMN_PERIOD + " = ? AND " +
+                            HistoryEntry.COLUMN_LAST_DATE + " < ? ",
+                    new String[]{Integer.toString(HistoryEntry.PERIOD_MONTH),
+                            Long.toString(dropCutoff)});
+            // Nothing can ask for the history of a location that is gone
+            removed += db.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry.COLUMN_LOC_KEY + " NOT IN (SELECT " + LocationEntry._ID +
+                            " FROM " + LocationEntry.TABLE_NAME + ")", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return removed;
+    }
+
+    // Replaces the rows of one period dated before the cutoff with a row per week or month
+    private static int rollUp(SQLiteDatabase db, Calendar calendar, int fromPeriod, int toPeriod,
+                              long cutoff) {
+        String[] selectionArgs = {Integer.toString(fromPeriod), Long.toString(cutoff)};
+        List<ContentValues> rolledUp = new ArrayList<ContentValues>();
+        Cursor cursor = db.query(HistoryEntry.TABLE_NAME, ROLLUP_COLUMNS, sPeriodBeforeSelection,
+                selectionArgs, null, null,
+                HistoryEntry.COLUMN_LOC_KEY + " ASC, " + HistoryEntry.COLUMN_DATE + " ASC");
+        try {
+            Aggregate aggregate = null;
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(COL_LOC_KEY);
+                long date = cursor.getLong(COL_DATE);
+                long bucket = toPeriod == HistoryEntry.PERIOD_WEEK
+                        ? startOfWeek(calendar, date) : startOfMonth(calendar, date);
+                if (aggregate == null || aggregate.locationId != locationId ||
+                        aggregate.bucket != bucket) {
+                    if (aggregate != null) {
+                        rolledUp.add(aggregate.toValues(toPeriod));
+                    }
+                    aggregate = new Aggregate(locationId, bucket);
+                    if (toPeriod == HistoryEntry.PERIOD_WEEK) {
+                        // A week covers all seven days, whichever of them were archived
+                        aggregate.date = bucket;
+                        aggregate.lastDate = addDays(calendar, bucket, 6);
+                    } else {
+                        aggregate.date = date;
+                    }
+                }
+                aggregate.add(cursor);
+            }
+            if (aggregate != null) {
+                rolledUp.add(aggregate.toValues(toPeriod));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (rolledUp.isEmpty()) {
+            return 0;
+        }
+        int removed = db.delete(HistoryEntry.TABLE_NAME, sPeriodBeforeSelection, selectionArgs);
+        for (ContentValues values : rolledUp) {
+            db.insert(HistoryEntry.TABLE_NAME, null, values);
+        }
+        return removed - rolledUp.size();
+    }
+
+    // The rows of one location in one week or month, summed up as they are read
+    private static final class Aggregate {
+        final long locationId;
+        final long bucket;
+        long date;
+        long lastDate;
+        int dayCount;
+        double minTemp = Double.MAX_VALUE;
+        double maxTemp = -Double.MAX_VALUE;
+        double humiditySum;
+        double pressureSum;
+        double windSpeedSum;
+        final Map<Integer, Integer> weatherIdDays = new HashMap<Integer, Integer>();
+
+        Aggregate(long locationId, long bucket) {
+            this.locationId = locationId;
+            this.bucket = bucket;
+        }
+
+        void add(Cursor row) {
+            int days = row.getInt(COL_DAY_COUNT);
+            lastDate = Math.max(lastDate, row.getLong(COL_LAST_DATE));
+            dayCount += days;
+            minTemp = Math.min(minTemp, row.getDouble(COL_MIN_TEMP));
+            maxTemp = Math.max(maxTemp, row.getDouble(COL_MAX_TEMP));
+            // The stored means are weighed by the days they cover
+            humiditySum += row.getDouble(COL_HUMIDITY) * days;
+            pressureSum += row.getDouble(COL_PRESSURE) * days;
+            windSpeedSum += row.getDouble(COL_WIND_SPEED) * days;
+            Integer weatherId = row.getInt(COL_WEATHER_ID);
+            Integer sofar = weatherIdDays.get(weatherId);
+            weatherIdDays.put(weatherId, sofar == null ? days : sofar + days);
+        }
+
+        ContentValues toValues(int period) {
+            // The most frequent weather; on a tie the lower id, which is the worse weather
+            int weatherId = 0;
+            int weatherIdCount = 0;
+            for (Map.Entry<Integer, Integer> entry : weatherIdDays.entrySet()) {
+                if (entry.getValue() > weatherIdCount ||
+                        (entry.getValue() == weatherIdCount && entry.getKey() < weatherId)) {
+                    weatherId = entry.getKey();
+                    weatherIdCount = entry.getValue();
+                }
+            }
+
+            ContentValues values = new ContentValues(11);
+            values.put(HistoryEntry.COLUMN_LOC_KEY, locationId);
+            values.put(HistoryEntry.COLUMN_DATE, date);
+            values.put(HistoryEntry.COLUMN_LAST_DATE, lastDate);
+            values.put(HistoryEntry.COLUMN_PERIOD, period);
+            values.put(HistoryEntry.COLUMN_DAY_COUNT, dayCount);
+            values.put(HistoryEntry.COLUMN_WEATHER_ID, weatherId);
+            values.put(HistoryEntry.COLUMN_MIN_TEMP, minTemp);
+            values.put(HistoryEntry.COLUMN_MAX_TEMP, maxTemp);
+            values.put(HistoryEntry.COLUMN_HUMIDITY, humiditySum / dayCount);
+            values.put(HistoryEntry.COLUMN_PRESSURE, pressureSum / dayCount);
+            values.put(HistoryEntry.COLUMN_WIND_SPEED, windSpeedSum / dayCount);
+            return values;
+        }
+    }
+
+    // The Monday of the date's week, normalized
+    static long startOfWeek(Calendar calendar, long date) {
+        calendar.setTimeInMillis(WeatherContract.normalizeDate(date));
+        int daysSinceMonday = (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.MONDAY + 7) % 7;
+        calendar.add(Calendar.DAY_OF_MONTH, -daysSinceMonday);
+        return WeatherContract.normalizeDate(calendar.getTimeInMillis());
+    }
+
+    // The first day of the date's month, normalized
+    static long startOfMonth(Calendar calendar, long date) {
+        calendar.setTimeInMillis(WeatherContract.normalizeDate(date));
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        return WeatherContract.normalizeDate(calendar.getTimeInMillis());
+    }
+
+    // Days are added on the calendar, so a change of daylight saving time in between is kept
+    private static long addDays(Calendar calendar, long date, int days) {
+        calendar.setTimeInMillis(date);
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        return WeatherContract.normalizeDate(calendar.getTimeInMillis());
+    }
+}
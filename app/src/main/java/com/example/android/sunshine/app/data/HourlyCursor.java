@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Presents the packed rows of the hourly table as one row per sample.
+ *
+ * Only the sample counts are read up front, to know the size of the cursor and where each day
+ * starts; a day's blob is unpacked when the cursor first moves onto one of its samples.
+ */
+class HourlyCursor extends AbstractCursor {
+
+    // The stored columns this cursor needs from the hourly table, in this order
+    static final String[] DAY_COLUMNS = {
+            HourlyEntry.TABLE_NAME + "." + HourlyEntry._ID,
+            HourlyEntry.COLUMN_LOC_KEY,
+            HourlyEntry.COLUMN_DATE,
+            HourlyEntry.COLUMN_SAMPLE_COUNT,
+            HourlyEntry.COLUMN_SAMPLES
+    };
+    private static final int DAY_ID = 0;
+    private static final int DAY_LOC_KEY = 1;
+    private static final int DAY_DATE = 2;
+    private static final int DAY_SAMPLE_COUNT = 3;
+    private static final int DAY_SAMPLES = 4;
+
+    // The columns it offers, one row per sample
+    static final String[] COLUMNS = {
+            HourlyEntry._ID,
+            HourlyEntry.COLUMN_LOC_KEY,
+            HourlyEntry.COLUMN_DATE,
+            HourlyEntry.COLUMN_TIME,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_PRECIPITATION
+    };
+    private static final int COL_ID = 0;
+    private static final int COL_LOC_KEY = 1;
+    private static final int COL_DATE = 2;
+    private static final int COL_TIME = 3;
+    private static final int COL_TEMP = 4;
+    private static final int COL_PRECIPITATION = 5;
+
+    // Sample ids are the day's row id shifted left by this, plus the sample's place in the day
+    private static final int SAMPLE_ID_BITS = 8;
+
+    private final Cursor mDays;
+    private final String[] mColumnNames;
+    // For each requested column, its index in COLUMNS
+    private final int[] mColumns;
+    // mFirstSample[day] is the position of the day's first sample; the last entry is the count
+    private final int[] mFirstSample;
+
+    private int mDay = -1;
+    private ByteBuffer mSamples;
+    private int mSampleOffset;
+    private int mSample;
+
+    /**
+     * @param days A cursor over the hourly table with {@link #DAY_COLUMNS}, in the order the
+     *             samples should come out.  It is closed with this cursor.
+     * @param projection Any of {@link #COLUMNS}, or null for all of them
+     */
+    HourlyCursor(Cursor days, String[] projection) {
+        mDays = days;
+        mColumnNames = projection == null ? COLUMNS : projection;
+        mColumns = new int[mColumnNames.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mColumns[i] = indexOf(mColumnNames[i]);
+        }
+
+        mFirstSample = new int[days.getCount() + 1];
+        int day = 0;
+        days.moveToPosition(-1);
+        while (days.moveToNext()) {
+            mFirstSample[day + 1] = mFirstSample[day] + days.getInt(DAY_SAMPLE_COUNT);
+            day++;
+        }
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown hourly column: " + column);
+    }
+
+    @Override
+    public int getCount() {
+        return mFirstSample[mFirstSample.length - 1];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // The last day whose first sample is at or before the new position
+        int low = 0;
+        int high = mFirstSample.length - 2;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mFirstSample[middle] <= newPosition) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (low != mDay) {
+            if (!mDays.moveToPosition(low)) {
+                return false;
+            }
+            mDay = low;
+            mSamples = ByteBuffer.wrap(mDays.getBlob(DAY_SAMPLES));
+        }
+        mSample = newPosition - mFirstSample[low];
+        mSampleOffset = mSample * HourlyEntry.BYTES_PER_SAMPLE;
+        return true;
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (mColumns[column]) {
+            case COL_ID:
+                return (mDays.getLong(DAY_ID) << SAMPLE_ID_BITS) + mSample;
+            case COL_LOC_KEY:
+                return mDays.getLong(DAY_LOC_KEY);
+            case COL_DATE:
+                return mDays.getLong(DAY_DATE);
+            case COL_TIME:
+                return mDays.getLong(DAY_DATE) + mSamples.getInt(mSampleOffset) * 1000L;
+            default:
+                return (long) getDouble(column);
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        switch (mColumns[column]) {
+            case COL_TEMP:
+                return mSamples.getFloat(mSampleOffset + 4);
+            case COL_PRECIPITATION:
+                return mSamples.getFloat(mSampleOffset + 8);
+            default:
+                return getLong(column);
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return isFloatColumn(column)
+                ? Double.toString(getDouble(column)) : Long.toString(getLong(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+
+    @Override
+    public int getType(int column) {
+        return isFloatColumn(column) ? FIELD_TYPE_FLOAT : FIELD_TYPE_INTEGER;
+    }
+
+    private boolean isFloatColumn(int column) {
+        return mColumns[column] == COL_TEMP || mColumns[column] == COL_PRECIPITATION;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mDays.close();
+    }
+}
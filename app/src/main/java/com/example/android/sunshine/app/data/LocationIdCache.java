@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps location settings to the _ID of their row in the location table, for the whole process.
+ *
+ * The map is filled from the table in one query the first time it is needed, and after that a
+ * location only costs a query when it is new, and then only its own row is read back.  {@link WeatherProvider} drops the map whenever
+ * location rows are updated or deleted, or the database is created again, so an _ID is never
+ * handed out for a row that's gone.
+ */
+public class LocationIdCache {
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    private static LocationIdCache sInstance;
+
+    private final HashMap<String, Long> mIds = new HashMap<String, Long>();
+    private boolean mWarm;
+
+    public static synchronized LocationIdCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new LocationIdCache();
+        }
+        return sInstance;
+    }
+
+    LocationIdCache() {
+    }
+
+    /**
+     * Finds the _ID of every given location, adding the ones that aren't in the table yet with
+     * one bulk insert.
+     *
+     * @param locations Location rows, with at least the setting, city name and coordinates
+     * @return the _ID of each location, by location setting
+     */
+    public synchronized Map<String, Long> resolve(ContentResolver resolver,
+                                                  List<ContentValues> locations) {
+        if (!mWarm) {
+            load(resolver);
+        }
+
+        HashMap<String, Long> ids = new HashMap<String, Long>(locations.size() * 2);
+        List<ContentValues> missing = new ArrayList<ContentValues>();
+        for (ContentValues location : locations) {
+            String setting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+            Long id = mIds.get(setting);
+            if (id != null) {
+                ids.put(setting, id);
+            } else {
+                missing.add(location);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            resolver.bulkInsert(LocationEntry.CONTENT_URI,
+                    missing.toArray(new ContentValues[missing.size()]));
+            loadSettings(resolver, missing);
+            for (ContentValues location : missing) {
+                String setting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+                Long id = mIds.get(setting);
+                if (id != null) {
+                    ids.put(setting, id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Forgets every _ID, so the next lookup reads the table again.
+     */
+    public synchronized void invalidate() {
+        mIds.clear();
+        mWarm = false;
+    }
+
+    synchronized int size() {
+        return mIds.size();
+    }
+
+    private void load(ContentResolver resolver) {
+        mIds.clear();
+        if (query(resolver, null, null)) {
+            mWarm = true;
+        }
+    }
+
+    //location_setting IN (?, ?, ...)
+    //Reads back just the given locations, and adds them to the map
+    private void loadSettings(ContentResolver resolver, List<ContentValues> locations) {
+        for (int start = 0; start < locations.size();
+                start += WeatherProvider.MAX_IDS_PER_QUERY) {
+            int end = Math.min(locations.size(), start + WeatherProvider.MAX_IDS_PER_QUERY);
+            StringBuilder selection = new StringBuilder(LocationEntry.COLUMN_LOCATION_SETTING)
+                    .append(" IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ", ?");
+                selectionArgs[i - start] = locations.get(i)
+                        .getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+            }
+            selection.append(")");
+            query(resolver, selection.toString(), selectionArgs);
+        }
+    }
+
+    // Adds the _ID of every location the selection matches, and returns whether it could read
+    private boolean query(ContentResolver resolver, String selection, String[] selectionArgs) {
+        Cursor cursor = resolver.query(LocationEntry.CONTENT_URI, LOCATION_COLUMNS,
+                selection, selectionArgs, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mIds.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+}
@@ -21,6 +21,9 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.format.Time;
 
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+
 /**
  * Defines table and column names for the weather database.
  */
@@ -43,15 +46,31 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_NEAR = "near";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_HISTORY = "history";
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return normalizeDate(startDate, TimeZone.getDefault());
+    }
+
+    /**
+     * Normalizes a date the same way as {@link #normalizeDate(long)}, in the given time zone,
+     * with arithmetic on its offsets rather than a {@link Time}.  Bulk writes look the zone up
+     * once and pass it in for every row.
+     */
+    public static long normalizeDate(long startDate, TimeZone zone) {
+        // The start of the local day, as a local wall clock time...
+        long localDate = startDate + zone.getOffset(startDate);
+        long localMidnight = localDate - ((localDate % DAY_IN_MILLIS) + DAY_IN_MILLIS) % DAY_IN_MILLIS;
+        // ...back in UTC, with the offset in force at midnight, which differs from the one at
+        // startDate when daylight saving time changed in between
+        return localMidnight - zone.getOffset(localMidnight - zone.getOffset(startDate));
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,9 +100,71 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The geohash of the coordinates, kept by the provider, which finds the locations near
+        // a point through an index on it
+        public static final String COLUMN_GEOHASH = "geohash";
+
+        // The distance from the point of a near query, in kilometres, only in its results
+        public static final String COLUMN_DISTANCE = "distance";
+
+        // The point a near query searches around, and how far, in kilometres, and how many of
+        // the nearest locations it returns
+        public static final String PARAM_LAT = "lat";
+        public static final String PARAM_LONG = "lon";
+        public static final String PARAM_RADIUS = "radius";
+        public static final String PARAM_LIMIT = "limit";
+
+        public static final Uri NEAR_URI = CONTENT_URI.buildUpon().appendPath(PATH_NEAR).build();
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        /*
+            The stored location nearest the point, however far it is, as a cursor of one row,
+            or none if there are no locations.
+         */
+        public static Uri buildNearestUri(double lat, double lon) {
+            return NEAR_URI.buildUpon()
+                    .appendQueryParameter(PARAM_LAT, Double.toString(lat))
+                    .appendQueryParameter(PARAM_LONG, Double.toString(lon))
+                    .appendQueryParameter(PARAM_LIMIT, "1").build();
+        }
+
+        /*
+            Every stored location within radiusKm of the point, nearest first.
+         */
+        public static Uri buildNearUri(double lat, double lon, double radiusKm) {
+            return NEAR_URI.buildUpon()
+                    .appendQueryParameter(PARAM_LAT, Double.toString(lat))
+                    .appendQueryParameter(PARAM_LONG, Double.toString(lon))
+                    .appendQueryParameter(PARAM_RADIUS, Double.toString(radiusKm)).build();
+        }
+
+        public static double getLatFromUri(Uri uri) {
+            return Double.parseDouble(uri.getQueryParameter(PARAM_LAT));
+        }
+
+        public static double getLongFromUri(Uri uri) {
+            return Double.parseDouble(uri.getQueryParameter(PARAM_LONG));
+        }
+
+        // Without a radius, the search goes as far as it takes to find the limit's locations
+        public static double getRadiusFromUri(Uri uri) {
+            String radiusString = uri.getQueryParameter(PARAM_RADIUS);
+            if (null != radiusString && radiusString.length() > 0)
+                return Double.parseDouble(radiusString);
+            else
+                return Double.POSITIVE_INFINITY;
+        }
+
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return Integer.MAX_VALUE;
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -99,6 +180,14 @@ public class WeatherContract {
 
         public static final String TABLE_NAME = "weather";
 
+        // Query parameter that switches bulkInsert to only writing the rows that changed
+        public static final String PARAM_DIFF = "diff";
+        // Bulk inserts with this parameter replace the stored forecast in one transaction: the
+        // days that changed are written as with PARAM_DIFF, every day on or before the given
+        // date is deleted, and each location that changed gets one notification on its own
+        // weather/<location> URI
+        public static final String PARAM_PRUNE_DATE = "prune_date";
+
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
         // Date, stored as long in milliseconds since the epoch
@@ -130,6 +219,32 @@ public class WeatherContract {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        /*
+            bulkInsert on this uri compares each row with the one stored for the same location
+            and date: identical rows are skipped, changed ones are updated in place, and
+            observers are only notified if something was written.
+         */
+        public static Uri buildWeatherDiffUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_DIFF, "1").build();
+        }
+
+        public static boolean isDiffUri(Uri uri) {
+            return "1".equals(uri.getQueryParameter(PARAM_DIFF));
+        }
+
+        public static Uri buildWeatherReplaceUri(long pruneDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_PRUNE_DATE, Long.toString(pruneDate)).build();
+        }
+
+        public static boolean isReplaceUri(Uri uri) {
+            return uri.getQueryParameter(PARAM_PRUNE_DATE) != null;
+        }
+
+        public static long getPruneDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getQueryParameter(PARAM_PRUNE_DATE));
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
          */
@@ -165,4 +280,278 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /*
+        Inner class that defines the table contents of the hourly table, which holds the 3 hour
+        step forecast.  To keep some 40 samples per location per sync cheap to write and read,
+        a row holds a whole day of samples for one location, packed into a blob.  Queries don't
+        return the rows themselves but one row per sample, with the COLUMN_TIME, COLUMN_TEMP and
+        COLUMN_PRECIPITATION columns below, unpacked as the cursor gets to them.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Bulk inserts with this parameter also delete every day on or before the given date,
+        // in the same transaction
+        public static final String PARAM_PRUNE_DATE = "prune_date";
+
+        // Stored columns.  The location and the day, normalized like WeatherEntry.COLUMN_DATE,
+        // are unique together.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        public static final String COLUMN_DATE = "date";
+        public static final String COLUMN_SAMPLE_COUNT = "sample_count";
+        // For every sample: seconds since COLUMN_DATE (int), temperature (float) and
+        // precipitation in mm over the 3 hours (float), big endian
+        public static final String COLUMN_SAMPLES = "samples";
+        public static final int BYTES_PER_SAMPLE = 12;
+
+        // Columns of the rows a query returns, one per sample, next to _ID, COLUMN_LOC_KEY and
+        // COLUMN_DATE.  The time is in milliseconds since the epoch.
+        public static final String COLUMN_TIME = "time";
+        public static final String COLUMN_TEMP = "temp";
+        public static final String COLUMN_PRECIPITATION = "precipitation";
+
+        /**
+         * Packs samples {@code from} to {@code to} (exclusive), which must all fall on the day
+         * starting at {@code date}, into the COLUMN_SAMPLES format.
+         */
+        public static byte[] packSamples(long date, long[] times, float[] temperatures,
+                                         float[] precipitation, int from, int to) {
+            ByteBuffer buffer = ByteBuffer.allocate((to - from) * BYTES_PER_SAMPLE);
+            for (int i = from; i < to; i++) {
+                buffer.putInt((int) ((times[i] - date) / 1000));
+                buffer.putFloat(temperatures[i]);
+                buffer.putFloat(precipitation[i]);
+            }
+            return buffer.array();
+        }
+
+        public static Uri buildHourlyReplaceUri(long pruneDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_PRUNE_DATE, Long.toString(pruneDate)).build();
+        }
+
+        public static boolean isReplaceUri(Uri uri) {
+            return uri.getQueryParameter(PARAM_PRUNE_DATE) != null;
+        }
+
+        public static long getPruneDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getQueryParameter(PARAM_PRUNE_DATE));
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildHourlyLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the history table, the archive of past
+        weather.  The days the sync prunes from the weather table move here.  As they age,
+        days are rolled up into a row per week and weeks into a row per month, and the oldest
+        months are dropped, so each location's history stays a few hundred rows.  A row covers
+        COLUMN_DATE to COLUMN_LAST_DATE, and rows never overlap.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+
+        public static final String TABLE_NAME = "history";
+
+        // The location and the first day covered, normalized like WeatherEntry.COLUMN_DATE,
+        // are unique together
+        public static final String COLUMN_LOC_KEY = "location_id";
+        public static final String COLUMN_DATE = "date";
+        // The last day covered
+        public static final String COLUMN_LAST_DATE = "last_date";
+        // One of the PERIOD_ constants below
+        public static final String COLUMN_PERIOD = "period";
+        // How many archived days went into the row
+        public static final String COLUMN_DAY_COUNT = "day_count";
+        // The most frequent weather id of those days
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // The lowest and the highest temperature of those days
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        // Means over those days
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        public static final int PERIOD_DAY = 0;
+        public static final int PERIOD_WEEK = 1;
+        public static final int PERIOD_MONTH = 2;
+
+        // The first and the last day of a range query, both included
+        public static final String PARAM_START_DATE = "start";
+        public static final String PARAM_END_DATE = "end";
+        // Deleting with this parameter compacts the archive as of the given time: days old
+        // enough become weeks, weeks become months, and the oldest months are dropped
+        public static final String PARAM_COMPACT_DATE = "compact_date";
+
+        /*
+            Every row of the location that covers a day from startDate to endDate, in date
+            order.  Recent days come back one per row, older ones as the weeks and months they
+            were rolled into.
+         */
+        public static Uri buildHistoryLocationWithRange(String locationSetting, long startDate,
+                                                        long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START_DATE, Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
+        public static Uri buildHistoryLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /*
+            The one row of the location that covers the day, e.g. for this day last week or
+            last year: the day itself, or the week or month it was rolled into.
+         */
+        public static Uri buildHistoryLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static Uri buildCompactUri(long now) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_COMPACT_DATE, Long.toString(now)).build();
+        }
+
+        public static boolean isCompactUri(Uri uri) {
+            return uri.getQueryParameter(PARAM_COMPACT_DATE) != null;
+        }
+
+        public static long getCompactDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getQueryParameter(PARAM_COMPACT_DATE));
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_START_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the sync metrics table.  Every sync
+        records one row per metric: how long each phase took, how much was downloaded and
+        written, and how it ended.  Only the most recent syncs are kept.
+     */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        // Percentiles of every metric over the last syncs, one row per metric name
+        public static final String PATH_SUMMARY = "summary";
+        public static final Uri SUMMARY_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+        public static final String SUMMARY_CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_SYNC_METRICS + "/" + PATH_SUMMARY;
+
+        public static final String TABLE_NAME = "sync_metric";
+
+        // When the sync started, in milliseconds since the epoch.  Identifies the sync.
+        public static final String COLUMN_SYNC_ID = "sync_id";
+        // One of the METRIC_ names below, or METRIC_FANOUT_PREFIX and a consumer name
+        public static final String COLUMN_NAME = "name";
+        public static final String COLUMN_VALUE = "value";
+
+        // Summary columns, next to COLUMN_NAME
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+        public static final String COLUMN_MAX = "max";
+
+        // How many of the most recent syncs the summary covers
+        public static final String PARAM_LIMIT = "limit";
+
+        // Times, in milliseconds.  The network phases are summed over every location.
+        public static final String METRIC_TOTAL = "total_ms";
+        public static final String METRIC_FETCH = "fetch_ms";
+        public static final String METRIC_CONNECT = "connect_ms";
+        public static final String METRIC_DOWNLOAD = "download_ms";
+        public static final String METRIC_PARSE = "parse_ms";
+        public static final String METRIC_DB_WRITE = "db_write_ms";
+        public static final String METRIC_DB_HOURLY_WRITE = "db_hourly_write_ms";
+        // Rolling the history archive up, on the syncs that do
+        public static final String METRIC_HISTORY_COMPACTION = "history_compaction_ms";
+        // Reading the preferred location's forecast for the post sync consumers
+        public static final String METRIC_SNAPSHOT_REBUILD = "snapshot_rebuild_ms";
+        public static final String METRIC_FANOUT_PREFIX = "fanout_ms:";
+        // Sizes and counts
+        public static final String METRIC_BYTES = "bytes";
+        public static final String METRIC_LOCATIONS = "locations";
+        public static final String METRIC_ROWS_FETCHED = "rows_fetched";
+        public static final String METRIC_ROWS_WRITTEN = "rows_written";
+        // The LocationStatus of the preferred location
+        public static final String METRIC_LOCATION_STATUS = "location_status";
+        // One of the ServerCircuitBreaker STATE_ constants
+        public static final String METRIC_BREAKER_STATE = "breaker_state";
+        // Percent of forecast snapshot lookups since the process started that didn't read the db
+        public static final String METRIC_SNAPSHOT_HIT_RATE = "snapshot_hit_pct";
+
+        public static Uri buildSummaryUri(int lastSyncs) {
+            return SUMMARY_URI.buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(lastSyncs)).build();
+        }
+
+        public static int getLimitFromUri(Uri uri, int defaultLimit) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return defaultLimit;
+        }
+    }
 }
@@ -15,25 +15,99 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * Where the platform has it (API 11 and up), the database is opened in write-ahead logging
+ * mode.  The loaders, widgets, Muzei, notifications and the wearable all read while the sync
+ * writes, and with a rollback journal each of those reads waits for the sync's transaction to
+ * commit.  In WAL mode they read the last committed data from their own connections instead.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
+    // If you change the database schema, you must increment the database version, and add a
+    // step to WeatherDbMigrations that takes the previous version's data along.
+    static final int DATABASE_VERSION = 8;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // The weather joined to its location, a row per location per day, kept by triggers so the
+    // queries by location setting read one table
+    static final String FORECAST_LIST_TABLE = "forecast_list";
+
+    // The rows of the forecast list table, as the triggers copy them
+    static final String FORECAST_LIST_SOURCE_VIEW = "forecast_list_source";
+
+    // Pages of cache for the writing connection.  The whole database is a few hundred
+    // kilobytes, so this holds it all without SQLite's default of 2000 pages.
+    static final int CACHE_SIZE_PAGES = 256;
+
+    // Let the log grow to about 4 MB (SQLite's own default; Android lowers it to 100 pages)
+    // before it is copied back, so a large sync checkpoints once rather than after every commit.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // A database of another name, for the tests that mustn't touch the provider's
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        if (sqLiteDatabase.isWriteAheadLoggingEnabled()) {
+            configure(sqLiteDatabase);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        // Before API 16 there is no onConfigure, and WAL has to be turned on once open
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+                !sqLiteDatabase.isReadOnly() && enableWriteAheadLogging(sqLiteDatabase)) {
+            configure(sqLiteDatabase);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean enableWriteAheadLogging(SQLiteDatabase sqLiteDatabase) {
+        return sqLiteDatabase.enableWriteAheadLogging();
+    }
+
+    // Tunes the connection that writes, once it is in WAL mode.  The reading connections keep
+    // the platform's settings.
+    private static void configure(SQLiteDatabase sqLiteDatabase) {
+        // In WAL mode NORMAL can lose the last commits on a power cut, but never corrupts the
+        // file, and it leaves the fsync out of every commit.  The next sync refetches anyway.
+        sqLiteDatabase.execSQL("PRAGMA synchronous = NORMAL");
+        sqLiteDatabase.execSQL("PRAGMA cache_size = " + CACHE_SIZE_PAGES);
+        // This pragma returns the new value, so it has to be run as a query
+        DatabaseUtils.longForQuery(sqLiteDatabase,
+                "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
     }
 
     @Override
@@ -45,8 +119,13 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_GEOHASH + " TEXT " +
                 " );";
+        // The near queries read ranges of this, one per cell of the map they cover
+        final String SQL_CREATE_LOCATION_GEOHASH_INDEX = "CREATE INDEX " +
+                LocationEntry.TABLE_NAME + "_" + LocationEntry.COLUMN_GEOHASH + " ON " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_GEOHASH + ");";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
                 // Why AutoIncrement here, and not above?
@@ -79,20 +158,177 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // One row per location per day, holding that day's 3 hourly samples packed in a blob
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SAMPLE_COUNT + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SAMPLES + " BLOB NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // A new forecast for the day replaces the old one whole
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // The pruned days, rolled up into weeks and months as they age.  The UNIQUE index is the
+        // one the range queries read: a location's rows in date order.
+        final String SQL_CREATE_HISTORY_TABLE = "CREATE TABLE " + HistoryEntry.TABLE_NAME + " (" +
+                HistoryEntry._ID + " INTEGER PRIMARY KEY," +
+                HistoryEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HistoryEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HistoryEntry.COLUMN_LAST_DATE + " INTEGER NOT NULL, " +
+                HistoryEntry.COLUMN_PERIOD + " INTEGER NOT NULL, " +
+                HistoryEntry.COLUMN_DAY_COUNT + " INTEGER NOT NULL, " +
+                HistoryEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HistoryEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                HistoryEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                HistoryEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HistoryEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HistoryEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HistoryEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // A day archived twice keeps its last forecast
+                " UNIQUE (" + HistoryEntry.COLUMN_LOC_KEY + ", " +
+                HistoryEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // One row per metric per sync, looked up by sync and by metric name
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY," +
+                SyncMetricsEntry.COLUMN_SYNC_ID + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_NAME + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_VALUE + " INTEGER NOT NULL " +
+                " );";
+        final String SQL_CREATE_SYNC_METRICS_INDEX = "CREATE INDEX " +
+                SyncMetricsEntry.TABLE_NAME + "_" + SyncMetricsEntry.COLUMN_SYNC_ID + " ON " +
+                SyncMetricsEntry.TABLE_NAME + " (" + SyncMetricsEntry.COLUMN_SYNC_ID + ");";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_GEOHASH_INDEX);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HISTORY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_INDEX);
+        for (String sql : createForecastListSql()) {
+            sqLiteDatabase.execSQL(sql);
+        }
+
+        // Whatever ids and forecasts were cached belonged to the database this one replaces
+        LocationIdCache.getInstance().invalidate();
+        ForecastSnapshotCache.getInstance().invalidate();
+    }
+
+    /**
+     * The forecast list table, the view it is copied from and the triggers that copy it.
+     *
+     * The list and the detail ask for a location's days by its setting.  Joined, that is a
+     * lookup of the location and then a range of the weather; here it is one range of the
+     * table's UNIQUE index, with every column already in the row.  Rather than have every
+     * writer remember the copy, the triggers make it whenever a weather or location row is
+     * inserted, updated or deleted.  A row the weather table's ON CONFLICT REPLACE deletes
+     * fires no trigger, so the copy of a newer forecast for the same day replaces the old one
+     * through the UNIQUE constraint instead.
+     */
+    static String[] createForecastListSql() {
+        return new String[]{
+                "CREATE TABLE " + FORECAST_LIST_TABLE + " (" +
+                        WeatherEntry._ID + " INTEGER PRIMARY KEY," +
+                        WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                        WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                        WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                        WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                        WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                        LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                        LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                        LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                        LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                        " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                        WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);",
+
+                // Every weather column, in order, then the location's
+                "CREATE VIEW " + FORECAST_LIST_SOURCE_VIEW + " AS SELECT " +
+                        WeatherEntry.TABLE_NAME + ".*, " +
+                        LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                        LocationEntry.COLUMN_CITY_NAME + ", " +
+                        LocationEntry.COLUMN_COORD_LAT + ", " +
+                        LocationEntry.COLUMN_COORD_LONG +
+                        " FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                        LocationEntry.TABLE_NAME + " ON " +
+                        WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+                        LocationEntry.TABLE_NAME + "." + LocationEntry._ID + ";",
+
+                forecastListTrigger("weather_insert", "INSERT", WeatherEntry.TABLE_NAME,
+                        copyForecastRows(WeatherEntry._ID, WeatherEntry._ID)),
+                forecastListTrigger("weather_update", "UPDATE", WeatherEntry.TABLE_NAME,
+                        deleteForecastRows(WeatherEntry._ID, WeatherEntry._ID) +
+                                copyForecastRows(WeatherEntry._ID, WeatherEntry._ID)),
+                forecastListTrigger("weather_delete", "DELETE", WeatherEntry.TABLE_NAME,
+                        deleteForecastRows(WeatherEntry._ID, WeatherEntry._ID)),
+                forecastListTrigger("location_insert", "INSERT", LocationEntry.TABLE_NAME,
+                        copyForecastRows(WeatherEntry.COLUMN_LOC_KEY, LocationEntry._ID)),
+                forecastListTrigger("location_update", "UPDATE", LocationEntry.TABLE_NAME,
+                        deleteForecastRows(WeatherEntry.COLUMN_LOC_KEY, LocationEntry._ID) +
+                                copyForecastRows(WeatherEntry.COLUMN_LOC_KEY, LocationEntry._ID)),
+                forecastListTrigger("location_delete", "DELETE", LocationEntry.TABLE_NAME,
+                        deleteForecastRows(WeatherEntry.COLUMN_LOC_KEY, LocationEntry._ID))
+        };
+    }
+
+    private static String forecastListTrigger(String name, String event, String table,
+                                              String statements) {
+        return "CREATE TRIGGER " + FORECAST_LIST_TABLE + "_" + name + " AFTER " + event +
+                " ON " + table + " BEGIN " + statements + "END;";
+    }
+
+    // Copies the joined rows whose column holds the new row's key
+    private static String copyForecastRows(String column, String newColumn) {
+        return "INSERT OR REPLACE INTO " + FORECAST_LIST_TABLE +
+                " SELECT * FROM " + FORECAST_LIST_SOURCE_VIEW +
+                " WHERE " + column + " = new." + newColumn + "; ";
+    }
+
+    // Deletes the copied rows whose column holds the old row's key
+    private static String deleteForecastRows(String column, String oldColumn) {
+        return "DELETE FROM " + FORECAST_LIST_TABLE +
+                " WHERE " + column + " = old." + oldColumn + "; ";
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion >= WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION) {
+            try {
+                WeatherDbMigrations.migrate(sqLiteDatabase, oldVersion, newVersion);
+                return;
+            } catch (SQLException e) {
+                // Still only a cache for online data, so losing it beats not opening at all
+                Log.e(LOG_TAG, "Migration from version " + oldVersion + " failed, starting over", e);
+            }
+        }
+        recreate(sqLiteDatabase);
+    }
+
+    // Discards the data and starts over, which is all we can do for versions older than the
+    // migrations.
+    private void recreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HistoryEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + FORECAST_LIST_TABLE);
+        sqLiteDatabase.execSQL("DROP VIEW IF EXISTS " + FORECAST_LIST_SOURCE_VIEW);
         onCreate(sqLiteDatabase);
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The steps that take an existing weather database from one version to the next, keeping the
+ * data in it, so a schema change doesn't send every device back to the network at once.
+ *
+ * Each step holds the SQL of its own version and must never change once shipped: a later
+ * schema change is a new step, with {@link WeatherDbHelper#onCreate} updated to match.
+ * TestDb checks that upgrading from every version ends with the same schema as a fresh install.
+ */
+final class WeatherDbMigrations {
+
+    // The version the first step starts from.  Anything older is recreated empty.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    /**
+     * One step of the schema, from {@code version - 1} to {@code version}.  It runs inside the
+     * upgrade transaction.
+     */
+    abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    // In version order, one per version after OLDEST_MIGRATABLE_VERSION
+    static final Migration[] MIGRATIONS = {
+            new AddSyncMetrics(),
+            new AddHourly(),
+            new AddWeatherListIndex(),
+            new AddForecastList(),
+            new AddHistory(),
+            new AddLocationGeohash()
+    };
+
+    private WeatherDbMigrations() {
+    }
+
+    /**
+     * Runs every step after {@code oldVersion}, up to and including {@code newVersion}.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                migration.migrate(db);
+            }
+        }
+    }
+
+    // 3: a row per metric per sync
+    static class AddSyncMetrics extends Migration {
+        AddSyncMetrics() {
+            super(3);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                    SyncMetricsEntry._ID + " INTEGER PRIMARY KEY," +
+                    SyncMetricsEntry.COLUMN_SYNC_ID + " INTEGER NOT NULL, " +
+                    SyncMetricsEntry.COLUMN_NAME + " TEXT NOT NULL, " +
+                    SyncMetricsEntry.COLUMN_VALUE + " INTEGER NOT NULL " +
+                    " );");
+            db.execSQL("CREATE INDEX " +
+                    SyncMetricsEntry.TABLE_NAME + "_" + SyncMetricsEntry.COLUMN_SYNC_ID + " ON " +
+                    SyncMetricsEntry.TABLE_NAME + " (" + SyncMetricsEntry.COLUMN_SYNC_ID + ");");
+        }
+    }
+
+    // 4: the 3 hourly forecast, a day per row
+    static class AddHourly extends Migration {
+        AddHourly() {
+            super(4);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                    HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                    HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                    HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                    HourlyEntry.COLUMN_SAMPLE_COUNT + " INTEGER NOT NULL, " +
+                    HourlyEntry.COLUMN_SAMPLES + " BLOB NOT NULL, " +
+                    " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                    LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                    " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                    HourlyEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);");
+        }
+    }
+
+    // 5: an index the forecast list can be read from without touching the weather table
+    static class AddWeatherListIndex extends Migration {
+        AddWeatherListIndex() {
+            super(5);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX weather_location_date ON " +
+                    WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ");");
+        }
+    }
+
+    // 6: the weather joined to its location in a table of its own, kept by triggers, in place
+    // of the index of version 5
+    static class AddForecastList extends Migration {
+        AddForecastList() {
+            super(6);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS weather_location_date");
+            db.execSQL("CREATE TABLE forecast_list (" +
+                    WeatherEntry._ID + " INTEGER PRIMARY KEY," +
+                    WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                    WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                    WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                    WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                    WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                    WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                    WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                    WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                    WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                    WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                    LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                    LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                    LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                    " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);");
+            db.execSQL("CREATE VIEW forecast_list_source AS SELECT " +
+                    WeatherEntry.TABLE_NAME + ".*, " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    LocationEntry.COLUMN_CITY_NAME + ", " +
+                    LocationEntry.COLUMN_COORD_LAT + ", " +
+                    LocationEntry.COLUMN_COORD_LONG +
+                    " FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                    LocationEntry.TABLE_NAME + " ON " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+                    LocationEntry.TABLE_NAME + "." + LocationEntry._ID + ";");
+            db.execSQL("CREATE TRIGGER forecast_list_weather_insert AFTER INSERT ON " +
+                    WeatherEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT OR REPLACE INTO forecast_list SELECT * FROM forecast_list_source" +
+                    " WHERE " + WeatherEntry._ID + " = new." + WeatherEntry._ID + "; END;");
+            db.execSQL("CREATE TRIGGER forecast_list_weather_update AFTER UPDATE ON " +
+                    WeatherEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM forecast_list" +
+                    " WHERE " + WeatherEntry._ID + " = old." + WeatherEntry._ID + "; " +
+                    "INSERT OR REPLACE INTO forecast_list SELECT * FROM forecast_list_source" +
+                    " WHERE " + WeatherEntry._ID + " = new." + WeatherEntry._ID + "; END;");
+            db.execSQL("CREATE TRIGGER forecast_list_weather_delete AFTER DELETE ON " +
+                    WeatherEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM forecast_list" +
+                    " WHERE " + WeatherEntry._ID + " = old." + WeatherEntry._ID + "; END;");
+            db.execSQL("CREATE TRIGGER forecast_list_location_insert AFTER INSERT ON " +
+                    LocationEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT OR REPLACE INTO forecast_list SELECT * FROM forecast_list_source" +
+                    " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = new." + LocationEntry._ID +
+                    "; END;");
+            db.execSQL("CREATE TRIGGER forecast_list_location_update AFTER UPDATE ON " +
+                    LocationEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM forecast_list" +
+                    " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = old." + LocationEntry._ID +
+                    "; " +
+                    "INSERT OR REPLACE INTO forecast_list SELECT * FROM forecast_list_source" +
+                    " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = new." + LocationEntry._ID +
+                    "; END;");
+            db.execSQL("CREATE TRIGGER forecast_list_location_delete AFTER DELETE ON " +
+                    LocationEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM forecast_list" +
+                    " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = old." + LocationEntry._ID +
+                    "; END;");
+            db.execSQL("INSERT INTO forecast_list SELECT * FROM forecast_list_source");
+        }
+    }
+
+    // 7: the archive of pruned days
+    static class AddHistory extends Migration {
+        AddHistory() {
+            super(7);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + HistoryEntry.TABLE_NAME + " (" +
+                    HistoryEntry._ID + " INTEGER PRIMARY KEY," +
+                    HistoryEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                    HistoryEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                    HistoryEntry.COLUMN_LAST_DATE + " INTEGER NOT NULL, " +
+                    HistoryEntry.COLUMN_PERIOD + " INTEGER NOT NULL, " +
+                    HistoryEntry.COLUMN_DAY_COUNT + " INTEGER NOT NULL, " +
+                    HistoryEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                    HistoryEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                    HistoryEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                    HistoryEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                    HistoryEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                    HistoryEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                    " FOREIGN KEY (" + HistoryEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                    LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                    " UNIQUE (" + HistoryEntry.COLUMN_LOC_KEY + ", " +
+                    HistoryEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);");
+        }
+    }
+
+    // 8: the geohash of every location, and an index on it for the near queries
+    static class AddLocationGeohash extends Migration {
+        AddLocationGeohash() {
+            super(8);
+        }
+
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                    LocationEntry.COLUMN_GEOHASH + " TEXT");
+            db.execSQL("CREATE INDEX location_geohash ON " +
+                    LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_GEOHASH + ");");
+
+            // SQLite can't compute a geohash, so the stored locations get theirs one by one
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME, new String[]{
+                    LocationEntry._ID,
+                    LocationEntry.COLUMN_COORD_LAT,
+                    LocationEntry.COLUMN_COORD_LONG}, null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (cursor.moveToNext()) {
+                    values.put(LocationEntry.COLUMN_GEOHASH,
+                            Geohash.encode(cursor.getDouble(1), cursor.getDouble(2)));
+                    db.update(LocationEntry.TABLE_NAME, values, LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(cursor.getLong(0))});
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -17,15 +17,37 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
@@ -34,44 +56,259 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int LOCATION_NEAR = 301;
+    static final int SYNC_METRICS = 400;
+    static final int SYNC_METRICS_SUMMARY = 401;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION = 501;
+    static final int HOURLY_WITH_LOCATION_AND_DATE = 502;
+    static final int HISTORY = 600;
+    static final int HISTORY_WITH_LOCATION = 601;
+    static final int HISTORY_WITH_LOCATION_AND_DATE = 602;
+
+    // Metrics of older syncs are dropped as new ones come in
+    static final int SYNC_METRICS_SYNCS_KEPT = 100;
+    static final int SYNC_METRICS_DEFAULT_LIMIT = 20;
+
+    //forecast_list AS weather
+    //The forecast list table holds the weather joined to its location, and is named as the weather
+    //table so that projections like weather._id still resolve
+    private static final String sForecastListTables =
+            WeatherDbHelper.FORECAST_LIST_TABLE + " AS " + WeatherContract.WeatherEntry.TABLE_NAME;
+
+    // The tables of the weather queries by location setting, so that TestDb can check their plans
+    static String getWeatherByLocationSettingTables() {
+        return sForecastListTables;
+    }
+
+    private static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static{
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    private static final SQLiteQueryBuilder sHistoryByLocationSettingQueryBuilder;
 
     static{
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
-        
-        //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+        //history INNER JOIN location ON history.location_id = location._id
+        sHistoryByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHistoryByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HistoryEntry.TABLE_NAME + " INNER JOIN " +
                         WeatherContract.LocationEntry.TABLE_NAME +
-                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
-                        "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+                        " ON " + WeatherContract.HistoryEntry.TABLE_NAME +
+                        "." + WeatherContract.HistoryEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    //location.location_setting = ?
+    // The tables of the history queries by location setting, so that TestHistory can check their
+    // plans
+    static String getHistoryByLocationSettingTables() {
+        return sHistoryByLocationSettingQueryBuilder.getTables();
+    }
+
+    //location_setting = ? AND history.date >= ? AND history.date <= ? AND history.last_date >= ?
+    //The rows covering a range start at most HistoryArchive.MAX_DAYS_COVERED before it, so the
+    //first two bounds keep the read to a short stretch of the (location_id, date) index
+    static final String sHistoryLocationSettingWithRangeSelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HistoryEntry.TABLE_NAME + "." +
+                    WeatherContract.HistoryEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.HistoryEntry.TABLE_NAME + "." +
+                    WeatherContract.HistoryEntry.COLUMN_DATE + " <= ? AND " +
+                    WeatherContract.HistoryEntry.TABLE_NAME + "." +
+                    WeatherContract.HistoryEntry.COLUMN_LAST_DATE + " >= ? ";
+
+    private static final String sHistoryOrder = WeatherContract.HistoryEntry.TABLE_NAME + "." +
+            WeatherContract.HistoryEntry.COLUMN_DATE + " ASC";
+
+    // Samples come out in time order: by day, and within a day as they were packed
+    private static final String sHourlyOrder =
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " ASC, " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE + " ASC";
+
+    //weather.date <= ?
+    private static final String sPruneSelection =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //hourly.date <= ?
+    private static final String sHourlyPruneSelection =
+            WeatherContract.HourlyEntry.COLUMN_DATE + " <= ? ";
+
+    //INSERT OR IGNORE INTO location (location_setting, city_name, coord_lat, coord_long, geohash) VALUES (?, ?, ?, ?, ?)
+    private static final String sInsertLocationSql = "INSERT OR IGNORE INTO " +
+            WeatherContract.LocationEntry.TABLE_NAME + " (" +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + ", " +
+            WeatherContract.LocationEntry.COLUMN_GEOHASH + ") VALUES (?, ?, ?, ?, ?)";
+
+    // What a near query reads of each location, and what it can return: the same, and the
+    // distance
+    private static final String[] sNearQueryColumns = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_GEOHASH
+    };
+    private static final List<String> sNearColumns;
+
+    static{
+        sNearColumns = new ArrayList<String>(Arrays.asList(sNearQueryColumns));
+        sNearColumns.add(WeatherContract.LocationEntry.COLUMN_DISTANCE);
+    }
+
+    // The search for the nearest locations starts this far out, and goes NEAREST_SEARCH_GROWTH
+    // times farther each time it finds too few
+    static final double NEAREST_SEARCH_START_KM = 10;
+    static final int NEAREST_SEARCH_GROWTH = 4;
+
+    //INSERT OR REPLACE INTO hourly (location_id, date, sample_count, samples) VALUES (?, ?, ?, ?)
+    private static final String sInsertHourlySql = "INSERT OR REPLACE INTO " +
+            WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", " +
+            WeatherContract.HourlyEntry.COLUMN_DATE + ", " +
+            WeatherContract.HourlyEntry.COLUMN_SAMPLE_COUNT + ", " +
+            WeatherContract.HourlyEntry.COLUMN_SAMPLES + ") VALUES (?, ?, ?, ?)";
+
+    //location_setting = ?
+    //Unqualified, as it is read from the forecast list table as well as the location table
     private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //location_setting = ? AND date >= ?
+    static final String sLocationSettingWithStartDateSelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //location_setting = ? AND date = ?
+    static final String sLocationSettingAndDaySelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    // The columns of a weather row as the sync writes it, in the order bindWeather binds them.
+    // The location and the date, the table's unique key, come first.
+    private static final String[] sWeatherColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+    private static final String sInsertWeatherSql =
+            buildInsertSql(WeatherContract.WeatherEntry.TABLE_NAME, sWeatherColumns);
+    private static final String sUpdateWeatherSql = buildUpdateWeatherSql();
+    private static final String sLookupWeatherSql = buildLookupWeatherSql();
+
+    // The weather queries by location setting come in a handful of shapes: the list, the detail
+    // and the widgets each ask with their own projection and order, over and over.
+    private static final int QUERY_SQL_CACHE_SIZE = 16;
+
+    // The SQL of each shape, least recently used first
+    private final LinkedHashMap<QueryShape, String> mQuerySql =
+            new LinkedHashMap<QueryShape, String>(QUERY_SQL_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<QueryShape, String> eldest) {
+                    return size() > QUERY_SQL_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * What a weather query by location setting is built from, besides its arguments.  The
+     * selection stands for the match code, since each code uses one of the constant selections.
+     */
+    private static final class QueryShape {
+        final String selection;
+        final String[] projection;
+        final String sortOrder;
+
+        QueryShape(String selection, String[] projection, String sortOrder) {
+            this.selection = selection;
+            this.projection = projection;
+            this.sortOrder = sortOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryShape)) {
+                return false;
+            }
+            QueryShape other = (QueryShape) o;
+            return selection.equals(other.selection)
+                    && Arrays.equals(projection, other.projection)
+                    && (sortOrder == null ? other.sortOrder == null
+                            : sortOrder.equals(other.sortOrder));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * selection.hashCode() + Arrays.hashCode(projection))
+                    + (sortOrder == null ? 0 : sortOrder.hashCode());
+        }
+    }
+
+    /**
+     * Runs a weather query by location setting, building its SQL only the first time its shape
+     * is seen.  There is no need to hold compiled statements as well: each SQLite connection
+     * keeps the statements it has prepared by their SQL, so the same string is prepared once.
+     * Package-private so that TestQueryBenchmark can compare it with the forecast cache.
+     */
+    Cursor queryWeatherByLocationSetting(String[] projection, String selection,
+                                                 String[] selectionArgs, String sortOrder) {
+        QueryShape shape = new QueryShape(selection, projection, sortOrder);
+        String sql;
+        synchronized (mQuerySql) {
+            sql = mQuerySql.get(shape);
+            if (sql == null) {
+                sql = SQLiteQueryBuilder.buildQueryString(false,
+                        sForecastListTables, projection, selection,
+                        null, null, sortOrder, null);
+                // The caller may change its array later, but not the key
+                mQuerySql.put(new QueryShape(selection,
+                        projection == null ? null : projection.clone(), sortOrder), sql);
+            }
+        }
+        return mOpenHelper.getReadableDatabase().rawQuery(sql, selectionArgs);
+    }
+
+    // The number of query shapes whose SQL is held, for the tests
+    int getQuerySqlCacheSize() {
+        synchronized (mQuerySql) {
+            return mQuerySql.size();
+        }
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
 
+        Cursor cursor = queryForecastCache(locationSetting, startDate, false, projection,
+                sortOrder);
+        if (cursor != null) {
+            return cursor;
+        }
+
         String[] selectionArgs;
         String selection;
 
@@ -83,14 +320,7 @@ public class WeatherProvider extends ContentProvider {
             selection = sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+        return queryWeatherByLocationSetting(projection, selection, selectionArgs, sortOrder);
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
@@ -98,16 +328,128 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        Cursor cursor = queryForecastCache(locationSetting, date, true, projection, sortOrder);
+        if (cursor != null) {
+            return cursor;
+        }
+        return queryWeatherByLocationSetting(projection, sLocationSettingAndDaySelection,
+                new String[]{locationSetting, Long.toString(date)}, sortOrder);
+    }
+
+    /**
+     * Answers a weather query by location setting from the {@link ForecastSnapshotCache},
+     * without SQLite once the location's days are held.
+     *
+     * @param date The first day wanted, or 0 for all of them
+     * @param oneDay Whether only that day is wanted
+     * @return the days, or null if the projection or order asks for more than a snapshot's
+     * columns in date order, which only SQLite can answer
+     */
+    private Cursor queryForecastCache(String locationSetting, long date, boolean oneDay,
+                                      String[] projection, String sortOrder) {
+        int[] columns = ForecastCursor.columnsOf(projection);
+        if (columns == null || !isDateOrder(sortOrder)) {
+            return null;
+        }
+        ForecastSnapshot forecast = ForecastSnapshotCache.getInstance()
+                .get(mOpenHelper.getReadableDatabase(), locationSetting);
+        int first = forecast.searchFirstDayFrom(date);
+        int count = forecast.size() - first;
+        if (oneDay) {
+            count = count > 0 && forecast.getDate(first) == date ? 1 : 0;
+        }
+        return new ForecastCursor(forecast, projection, columns, first, count);
+    }
+
+    // Whether the order is by date ascending.  No order at all is too, as the forecast list
+    // table is read through its (location_setting, date) index.
+    private static boolean isDateOrder(String sortOrder) {
+        if (sortOrder == null) {
+            return true;
+        }
+        String order = sortOrder.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+        if (order.endsWith(" asc")) {
+            order = order.substring(0, order.length() - " asc".length());
+        }
+        return order.equals(WeatherContract.WeatherEntry.COLUMN_DATE) || order.equals(
+                WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry.COLUMN_DATE);
+    }
+
+    private Cursor getHourly(Uri uri, String[] projection, String selection,
+                             String[] selectionArgs) {
+        Cursor days;
+        switch (sUriMatcher.match(uri)) {
+            case HOURLY_WITH_LOCATION_AND_DATE:
+                days = sHourlyByLocationSettingQueryBuilder.query(
+                        mOpenHelper.getReadableDatabase(),
+                        HourlyCursor.DAY_COLUMNS,
+                        sLocationSettingSelection + " AND " +
+                                WeatherContract.HourlyEntry.COLUMN_DATE + " = ? ",
+                        new String[]{WeatherContract.HourlyEntry.getLocationSettingFromUri(uri),
+                                Long.toString(WeatherContract.HourlyEntry.getDateFromUri(uri))},
+                        null,
+                        null,
+                        sHourlyOrder
+                );
+                break;
+            case HOURLY_WITH_LOCATION:
+                days = sHourlyByLocationSettingQueryBuilder.query(
+                        mOpenHelper.getReadableDatabase(),
+                        HourlyCursor.DAY_COLUMNS,
+                        sLocationSettingSelection,
+                        new String[]{WeatherContract.HourlyEntry.getLocationSettingFromUri(uri)},
+                        null,
+                        null,
+                        sHourlyOrder
+                );
+                break;
+            default:
+                // The selection can only use the stored columns
+                days = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        HourlyCursor.DAY_COLUMNS,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sHourlyOrder
+                );
+                break;
+        }
+        return new HourlyCursor(days, projection);
+    }
+
+    private Cursor getHistoryByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        long startDate;
+        long endDate;
+        if (sUriMatcher.match(uri) == HISTORY_WITH_LOCATION_AND_DATE) {
+            startDate = WeatherContract.HistoryEntry.getDateFromUri(uri);
+            endDate = startDate;
+        } else {
+            startDate = WeatherContract.HistoryEntry.getStartDateFromUri(uri);
+            endDate = WeatherContract.HistoryEntry.getEndDateFromUri(uri);
+        }
+        return sHistoryByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                sHistoryLocationSettingWithRangeSelection,
+                getHistoryRangeArgs(WeatherContract.HistoryEntry.getLocationSettingFromUri(uri),
+                        startDate, endDate),
                 null,
                 null,
-                sortOrder
+                sortOrder == null ? sHistoryOrder : sortOrder
         );
     }
 
+    // The arguments of sHistoryLocationSettingWithRangeSelection for the days from startDate to
+    // endDate, both included
+    static String[] getHistoryRangeArgs(String locationSetting, long startDate, long endDate) {
+        long earliestStart = Math.max(0,
+                startDate - HistoryArchive.MAX_DAYS_COVERED * 1000L * 60 * 60 * 24);
+        return new String[]{locationSetting, Long.toString(earliestStart),
+                Long.toString(endDate), Long.toString(startDate)};
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +472,20 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" +
+                WeatherContract.PATH_NEAR, LOCATION_NEAR);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS + "/" +
+                WeatherContract.SyncMetricsEntry.PATH_SUMMARY, SYNC_METRICS_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/#", HOURLY_WITH_LOCATION_AND_DATE);
+
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY, HISTORY);
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY + "/*", HISTORY_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY + "/*/#", HISTORY_WITH_LOCATION_AND_DATE);
         return matcher;
     }
 
@@ -163,7 +519,21 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
+            case LOCATION_NEAR:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case SYNC_METRICS_SUMMARY:
+                return WeatherContract.SyncMetricsEntry.SUMMARY_CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+            case HOURLY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HISTORY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.HistoryEntry.CONTENT_ITEM_TYPE;
+            case HISTORY:
+            case HISTORY_WITH_LOCATION:
+                return WeatherContract.HistoryEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -213,6 +583,61 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "location/near"
+            case LOCATION_NEAR: {
+                retCursor = getLocationsNear(uri, projection);
+                // Changes are announced on the location uri, which this one descends from
+                retCursor.setNotificationUri(getContext().getContentResolver(),
+                        WeatherContract.LocationEntry.CONTENT_URI);
+                return retCursor;
+            }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_metrics/summary"
+            case SYNC_METRICS_SUMMARY: {
+                retCursor = getSyncMetricsSummary(uri);
+                // Changes are announced on the metrics uri, which this one descends from
+                retCursor.setNotificationUri(getContext().getContentResolver(),
+                        WeatherContract.SyncMetricsEntry.CONTENT_URI);
+                return retCursor;
+            }
+            // "hourly", "hourly/*" and "hourly/*/*"
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+            case HOURLY_WITH_LOCATION_AND_DATE: {
+                retCursor = getHourly(uri, projection, selection, selectionArgs);
+                break;
+            }
+            // "history/*" and "history/*/*"
+            case HISTORY_WITH_LOCATION:
+            case HISTORY_WITH_LOCATION_AND_DATE: {
+                retCursor = getHistoryByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "history"
+            case HISTORY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -238,14 +663,29 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                HashMap<Long, Set<Long>> touched = new HashMap<Long, Set<Long>>();
+                addTouched(touched, values);
+                notifyWeatherChanged(touched);
+                return returnUri;
             }
             case LOCATION: {
+                putGeohash(values);
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Weather already stored for the new _id joins the forecast list now
+                invalidateForecasts();
+                break;
+            }
+            case SYNC_METRICS: {
+                long _id = db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                pruneSyncMetrics(db);
                 break;
             }
             default:
@@ -260,16 +700,37 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        if (match == WEATHER) {
+            return deleteWeather(db, selection, selectionArgs);
+        }
+        if (match == HISTORY && WeatherContract.HistoryEntry.isCompactUri(uri)) {
+            rowsDeleted = HistoryArchive.compact(db,
+                    WeatherContract.HistoryEntry.getCompactDateFromUri(uri));
+            // Rolling up changes rows even where it removes none
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.HistoryEntry.CONTENT_URI, null);
+            return rowsDeleted;
+        }
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                LocationIdCache.getInstance().invalidate();
+                invalidateForecasts();
+                break;
+            case SYNC_METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HISTORY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HistoryEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -281,11 +742,45 @@ public class WeatherProvider extends ContentProvider {
         return rowsDeleted;
     }
 
+    /**
+     * Deletes weather rows, finding first which locations and days they were so that only
+     * those are notified.  Deleting every row notifies the whole weather URI instead.
+     */
+    private int deleteWeather(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (selection == null) {
+            int rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME, "1", null);
+            if (rowsDeleted != 0) {
+                notifyWeatherChanged(null);
+            }
+            return rowsDeleted;
+        }
+
+        HashMap<Long, Set<Long>> touched = new HashMap<Long, Set<Long>>();
+        int rowsDeleted;
+        db.beginTransaction();
+        try {
+            rowsDeleted = !findTouched(db, selection, selectionArgs, touched) ? 0 : db.delete(
+                    WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyWeatherChanged(touched);
+        return rowsDeleted;
+    }
+
     private void normalizeDate(ContentValues values) {
-        // normalize the date value
-        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
-            long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+        normalizeDate(values, TimeZone.getDefault());
+    }
+
+    private static void normalizeDate(ContentValues values, TimeZone zone) {
+        // normalize the date value, leaving it alone if it already is
+        Long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (dateValue != null) {
+            long normalized = WeatherContract.normalizeDate(dateValue, zone);
+            if (normalized != dateValue) {
+                values.put(WeatherContract.WeatherEntry.COLUMN_DATE, normalized);
+            }
         }
     }
 
@@ -298,13 +793,11 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER:
-                normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                return updateWeather(db, values, selection, selectionArgs);
             case LOCATION:
-                rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                rowsUpdated = updateLocations(db, values, selection, selectionArgs);
+                LocationIdCache.getInstance().invalidate();
+                invalidateForecasts();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -315,33 +808,841 @@ public class WeatherProvider extends ContentProvider {
         return rowsUpdated;
     }
 
+    // Sets the geohash of a location's coordinates, if it has both
+    private static void putGeohash(ContentValues values) {
+        Double lat = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        Double lon = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (lat != null && lon != null) {
+            values.put(WeatherContract.LocationEntry.COLUMN_GEOHASH, Geohash.encode(lat, lon));
+        }
+    }
+
+    /**
+     * Updates locations, keeping their geohashes.  Moving a location on one axis only needs the
+     * other from the row, so which rows they were is found first, before the new coordinates
+     * can change what the selection matches, and their geohashes are set after.
+     */
+    private int updateLocations(SQLiteDatabase db, ContentValues values, String selection,
+                                String[] selectionArgs) {
+        boolean hasLat = values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        boolean hasLong = values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (hasLat == hasLong) {
+            putGeohash(values);
+            return db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
+                    selectionArgs);
+        }
+
+        int rowsUpdated;
+        db.beginTransaction();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID},
+                    selection, selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
+                    selectionArgs);
+
+            ContentValues geohash = new ContentValues();
+            String[] idArgs = new String[1];
+            for (long id : ids) {
+                idArgs[0] = Long.toString(id);
+                cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                        new String[]{WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                                WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                        WeatherContract.LocationEntry._ID + " = ?", idArgs, null, null, null);
+                try {
+                    if (!cursor.moveToFirst()) {
+                        continue;
+                    }
+                    geohash.put(WeatherContract.LocationEntry.COLUMN_GEOHASH,
+                            Geohash.encode(cursor.getDouble(0), cursor.getDouble(1)));
+                } finally {
+                    cursor.close();
+                }
+                db.update(WeatherContract.LocationEntry.TABLE_NAME, geohash,
+                        WeatherContract.LocationEntry._ID + " = ?", idArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Updates weather rows, notifying the locations and days they were.  Moving rows to another
+     * location or day notifies the whole weather URI, as where they went isn't known here.
+     */
+    private int updateWeather(SQLiteDatabase db, ContentValues values, String selection,
+                              String[] selectionArgs) {
+        normalizeDate(values);
+        boolean moves = values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY) ||
+                values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE);
+        HashMap<Long, Set<Long>> touched = new HashMap<Long, Set<Long>>();
+        int rowsUpdated;
+        db.beginTransaction();
+        try {
+            if (!moves) {
+                findTouched(db, selection, selectionArgs, touched);
+            }
+            rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
+                    selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowsUpdated != 0) {
+            notifyWeatherChanged(moves ? null : touched);
+        }
+        return rowsUpdated;
+    }
+
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                if (WeatherContract.WeatherEntry.isReplaceUri(uri)) {
+                    return replaceWeather(db, values,
+                            WeatherContract.WeatherEntry.getPruneDateFromUri(uri));
+                }
+                if (WeatherContract.WeatherEntry.isDiffUri(uri)) {
+                    return bulkInsertChangedWeather(db, values);
+                }
+                HashMap<Long, Set<Long>> touched = new HashMap<Long, Set<Long>>();
+                int returnCount = bulkInsertWeather(db, values, touched);
+                notifyWeatherChanged(touched);
+                return returnCount;
+            case LOCATION:
+                int locationCount = bulkInsertMissingLocations(db, values);
+                if (locationCount > 0) {
+                    invalidateForecasts();
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return locationCount;
+            case SYNC_METRICS:
                 db.beginTransaction();
-                int returnCount = 0;
+                int metricCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                        if (db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, value) != -1) {
+                            metricCount++;
                         }
                     }
+                    pruneSyncMetrics(db);
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
                 getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                return metricCount;
+            case HOURLY:
+                return bulkInsertHourly(db, values,
+                        WeatherContract.HourlyEntry.isReplaceUri(uri)
+                                ? WeatherContract.HourlyEntry.getPruneDateFromUri(uri) : null);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Inserts weather rows through one compiled statement, binding each column as its type.  A
+     * row with other columns than {@link #sWeatherColumns} goes through
+     * {@link SQLiteDatabase#insert} instead.  As there, a row the constraints reject is logged
+     * and skipped rather than failing the whole batch.
+     *
+     * @param touched Gets the location and date of every row inserted
+     * @return the number of rows inserted
+     */
+    private int bulkInsertWeather(SQLiteDatabase db, ContentValues[] values,
+                                  Map<Long, Set<Long>> touched) {
+        TimeZone zone = TimeZone.getDefault();
+        int returnCount = 0;
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(sInsertWeatherSql);
+        try {
+            for (ContentValues value : values) {
+                normalizeDate(value, zone);
+                long _id;
+                if (hasWeatherColumns(value)) {
+                    _id = executeInsert(insert, value);
+                } else {
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                }
+                if (_id != -1) {
+                    returnCount++;
+                    addTouched(touched, value);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    //INSERT INTO table (column, ...) VALUES (?, ...)
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    //UPDATE weather SET location_id = ?1, date = ?2, ... WHERE _id = ?11
+    private static String buildUpdateWeatherSql() {
+        StringBuilder sql = new StringBuilder("UPDATE ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" SET ");
+        for (int i = 0; i < sWeatherColumns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(sWeatherColumns[i]).append(" = ?").append(i + 1);
+        }
+        return sql.append(" WHERE ").append(WeatherContract.WeatherEntry._ID).append(" = ?")
+                .append(sWeatherColumns.length + 1).toString();
+    }
+
+    //SELECT IFNULL((SELECT CASE WHEN weather_id IS ?3 AND ... THEN 0 ELSE _id END FROM weather
+    //WHERE location_id = ?1 AND date = ?2), -1)
+    //0 when the stored row is the same, its _id when it differs and -1 when there is none
+    private static String buildLookupWeatherSql() {
+        StringBuilder sql = new StringBuilder("SELECT IFNULL((SELECT CASE WHEN ");
+        for (int i = 2; i < sWeatherColumns.length; i++) {
+            sql.append(i == 2 ? "" : " AND ").append(sWeatherColumns[i]).append(" IS ?")
+                    .append(i + 1);
+        }
+        return sql.append(" THEN 0 ELSE ").append(WeatherContract.WeatherEntry._ID)
+                .append(" END FROM ").append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" WHERE ").append(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                .append(" = ?1 AND ").append(WeatherContract.WeatherEntry.COLUMN_DATE)
+                .append(" = ?2), -1)").toString();
+    }
+
+    private static boolean hasWeatherColumns(ContentValues value) {
+        if (value.size() != sWeatherColumns.length) {
+            return false;
+        }
+        for (String column : sWeatherColumns) {
+            if (!value.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Binds a row to parameters 1 to 10, in the order of sWeatherColumns
+    private static void bindWeather(SQLiteProgram statement, ContentValues value) {
+        bindLong(statement, 1, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+        bindLong(statement, 2, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        bindLong(statement, 3, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        String description = value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        if (description == null) {
+            statement.bindNull(4);
+        } else {
+            statement.bindString(4, description);
+        }
+        bindDouble(statement, 5, value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+        bindDouble(statement, 6, value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
+        bindDouble(statement, 7, value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY));
+        bindDouble(statement, 8, value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE));
+        bindDouble(statement, 9, value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED));
+        bindDouble(statement, 10, value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES));
+    }
+
+    // Null is left for the NOT NULL constraints to reject, as SQLiteDatabase.insert would
+    private static void bindLong(SQLiteProgram statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    private static void bindDouble(SQLiteProgram statement, int index, Double value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    private static long executeInsert(SQLiteStatement insert, ContentValues value) {
+        bindWeather(insert, value);
+        try {
+            return insert.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + value, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the locations whose setting isn't in the table yet, in one transaction, and leaves
+     * the ones that are as they were.
+     *
+     * @return the number of locations added
+     */
+    private int bulkInsertMissingLocations(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(sInsertLocationSql);
+        try {
+            for (ContentValues value : values) {
+                insert.bindString(1, value.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+                insert.bindString(2, value.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_CITY_NAME));
+                insert.bindDouble(3, value.getAsDouble(
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT));
+                insert.bindDouble(4, value.getAsDouble(
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+                insert.bindString(5, Geohash.encode(
+                        value.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                        value.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG)));
+                // -1 when the setting was already there and the row was ignored
+                if (insert.executeInsert() != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Writes the packed days of the hourly forecast through one compiled statement, in one
+     * transaction.  A day that's already stored for the location is replaced whole.  Observers
+     * are told once, if any day was written or deleted.
+     *
+     * @param pruneDate Every day on or before this is deleted in the same transaction, or null
+     *                  to keep them
+     * @return the number of days written
+     */
+    private int bulkInsertHourly(SQLiteDatabase db, ContentValues[] values, Long pruneDate) {
+        TimeZone zone = TimeZone.getDefault();
+        int returnCount = 0;
+        int prunedCount = 0;
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(sInsertHourlySql);
+        try {
+            for (ContentValues value : values) {
+                insert.bindLong(1, value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY));
+                insert.bindLong(2, WeatherContract.normalizeDate(
+                        value.getAsLong(WeatherContract.HourlyEntry.COLUMN_DATE), zone));
+                insert.bindLong(3, value.getAsInteger(WeatherContract.HourlyEntry.COLUMN_SAMPLE_COUNT));
+                insert.bindBlob(4, value.getAsByteArray(WeatherContract.HourlyEntry.COLUMN_SAMPLES));
+                if (insert.executeInsert() != -1) {
+                    returnCount++;
+                }
+            }
+            if (pruneDate != null) {
+                prunedCount = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                        sHourlyPruneSelection, new String[] {Long.toString(pruneDate)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+        if (returnCount > 0 || prunedCount > 0) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.HourlyEntry.CONTENT_URI, null);
+        }
+        return returnCount;
+    }
+
+    //sync_id IN (the ids of the most recent syncs)
+    private static String recentSyncsSelection(int syncs) {
+        return WeatherContract.SyncMetricsEntry.COLUMN_SYNC_ID + " IN (SELECT DISTINCT " +
+                WeatherContract.SyncMetricsEntry.COLUMN_SYNC_ID + " FROM " +
+                WeatherContract.SyncMetricsEntry.TABLE_NAME + " ORDER BY " +
+                WeatherContract.SyncMetricsEntry.COLUMN_SYNC_ID + " DESC LIMIT " + syncs + ")";
+    }
+
+    private void pruneSyncMetrics(SQLiteDatabase db) {
+        db.delete(WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                "NOT " + recentSyncsSelection(SYNC_METRICS_SYNCS_KEPT), null);
+    }
+
+    /**
+     * Count, median, 95th percentile and maximum of every metric over the last syncs.  SQLite
+     * has no percentile function, so the values come back sorted and are ranked here.
+     */
+    private Cursor getSyncMetricsSummary(Uri uri) {
+        int limit = WeatherContract.SyncMetricsEntry.getLimitFromUri(
+                uri, SYNC_METRICS_DEFAULT_LIMIT);
+        Cursor values = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                new String[]{WeatherContract.SyncMetricsEntry.COLUMN_NAME,
+                        WeatherContract.SyncMetricsEntry.COLUMN_VALUE},
+                recentSyncsSelection(limit),
+                null,
+                null,
+                null,
+                WeatherContract.SyncMetricsEntry.COLUMN_NAME + " ASC, " +
+                        WeatherContract.SyncMetricsEntry.COLUMN_VALUE + " ASC"
+        );
+
+        MatrixCursor summary = new MatrixCursor(new String[]{
+                WeatherContract.SyncMetricsEntry.COLUMN_NAME,
+                WeatherContract.SyncMetricsEntry.COLUMN_COUNT,
+                WeatherContract.SyncMetricsEntry.COLUMN_P50,
+                WeatherContract.SyncMetricsEntry.COLUMN_P95,
+                WeatherContract.SyncMetricsEntry.COLUMN_MAX});
+        try {
+            String name = null;
+            List<Long> sorted = new ArrayList<Long>();
+            while (values.moveToNext()) {
+                String rowName = values.getString(0);
+                if (name != null && !name.equals(rowName)) {
+                    addSummaryRow(summary, name, sorted);
+                    sorted.clear();
+                }
+                name = rowName;
+                sorted.add(values.getLong(1));
+            }
+            if (name != null) {
+                addSummaryRow(summary, name, sorted);
+            }
+        } finally {
+            values.close();
+        }
+        return summary;
+    }
+
+    /**
+     * The locations near the uri's point, nearest first, with their distance from it.  Without
+     * a radius the search starts NEAREST_SEARCH_START_KM out and widens until it has the
+     * limit's locations: anything outside the circle it stopped at is farther than them.
+     */
+    private Cursor getLocationsNear(Uri uri, String[] projection) {
+        double lat = WeatherContract.LocationEntry.getLatFromUri(uri);
+        double lon = WeatherContract.LocationEntry.getLongFromUri(uri);
+        double radiusKm = WeatherContract.LocationEntry.getRadiusFromUri(uri);
+        int limit = WeatherContract.LocationEntry.getLimitFromUri(uri);
+
+        String[] columns = projection == null ?
+                sNearColumns.toArray(new String[sNearColumns.size()]) : projection;
+        int[] columnIndexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIndexes[i] = sNearColumns.indexOf(columns[i]);
+            if (columnIndexes[i] == -1) {
+                throw new IllegalArgumentException("Unknown column " + columns[i] + " for " + uri);
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        List<Object[]> found;
+        if (Double.isInfinite(radiusKm)) {
+            double searchKm = NEAREST_SEARCH_START_KM;
+            found = findLocationsWithin(db, lat, lon, searchKm);
+            while (found.size() < limit && searchKm < Geohash.MAX_DISTANCE_KM) {
+                searchKm *= NEAREST_SEARCH_GROWTH;
+                found = findLocationsWithin(db, lat, lon, searchKm);
+            }
+        } else {
+            found = findLocationsWithin(db, lat, lon, radiusKm);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, Math.min(found.size(), limit));
+        for (int i = 0; i < found.size() && i < limit; i++) {
+            Object[] location = found.get(i);
+            Object[] row = new Object[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                row[j] = location[columnIndexes[j]];
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Every location within the distance of the point, nearest first, as rows of
+     * sNearColumns.  The index gives the locations in the cells around the point; their
+     * distances leave out the ones in the corners.
+     */
+    private static List<Object[]> findLocationsWithin(SQLiteDatabase db, double lat, double lon,
+                                                      double radiusKm) {
+        List<String> cells = Geohash.coverCells(lat, lon, radiusKm);
+        // No cells when the circle takes in most of the world, and every location is read
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME, sNearQueryColumns,
+                cells == null ? null : buildGeohashSelection(cells.size()),
+                cells == null ? null : buildGeohashArgs(cells),
+                null, null, null);
+        List<Object[]> found = new ArrayList<Object[]>();
+        try {
+            while (cursor.moveToNext()) {
+                double locationLat = cursor.getDouble(3);
+                double locationLong = cursor.getDouble(4);
+                double distanceKm = Geohash.distanceKm(lat, lon, locationLat, locationLong);
+                if (distanceKm <= radiusKm) {
+                    found.add(new Object[]{cursor.getLong(0), cursor.getString(1),
+                            cursor.getString(2), locationLat, locationLong, cursor.getString(5),
+                            distanceKm});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(found, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return Double.compare((Double) a[6], (Double) b[6]);
+            }
+        });
+        return found;
+    }
+
+    //(geohash >= ? AND geohash < ?) OR (geohash >= ? AND geohash < ?) ...
+    //A range of the geohash index per cell, from the cell's prefix to just after the last
+    //geohash that starts with it
+    static String buildGeohashSelection(int cellCount) {
+        StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < cellCount; i++) {
+            if (i > 0) {
+                selection.append(" OR ");
+            }
+            selection.append("(").append(WeatherContract.LocationEntry.COLUMN_GEOHASH)
+                    .append(" >= ? AND ").append(WeatherContract.LocationEntry.COLUMN_GEOHASH)
+                    .append(" < ?)");
+        }
+        return selection.toString();
+    }
+
+    static String[] buildGeohashArgs(List<String> cells) {
+        String[] args = new String[2 * cells.size()];
+        for (int i = 0; i < cells.size(); i++) {
+            args[2 * i] = cells.get(i);
+            args[2 * i + 1] = cells.get(i) + Geohash.AFTER_LAST;
+        }
+        return args;
+    }
+
+    private static void addSummaryRow(MatrixCursor summary, String name, List<Long> sorted) {
+        summary.addRow(new Object[]{name, sorted.size(), percentile(sorted, 50),
+                percentile(sorted, 95), sorted.get(sorted.size() - 1)});
+    }
+
+    // Nearest rank, so the result is always a value that was actually recorded
+    static long percentile(List<Long> sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    /**
+     * The diff mode of bulkInsert.  Rows are matched with what's stored by location and date,
+     * which is the table's unique key, so an unchanged forecast day costs one indexed lookup
+     * instead of a delete and a reinsert, and keeps its _ID.
+     *
+     * @return the number of rows inserted or updated
+     */
+    private int bulkInsertChangedWeather(SQLiteDatabase db, ContentValues[] values) {
+        HashMap<Long, Set<Long>> touched = new HashMap<Long, Set<Long>>();
+        int writtenCount;
+        db.beginTransaction();
+        try {
+            writtenCount = writeChangedWeather(db, values, touched);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // Nothing changed means nothing for the loaders to re-query
+        notifyWeatherChanged(touched);
+        return writtenCount;
+    }
+
+    /**
+     * The replace mode of bulkInsert: writes the rows that changed, as the diff mode does, and
+     * moves every row dated on or before {@code pruneDate} to the history table, in a single
+     * transaction.  Instead of a notification on the whole weather URI per step, each location
+     * that gained, changed or lost a day gets exactly one, once it's all committed.
+     *
+     * @return the number of rows inserted or updated
+     */
+    private int replaceWeather(SQLiteDatabase db, ContentValues[] values, long pruneDate) {
+        String[] pruneArgs = new String[]{Long.toString(pruneDate)};
+        HashMap<Long, Set<Long>> touched = new HashMap<Long, Set<Long>>();
+        int writtenCount;
+        boolean archived = false;
+        db.beginTransaction();
+        try {
+            writtenCount = writeChangedWeather(db, values, touched);
+
+            // The days going, found before they're gone
+            if (findTouched(db, sPruneSelection, pruneArgs, touched)) {
+                HistoryArchive.archive(db, sPruneSelection, pruneArgs);
+                db.delete(WeatherContract.WeatherEntry.TABLE_NAME, sPruneSelection, pruneArgs);
+                archived = true;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyWeatherChanged(touched);
+        if (archived) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.HistoryEntry.CONTENT_URI, null);
+        }
+        return writtenCount;
+    }
+
+    // Records the location and date of a weather row
+    private static void addTouched(Map<Long, Set<Long>> touched, ContentValues value) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            addTouched(touched, locationId, date);
+        }
+    }
+
+    private static void addTouched(Map<Long, Set<Long>> touched, long locationId, long date) {
+        Set<Long> dates = touched.get(locationId);
+        if (dates == null) {
+            dates = new HashSet<Long>();
+            touched.put(locationId, dates);
+        }
+        dates.add(date);
+    }
+
+    // Records the location and date of every weather row the selection matches, and returns
+    // whether there were any
+    private static boolean findTouched(SQLiteDatabase db, String selection,
+                                       String[] selectionArgs, Map<Long, Set<Long>> touched) {
+        Cursor cursor = db.query(true, WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addTouched(touched, cursor.getLong(0), cursor.getLong(1));
+            }
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Tells the observers of the weather exactly what a committed write changed, and drops the
+     * snapshots of the locations it changed.
+     *
+     * A location with one day changed is notified on weather/<location>/<date>.  That reaches
+     * its list, whose cursors observe weather/<location> and everything under it, and the
+     * detail of that day, but not the detail of any other day.  A location with more days
+     * changed is notified once on weather/<location>, rather than once per day, because each
+     * notification makes its list query again.  Observers of the whole weather URI hear of
+     * every change either way.
+     *
+     * @param touched The dates written or deleted, by location _ID, or null if any row may
+     *                have changed
+     */
+    private void notifyWeatherChanged(Map<Long, Set<Long>> touched) {
+        ContentResolver resolver = getContext().getContentResolver();
+        ForecastSnapshotCache snapshots = ForecastSnapshotCache.getInstance();
+        if (touched == null) {
+            invalidateForecasts();
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            return;
+        }
+        if (touched.isEmpty()) {
+            return;
+        }
+
+        Map<Long, String> settings =
+                findLocationSettings(mOpenHelper.getReadableDatabase(), touched.keySet());
+        boolean unknownLocation = false;
+        for (Map.Entry<Long, Set<Long>> location : touched.entrySet()) {
+            String locationSetting = settings.get(location.getKey());
+            if (locationSetting == null) {
+                unknownLocation = true;
+                continue;
+            }
+            snapshots.invalidate(locationSetting);
+            Set<Long> dates = location.getValue();
+            resolver.notifyChange(dates.size() == 1
+                    ? WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            locationSetting, dates.iterator().next())
+                    : WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting), null);
+        }
+        // Rows whose location isn't in the location table can only be heard of as a whole
+        if (unknownLocation) {
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+        }
+    }
+
+    // Drops what is held in memory of every location's forecast
+    private void invalidateForecasts() {
+        ForecastSnapshotCache.getInstance().invalidate();
+    }
+
+    // The most values one IN (...) query binds; SQLite allows 999 arguments
+    static final int MAX_IDS_PER_QUERY = 500;
+
+    //_id IN (?, ?, ...)
+    //Only the touched locations are read, however many the table keeps
+    private static Map<Long, String> findLocationSettings(SQLiteDatabase db,
+                                                          Set<Long> locationIds) {
+        HashMap<Long, String> settings = new HashMap<Long, String>(locationIds.size() * 2);
+        List<Long> ids = new ArrayList<Long>(locationIds);
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(ids.size(), start + MAX_IDS_PER_QUERY);
+            StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID)
+                    .append(" IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ", ?");
+                selectionArgs[i - start] = Long.toString(ids.get(i));
+            }
+            selection.append(")");
+
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID,
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                    selection.toString(), selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    settings.put(cursor.getLong(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Writes the rows that differ from what's stored for their location and date, inside the
+     * caller's transaction.  The lookup, the update and the insert are each compiled once for
+     * all the rows, and bound column by column as their types.  A row with other columns than
+     * {@link #sWeatherColumns} goes through {@link #writeWeatherIfChanged} instead.
+     *
+     * @param touched Gets the location and date of every row written
+     * @return the number of rows inserted or updated
+     */
+    private int writeChangedWeather(SQLiteDatabase db, ContentValues[] values,
+                                    Map<Long, Set<Long>> touched) {
+        TimeZone zone = TimeZone.getDefault();
+        int writtenCount = 0;
+        SQLiteStatement lookup = db.compileStatement(sLookupWeatherSql);
+        SQLiteStatement update = db.compileStatement(sUpdateWeatherSql);
+        SQLiteStatement insert = db.compileStatement(sInsertWeatherSql);
+        try {
+            for (ContentValues value : values) {
+                normalizeDate(value, zone);
+                boolean written;
+                if (hasWeatherColumns(value)) {
+                    bindWeather(lookup, value);
+                    long _id = lookup.simpleQueryForLong();
+                    if (_id == -1) {
+                        // A new day
+                        written = executeInsert(insert, value) != -1;
+                    } else if (_id != 0) {
+                        bindWeather(update, value);
+                        update.bindLong(sWeatherColumns.length + 1, _id);
+                        update.execute();
+                        written = true;
+                    } else {
+                        written = false;
+                    }
+                } else {
+                    written = writeWeatherIfChanged(db, value);
+                }
+                if (written) {
+                    writtenCount++;
+                    addTouched(touched, value);
+                }
+            }
+        } finally {
+            lookup.close();
+            update.close();
+            insert.close();
+        }
+        return writtenCount;
+    }
+
+    private boolean writeWeatherIfChanged(SQLiteDatabase db, ContentValues value) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            Set<Map.Entry<String, Object>> entries = value.valueSet();
+            String[] columns = new String[entries.size() + 1];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : entries) {
+                columns[i++] = entry.getKey();
+            }
+            columns[i] = WeatherContract.WeatherEntry._ID;
+
+            Cursor stored = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    columns,
+                    sLocationIdAndDaySelection,
+                    new String[]{Long.toString(locationId), Long.toString(date)},
+                    null,
+                    null,
+                    null);
+            try {
+                if (stored.moveToFirst()) {
+                    if (isSameAsStored(stored, value)) {
+                        return false;
+                    }
+                    long _id = stored.getLong(columns.length - 1);
+                    return db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                            WeatherContract.WeatherEntry._ID + " = ?",
+                            new String[]{Long.toString(_id)}) > 0;
+                }
+            } finally {
+                stored.close();
+            }
+        }
+        // A new day, or a row the constraints will have to judge
+        return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1;
+    }
+
+    /**
+     * Compares each incoming value with the stored one, reading the stored value as the same
+     * type so that a REAL column isn't compared through its string form.
+     */
+    private static boolean isSameAsStored(Cursor stored, ContentValues value) {
+        for (Map.Entry<String, Object> entry : value.valueSet()) {
+            int index = stored.getColumnIndex(entry.getKey());
+            Object incoming = entry.getValue();
+            if (incoming == null || stored.isNull(index)) {
+                if (incoming != null || !stored.isNull(index)) {
+                    return false;
+                }
+            } else if (incoming instanceof Double || incoming instanceof Float) {
+                if (stored.getDouble(index) != ((Number) incoming).doubleValue()) {
+                    return false;
+                }
+            } else if (incoming instanceof Number) {
+                if (stored.getLong(index) != ((Number) incoming).longValue()) {
+                    return false;
+                }
+            } else if (incoming instanceof byte[]) {
+                if (!Arrays.equals(stored.getBlob(index), (byte[]) incoming)) {
+                    return false;
+                }
+            } else if (!incoming.toString().equals(stored.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
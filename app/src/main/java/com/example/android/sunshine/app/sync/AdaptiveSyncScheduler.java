@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks how often the periodic sync should run, instead of always every three hours.
+ *
+ * Volatile weather (a sync that changed much of the stored forecast, or a storm in the next
+ * two days) syncs more often; calm weather and a user who hasn't opened the app, tapped a widget
+ * or seen the watch face in a while sync less often.  Only what the user does counts: a widget
+ * redrawn after a sync says nothing about anyone looking at it.  Every decision is kept, with the signals that led
+ * to it, in a short history that survives process death.
+ */
+public class AdaptiveSyncScheduler {
+
+    static final String PREFS_NAME = "adaptive_sync_scheduler";
+
+    // Where the forecast was last looked at
+    public static final String SURFACE_APP = "app";
+    public static final String SURFACE_WIDGET = "widget";
+    public static final String SURFACE_WATCH = "watch";
+    private static final String[] SURFACES = { SURFACE_APP, SURFACE_WIDGET, SURFACE_WATCH };
+
+    // Put on the intents a widget opens the app with, naming SURFACE_WIDGET
+    public static final String EXTRA_SURFACE =
+            "com.example.android.sunshine.app.sync.extra.SURFACE";
+
+    static final String KEY_VIEWED_PREFIX = "viewed:";
+    private static final String KEY_HISTORY = "history";
+    static final int HISTORY_SIZE = 20;
+
+    private static final int HOUR_IN_SECONDS = 60 * 60;
+    private static final long HOUR_IN_MILLIS = HOUR_IN_SECONDS * 1000L;
+
+    // Intervals for each kind of weather, before the user's activity is taken into account
+    static final int SEVERE_INTERVAL = HOUR_IN_SECONDS;
+    static final int VOLATILE_INTERVAL = 90 * 60;
+    static final int NORMAL_INTERVAL = SunshineSyncAdapter.SYNC_INTERVAL;
+    static final int CALM_INTERVAL = 6 * HOUR_IN_SECONDS;
+    static final int MAX_INTERVAL = 24 * HOUR_IN_SECONDS;
+
+    // Share of the fetched days a sync has to change to count as volatile, or stay under to
+    // count as calm
+    static final float VOLATILE_CHANGE = 0.5f;
+    static final float CALM_CHANGE = 0.15f;
+
+    // Nobody has looked for this long: sync half as often.  For this long: a quarter.
+    static final long IDLE_MILLIS = 24 * HOUR_IN_MILLIS;
+    static final long DORMANT_MILLIS = 7 * 24 * HOUR_IN_MILLIS;
+
+    /**
+     * The time source, so tests can move it.
+     */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * What the last sync told us about the weather.
+     */
+    static class Signals {
+        // Share of the fetched days whose forecast changed, from 0 to 1
+        final float changedFraction;
+        // Whether any synced location has a thunderstorm (2xx weather id) in the next 48 hours
+        final boolean severeWeatherSoon;
+
+        Signals(float changedFraction, boolean severeWeatherSoon) {
+            this.changedFraction = changedFraction;
+            this.severeWeatherSoon = severeWeatherSoon;
+        }
+    }
+
+    /**
+     * One scheduling decision, as kept in the history.
+     */
+    public static class Decision {
+        public final long timeMillis;
+        public final int intervalSeconds;
+        public final int flexSeconds;
+        public final String reason;
+
+        Decision(long timeMillis, int intervalSeconds, int flexSeconds, String reason) {
+            this.timeMillis = timeMillis;
+            this.intervalSeconds = intervalSeconds;
+            this.flexSeconds = flexSeconds;
+            this.reason = reason;
+        }
+
+        // time|interval|flex|reason, with no '|' or newline in the reason
+        String encode() {
+            return timeMillis + "|" + intervalSeconds + "|" + flexSeconds + "|" + reason;
+        }
+
+        static Decision decode(String encoded) {
+            String[] fields = encoded.split("\\|", 4);
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Decision(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "every " + intervalSeconds / 60 + "min (flex " + flexSeconds / 60 + "min): " +
+                    reason;
+        }
+    }
+
+    private static AdaptiveSyncScheduler sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Clock mClock;
+
+    AdaptiveSyncScheduler(SharedPreferences prefs, Clock clock) {
+        mPrefs = prefs;
+        mClock = clock;
+    }
+
+    public static synchronized AdaptiveSyncScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AdaptiveSyncScheduler(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), SYSTEM_CLOCK);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Notes that the forecast was just on screen somewhere.
+     *
+     * @param surface One of the SURFACE_ constants
+     */
+    public void recordViewed(String surface) {
+        recordViewed(surface, mClock.currentTimeMillis());
+    }
+
+    /**
+     * Notes that the app was just brought to the screen, by a tap on the surface the intent
+     * names, or else by the app itself.
+     */
+    public void recordOpened(Intent intent) {
+        String surface = intent == null ? null : intent.getStringExtra(EXTRA_SURFACE);
+        recordViewed(SURFACE_WIDGET.equals(surface) ? SURFACE_WIDGET : SURFACE_APP);
+    }
+
+    /**
+     * For views that happened elsewhere, like on the watch.  Older times than the one we have
+     * are ignored.
+     */
+    void recordViewed(String surface, long timeMillis) {
+        String key = KEY_VIEWED_PREFIX + surface;
+        if (timeMillis > mPrefs.getLong(key, 0)) {
+            mPrefs.edit().putLong(key, timeMillis).apply();
+        }
+    }
+
+    /**
+     * @return when the forecast was last seen on any surface, or 0 if never
+     */
+    long getLastViewedMillis() {
+        long lastViewed = 0;
+        for (String surface : SURFACES) {
+            lastViewed = Math.max(lastViewed, mPrefs.getLong(KEY_VIEWED_PREFIX + surface, 0));
+        }
+        return lastViewed;
+    }
+
+    /**
+     * Works out the next sync interval and adds it to the history.
+     */
+    Decision decide(Signals signals) {
+        long now = mClock.currentTimeMillis();
+
+        int interval;
+        StringBuilder reason = new StringBuilder();
+        if (signals.severeWeatherSoon) {
+            interval = SEVERE_INTERVAL;
+            reason.append("storm within 48h");
+        } else if (signals.changedFraction >= VOLATILE_CHANGE) {
+            interval = VOLATILE_INTERVAL;
+            reason.append("volatile");
+        } else if (signals.changedFraction <= CALM_CHANGE) {
+            interval = CALM_INTERVAL;
+            reason.append("calm");
+        } else {
+            interval = NORMAL_INTERVAL;
+            reason.append("normal");
+        }
+        reason.append(", ").append(Math.round(signals.changedFraction * 100)).append("% changed");
+
+        long lastViewed = getLastViewedMillis();
+        long unseenMillis = lastViewed == 0 ? Long.MAX_VALUE : now - lastViewed;
+        if (unseenMillis >= DORMANT_MILLIS) {
+            interval *= 4;
+            reason.append(", dormant user");
+        } else if (unseenMillis >= IDLE_MILLIS) {
+            interval *= 2;
+            reason.append(", idle user");
+        } else {
+            reason.append(", seen ").append(unseenMillis / (60 * 1000)).append("min ago");
+        }
+        interval = Math.min(interval, MAX_INTERVAL);
+
+        // The same proportion configurePeriodicSync has always used
+        Decision decision = new Decision(now, interval, interval / 3, reason.toString());
+        addToHistory(decision);
+        return decision;
+    }
+
+    /**
+     * @return the decisions made so far, oldest first
+     */
+    public List<Decision> getHistory() {
+        String encoded = mPrefs.getString(KEY_HISTORY, "");
+        if (encoded.length() == 0) {
+            return Collections.emptyList();
+        }
+        List<Decision> history = new ArrayList<Decision>();
+        for (String line : encoded.split("\n")) {
+            Decision decision = Decision.decode(line);
+            if (decision != null) {
+                history.add(decision);
+            }
+        }
+        return history;
+    }
+
+    private synchronized void addToHistory(Decision decision) {
+        List<Decision> history = new ArrayList<Decision>(getHistory());
+        history.add(decision);
+        int first = Math.max(0, history.size() - HISTORY_SIZE);
+        List<String> lines = new ArrayList<String>(history.size() - first);
+        for (Decision kept : history.subList(first, history.size())) {
+            lines.add(kept.encode());
+        }
+        mPrefs.edit().putString(KEY_HISTORY, TextUtils.join("\n", lines)).apply();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Remembers the ETag and Last-Modified validators the forecast server sent for each request
+ * URI, so the next sync can ask "has this changed?" instead of downloading it again.
+ *
+ * Only the validators are kept, not the responses: a 304 means the rows we stored last time are
+ * still current.  The store is a private SharedPreferences file so it survives process death,
+ * and it also keeps the running hit and miss counts.
+ */
+public class ConditionalRequestCache {
+
+    static final String PREFS_NAME = "conditional_request_cache";
+
+    private static final String KEY_ETAG_PREFIX = "etag:";
+    private static final String KEY_LAST_MODIFIED_PREFIX = "last-modified:";
+    private static final String KEY_HITS = "hits";
+    private static final String KEY_MISSES = "misses";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static ConditionalRequestCache sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    ConditionalRequestCache(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    public static synchronized ConditionalRequestCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConditionalRequestCache(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Adds If-None-Match and If-Modified-Since to a request we have validators for.  Must be
+     * called before the connection is opened.
+     */
+    void applyValidators(HttpURLConnection urlConnection) {
+        String uri = urlConnection.getURL().toString();
+        String eTag = mPrefs.getString(KEY_ETAG_PREFIX + uri, null);
+        String lastModified = mPrefs.getString(KEY_LAST_MODIFIED_PREFIX + uri, null);
+        if (eTag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Keeps the validators of a response that was parsed successfully.  Don't call this for a
+     * response that failed, or the next sync would be told nothing changed.
+     */
+    void storeValidators(HttpURLConnection urlConnection) {
+        String uri = urlConnection.getURL().toString();
+        String eTag = urlConnection.getHeaderField(HEADER_ETAG);
+        String lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (eTag != null) {
+            editor.putString(KEY_ETAG_PREFIX + uri, eTag);
+        } else {
+            editor.remove(KEY_ETAG_PREFIX + uri);
+        }
+        if (lastModified != null) {
+            editor.putString(KEY_LAST_MODIFIED_PREFIX + uri, lastModified);
+        } else {
+            editor.remove(KEY_LAST_MODIFIED_PREFIX + uri);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the validators for a request, so the next one downloads in full.  Used when the
+     * rows a 304 would vouch for are no longer in the database.
+     */
+    void remove(String uri) {
+        mPrefs.edit()
+                .remove(KEY_ETAG_PREFIX + uri)
+                .remove(KEY_LAST_MODIFIED_PREFIX + uri)
+                .apply();
+    }
+
+    synchronized void recordHit() {
+        mPrefs.edit().putLong(KEY_HITS, getHitCount() + 1).apply();
+    }
+
+    synchronized void recordMiss() {
+        mPrefs.edit().putLong(KEY_MISSES, getMissCount() + 1).apply();
+    }
+
+    /**
+     * @return how many requests the server answered with 304 Not Modified
+     */
+    public long getHitCount() {
+        return mPrefs.getLong(KEY_HITS, 0);
+    }
+
+    /**
+     * @return how many requests had to download and parse a full forecast
+     */
+    public long getMissCount() {
+        return mPrefs.getLong(KEY_MISSES, 0);
+    }
+}
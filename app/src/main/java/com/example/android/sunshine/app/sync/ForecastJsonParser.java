@@ -0,0 +1,640 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into weather rows.
+ *
+ * There are two ways in.  {@link #parseTree} takes the complete response as a String and walks
+ * an org.json object hierarchy, which is all we have before Honeycomb.  {@link #parseStream}
+ * pulls tokens straight off the network stream with a {@link JsonReader} and hands each day to
+ * the listener as soon as its object closes, so neither the raw payload nor a JSON tree is ever
+ * held in memory.  The 3 hourly forecast, {@link #parseHourly}, is read the same two ways.
+ */
+class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // The 3 hourly forecast.  Each step is an element of "list" with the time in "dt", the
+    // temperature under "main" and any rain or snow over the 3 hours under "rain" and "snow".
+    static final String OWM_DATE_TIME = "dt";
+    static final String OWM_MAIN = "main";
+    static final String OWM_RAIN = "rain";
+    static final String OWM_SNOW = "snow";
+    static final String OWM_THREE_HOURS = "3h";
+
+    // Bits recording which fields of a day have been seen by the streaming parser, so that a
+    // truncated day fails the same way a missing key does in the tree parser.
+    private static final int SEEN_PRESSURE = 1;
+    private static final int SEEN_HUMIDITY = 1 << 1;
+    private static final int SEEN_WIND_SPEED = 1 << 2;
+    private static final int SEEN_WIND_DIRECTION = 1 << 3;
+    private static final int SEEN_MAX = 1 << 4;
+    private static final int SEEN_MIN = 1 << 5;
+    private static final int SEEN_DESCRIPTION = 1 << 6;
+    private static final int SEEN_WEATHER_ID = 1 << 7;
+    private static final int SEEN_ALL = (1 << 8) - 1;
+
+    // Bits recording which fields of a 3 hourly step have been seen by the streaming parser
+    private static final int SEEN_DATE_TIME = 1;
+    private static final int SEEN_TEMPERATURE = 1 << 1;
+    private static final int SEEN_STEP = (1 << 2) - 1;
+
+    /**
+     * Receives the city a forecast is for.
+     */
+    interface CityListener {
+        void onCity(String cityName, double lat, double lon);
+    }
+
+    /**
+     * Receives the pieces of a forecast as the parser finds them.
+     */
+    interface Listener extends CityListener {
+
+        /**
+         * Called once per element of the "list" array, in order.  The values hold every weather
+         * column except the location key and the date, which depend on the caller.
+         */
+        void onDay(ContentValues weatherValues);
+    }
+
+    /**
+     * A {@link Listener} that simply keeps everything it is handed.
+     */
+    static class ForecastRows implements Listener {
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final Vector<ContentValues> days = new Vector<ContentValues>(16);
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(ContentValues weatherValues) {
+            days.add(weatherValues);
+        }
+    }
+
+    /**
+     * The steps of a 3 hourly forecast, kept in parallel primitive arrays rather than as one
+     * object per step.
+     */
+    static class HourlyRows implements CityListener {
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        int count;
+        // Times are in milliseconds, temperatures in Celsius and precipitation in mm
+        long[] times = new long[40];
+        float[] temperatures = new float[40];
+        float[] precipitation = new float[40];
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
+
+        void add(long time, float temperature, float precipitationMm) {
+            if (count == times.length) {
+                int capacity = count * 2;
+                times = Arrays.copyOf(times, capacity);
+                temperatures = Arrays.copyOf(temperatures, capacity);
+                precipitation = Arrays.copyOf(precipitation, capacity);
+            }
+            times[count] = time;
+            temperatures[count] = temperature;
+            precipitation[count] = precipitationMm;
+            count++;
+        }
+    }
+
+    /**
+     * Parses a complete response held in a String.
+     *
+     * @return the OWM message code, or HTTP_OK if the response doesn't carry one.  When the code
+     * is not HTTP_OK nothing has been passed to the listener.
+     */
+    static int parseTree(String forecastJsonStr, Listener listener) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        listener.onCity(cityName,
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        for(int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            listener.onDay(createWeatherValues(
+                    dayForecast.getDouble(OWM_PRESSURE),
+                    dayForecast.getInt(OWM_HUMIDITY),
+                    dayForecast.getDouble(OWM_WINDSPEED),
+                    dayForecast.getDouble(OWM_WIND_DIRECTION),
+                    temperatureObject.getDouble(OWM_MAX),
+                    temperatureObject.getDouble(OWM_MIN),
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID)));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Parses a response straight from the stream it arrives on.  Days are handed to the listener
+     * as they complete, so the caller only ever holds the rows it decides to keep.
+     *
+     * @return the OWM message code, or HTTP_OK if the response doesn't carry one.  Parsing stops
+     * as soon as an error code is seen.
+     * @throws JSONException if the payload is not a well formed forecast
+     * @throws IOException if reading from the stream fails, including an empty stream
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static int parseStream(InputStream inputStream, Listener listener)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            boolean hasCity = false;
+            boolean hasList = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    // OWM sends the code as a string on some responses; nextInt copes with both
+                    int code = reader.nextInt();
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        return code;
+                    }
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, listener);
+                    hasCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        listener.onDay(readDay(reader));
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!hasList) {
+                throw new JSONException("No value for " + OWM_LIST);
+            }
+            if (!hasCity) {
+                throw new JSONException("No value for " + OWM_CITY);
+            }
+            return HttpURLConnection.HTTP_OK;
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            // JsonReader reports an unexpected token this way
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a response from a stream, as it arrives where JsonReader is available and buffered
+     * into a String before that.
+     *
+     * @return the OWM message code, as for {@link #parseStream}
+     * @throws IOException if reading fails, including an empty stream
+     */
+    static int parse(InputStream inputStream, Listener listener)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStream(inputStream, listener);
+        }
+
+        return parseTree(readAll(inputStream), listener);
+    }
+
+    /**
+     * Parses a 3 hourly forecast response, as it arrives where JsonReader is available and
+     * buffered into a String before that, just like the daily one.
+     *
+     * @return the OWM message code, or HTTP_OK if the response doesn't carry one.  When the code
+     * is not HTTP_OK nothing has been added to the rows.
+     * @throws IOException if reading fails, including an empty stream
+     */
+    static int parseHourly(InputStream inputStream, HourlyRows rows)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseHourlyStream(inputStream, rows);
+        }
+
+        return parseHourlyTree(readAll(inputStream), rows);
+    }
+
+    /**
+     * Parses a complete 3 hourly forecast response held in a String.
+     *
+     * @return the OWM message code, as for {@link #parseHourly}
+     */
+    static int parseHourlyTree(String forecastJsonStr, HourlyRows rows) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray stepArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        rows.onCity(cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        for (int i = 0; i < stepArray.length(); i++) {
+            JSONObject step = stepArray.getJSONObject(i);
+            // OWM leaves out "rain" and "snow" when there is none
+            double precipitation = 0;
+            JSONObject rain = step.optJSONObject(OWM_RAIN);
+            if (rain != null) {
+                precipitation += rain.optDouble(OWM_THREE_HOURS, 0);
+            }
+            JSONObject snow = step.optJSONObject(OWM_SNOW);
+            if (snow != null) {
+                precipitation += snow.optDouble(OWM_THREE_HOURS, 0);
+            }
+            rows.add(step.getLong(OWM_DATE_TIME) * 1000,
+                    (float) step.getJSONObject(OWM_MAIN).getDouble(OWM_TEMPERATURE),
+                    (float) precipitation);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Parses a 3 hourly forecast response straight from the stream it arrives on, adding each
+     * step to the rows as its object closes.
+     *
+     * @return the OWM message code, as for {@link #parseHourly}
+     * @throws JSONException if the payload is not a well formed forecast
+     * @throws IOException if reading from the stream fails, including an empty stream
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static int parseHourlyStream(InputStream inputStream, HourlyRows rows)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            boolean hasCity = false;
+            boolean hasList = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    int code = reader.nextInt();
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        // In case the code came after the steps
+                        rows.count = 0;
+                        return code;
+                    }
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, rows);
+                    hasCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readStep(reader, rows);
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!hasList) {
+                throw new JSONException("No value for " + OWM_LIST);
+            }
+            if (!hasCity) {
+                throw new JSONException("No value for " + OWM_CITY);
+            }
+            return HttpURLConnection.HTTP_OK;
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            // JsonReader reports an unexpected token this way
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String readAll(InputStream inputStream) throws IOException {
+        // Read the input stream into a String
+        StringBuilder buffer = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
+                // But it does make debugging a *lot* easier if you print out the completed
+                // buffer for debugging.
+                buffer.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (buffer.length() == 0) {
+            // Stream was empty.  No point in parsing.
+            throw new EOFException("Empty forecast");
+        }
+        return buffer.toString();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, CityListener listener)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        boolean hasCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                int seen = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                        seen |= 1;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                        seen |= 2;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                hasCoord = seen == 3;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || !hasCoord) {
+            throw new JSONException("Incomplete " + OWM_CITY);
+        }
+        listener.onCity(cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readDay(JsonReader reader) throws IOException, JSONException {
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        String description = null;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                seen |= SEEN_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                // getInt() truncates in the tree parser, so do the same here
+                humidity = (int) reader.nextDouble();
+                seen |= SEEN_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                seen |= SEEN_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                seen |= SEEN_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        high = reader.nextDouble();
+                        seen |= SEEN_MAX;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        low = reader.nextDouble();
+                        seen |= SEEN_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Only the first element of the "weather" array is used
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                            seen |= SEEN_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                            seen |= SEEN_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != SEEN_ALL) {
+            throw new JSONException("Incomplete day in " + OWM_LIST);
+        }
+        return createWeatherValues(pressure, humidity, windSpeed, windDirection, high, low,
+                description, weatherId);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readStep(JsonReader reader, HourlyRows rows)
+            throws IOException, JSONException {
+        long time = 0;
+        double temperature = 0;
+        double precipitation = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DATE_TIME.equals(name)) {
+                time = reader.nextLong();
+                seen |= SEEN_DATE_TIME;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (OWM_TEMPERATURE.equals(reader.nextName())) {
+                        temperature = reader.nextDouble();
+                        seen |= SEEN_TEMPERATURE;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ((OWM_RAIN.equals(name) || OWM_SNOW.equals(name))
+                    && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                // OWM leaves these out when there is none, and may send them empty
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (OWM_THREE_HOURS.equals(reader.nextName())) {
+                        precipitation += reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != SEEN_STEP) {
+            throw new JSONException("Incomplete step in " + OWM_LIST);
+        }
+        rows.add(time * 1000, (float) temperature, (float) precipitation);
+    }
+
+    private static ContentValues createWeatherValues(double pressure, int humidity,
+                                                     double windSpeed, double windDirection,
+                                                     double high, double low,
+                                                     String description, int weatherId) {
+        // Room for the location key and date the caller adds
+        ContentValues weatherValues = new ContentValues(10);
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        return weatherValues;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Where the sync gets its forecasts from.  {@link OwmForecastSource} talks to OpenWeatherMap;
+ * {@link ReplayForecastSource} plays back recorded responses, so the sync can be exercised and
+ * timed without the network.
+ *
+ * Implementations are called from several fetcher threads at once.
+ */
+interface ForecastSource {
+
+    /**
+     * @return what identifies the server behind this source, for the per host limit of the
+     * fetcher and for the circuit breaker
+     */
+    String getEndpoint();
+
+    /**
+     * Fetches and parses one location's forecast, recording the outcome in its location status
+     * and the rows in {@code forecast.rows}.
+     */
+    void fetch(String locationSetting, ParallelForecastFetcher.LocationForecast forecast)
+            throws InterruptedException;
+
+    /**
+     * Fetches and parses one location's 3 hourly forecast into {@code forecast.hourly}, leaving
+     * it null if there is none or it hasn't changed since the last fetch.  Only called after
+     * {@link #fetch} succeeded for the location, and a failure here doesn't change its location
+     * status.
+     */
+    void fetchHourly(String locationSetting, ParallelForecastFetcher.LocationForecast forecast)
+            throws InterruptedException;
+
+    /**
+     * Drops whatever is kept about a location between syncs, so the next fetch is a full one.
+     */
+    void forget(String locationSetting);
+}
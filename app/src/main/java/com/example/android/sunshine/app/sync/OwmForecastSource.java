@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Fetches the 14 day forecast from OpenWeatherMap, or from anything that speaks its API, such
+ * as a local stub server.
+ *
+ * Given a {@link ConditionalRequestCache}, requests are made conditional and a 304 comes back as
+ * a forecast with {@code notModified} set and no rows.  All requests go through one
+ * {@link SyncHttpTransport}, so they share its pooled, gzip-encoded connections.  When given
+ * a second base URL it also fetches the 3 hourly forecast, conditionally too.
+ */
+class OwmForecastSource implements ForecastSource {
+
+    private static final String LOG_TAG = OwmForecastSource.class.getSimpleName();
+
+    static final String DEFAULT_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    static final String DEFAULT_HOURLY_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast?";
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    private static final String QUERY_PARAM = "q";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    private static final int NUM_DAYS = 14;
+
+    private final Uri mBaseUri;
+    private final Uri mHourlyBaseUri;
+    private final String mApiKey;
+    private final SyncHttpTransport mTransport;
+    private final ConditionalRequestCache mCache;
+
+    OwmForecastSource(String baseUrl) {
+        this(baseUrl, null, null, new SyncHttpTransport(), null);
+    }
+
+    /**
+     * Fetches only the daily forecast.
+     *
+     * @param apiKey The OWM APPID, or null for servers that don't want one
+     * @param cache Where to keep validators for conditional requests, or null for none
+     */
+    OwmForecastSource(String baseUrl, String apiKey, SyncHttpTransport transport,
+            ConditionalRequestCache cache) {
+        this(baseUrl, null, apiKey, transport, cache);
+    }
+
+    /**
+     * @param hourlyBaseUrl Where to get the 3 hourly forecast, or null to not fetch it
+     * @param apiKey The OWM APPID, or null for servers that don't want one
+     * @param cache Where to keep validators for conditional requests, or null for none
+     */
+    OwmForecastSource(String baseUrl, String hourlyBaseUrl, String apiKey,
+            SyncHttpTransport transport, ConditionalRequestCache cache) {
+        mBaseUri = Uri.parse(baseUrl);
+        mHourlyBaseUri = hourlyBaseUrl == null ? null : Uri.parse(hourlyBaseUrl);
+        mApiKey = apiKey;
+        mTransport = transport;
+        mCache = cache;
+    }
+
+    @Override
+    public String getEndpoint() {
+        return mBaseUri.getAuthority();
+    }
+
+    /**
+     * Builds the daily forecast request for a location.
+     */
+    URL buildUrl(String locationSetting) throws IOException {
+        Uri.Builder builder = mBaseUri.buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS));
+        if (mApiKey != null) {
+            builder.appendQueryParameter(APPID_PARAM, mApiKey);
+        }
+        return new URL(builder.build().toString());
+    }
+
+    @Override
+    public void fetch(String locationSetting, ParallelForecastFetcher.LocationForecast forecast) {
+        URL url;
+        try {
+            url = buildUrl(locationSetting);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error building request for " + locationSetting, e);
+            forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+            return;
+        }
+        fetch(url, forecast);
+    }
+
+    /**
+     * Builds the 3 hourly forecast request for a location.  OWM always sends its full 5 days.
+     */
+    URL buildHourlyUrl(String locationSetting) throws IOException {
+        Uri.Builder builder = mHourlyBaseUri.buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS);
+        if (mApiKey != null) {
+            builder.appendQueryParameter(APPID_PARAM, mApiKey);
+        }
+        return new URL(builder.build().toString());
+    }
+
+    @Override
+    public void fetchHourly(String locationSetting,
+            ParallelForecastFetcher.LocationForecast forecast) {
+        if (mHourlyBaseUri == null) {
+            return;
+        }
+
+        SyncHttpTransport.Response response = null;
+        try {
+            // Conditional like the daily request, so a daily 304 isn't followed by a full download
+            response = mTransport.get(buildHourlyUrl(locationSetting), mCache);
+            if (mCache != null && response.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // The steps stored last time are still current, so hourly stays null
+                mCache.recordHit();
+                return;
+            }
+            ForecastJsonParser.HourlyRows hourly = new ForecastJsonParser.HourlyRows();
+            if (ForecastJsonParser.parseHourly(response.getBody(), hourly)
+                    == HttpURLConnection.HTTP_OK) {
+                forecast.hourly = hourly;
+                if (mCache != null) {
+                    mCache.recordMiss();
+                    mCache.storeValidators(response.connection);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error fetching the hourly forecast for " + locationSetting, e);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        } finally {
+            if (response != null) {
+                response.close();
+                forecast.bytesOnWire += response.getBytesOnWire();
+            }
+        }
+    }
+
+    @Override
+    public void forget(String locationSetting) {
+        if (mCache == null) {
+            return;
+        }
+        try {
+            mCache.remove(buildUrl(locationSetting).toString());
+            if (mHourlyBaseUri != null) {
+                mCache.remove(buildHourlyUrl(locationSetting).toString());
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error building request for " + locationSetting, e);
+        }
+    }
+
+    /**
+     * Maps the message code of an OWM response to a location status.
+     */
+    @SunshineSyncAdapter.LocationStatus
+    static int getLocationStatus(int messageCode) {
+        switch (messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                return SunshineSyncAdapter.LOCATION_STATUS_OK;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+            default:
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        }
+    }
+
+    /**
+     * Fetches and parses a single forecast, recording the outcome in its location status.
+     */
+    void fetch(URL url, ParallelForecastFetcher.LocationForecast forecast) {
+        // Declared outside the try/catch so that it can be closed in the finally block.
+        SyncHttpTransport.Response response = null;
+
+        try {
+            // Ask OpenWeatherMap for the forecast, conditionally if we know what we have
+            response = mTransport.get(url, mCache);
+            forecast.connectMillis = response.connectMillis;
+
+            if (mCache != null && response.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // What we stored last time is still current, so there is nothing to parse
+                mCache.recordHit();
+                forecast.notModified = true;
+                forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                return;
+            }
+
+            long bodyStart = SystemClock.elapsedRealtime();
+            InputStream inputStream = response.getBody();
+
+            // Where it can, the parser takes the days as they come off the wire rather than
+            // buffering the response.  An empty stream surfaces as an EOFException, i.e. the
+            // server is down.
+            int messageCode = ForecastJsonParser.parse(inputStream, forecast.rows);
+
+            // Reading and parsing are interleaved, so split them by the time spent in reads
+            forecast.downloadMillis = response.getDownloadMillis();
+            forecast.parseMillis = Math.max(0,
+                    SystemClock.elapsedRealtime() - bodyStart - forecast.downloadMillis);
+
+            forecast.locationStatus = getLocationStatus(messageCode);
+            if (messageCode == HttpURLConnection.HTTP_OK && mCache != null) {
+                mCache.recordMiss();
+                mCache.storeValidators(response.connection);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            // Not disconnect(): closing the drained body keeps the socket for the next request
+            if (response != null) {
+                response.close();
+                forecast.bytesOnWire = response.getBytesOnWire();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads and parses the forecasts for several locations at once.
+ *
+ * At most {@code maxConcurrent} requests are in flight overall, and at most {@code maxPerHost}
+ * of those go to any one host, so a long list of cities can't turn into a burst against the
+ * forecast server.  The fetcher never touches the database; the caller decides what to store.
+ * Where the forecasts come from is up to the {@link ForecastSource} it is given.
+ */
+class ParallelForecastFetcher {
+
+    private static final String LOG_TAG = ParallelForecastFetcher.class.getSimpleName();
+
+    /**
+     * What came back for one location.  The rows are only meaningful when the status is
+     * {@link SunshineSyncAdapter#LOCATION_STATUS_OK}.
+     */
+    static class LocationForecast {
+        final String locationSetting;
+        @SunshineSyncAdapter.LocationStatus int locationStatus =
+                SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+        final ForecastJsonParser.ForecastRows rows = new ForecastJsonParser.ForecastRows();
+        // The 3 hourly forecast, or null if the source has none for this location
+        ForecastJsonParser.HourlyRows hourly;
+        // The server says the forecast we already stored is still current
+        boolean notModified;
+        // Where the time went, and how much came over the network
+        long connectMillis;
+        long downloadMillis;
+        long parseMillis;
+        long bytesOnWire;
+
+        LocationForecast(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
+
+    private final int mMaxConcurrent;
+    private final int mMaxPerHost;
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    ParallelForecastFetcher(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Concurrency limits must be at least 1");
+        }
+        mMaxConcurrent = maxConcurrent;
+        mMaxPerHost = maxPerHost;
+    }
+
+    /**
+     * Fetches every location and waits for all of them to finish.
+     *
+     * @return one result per location, in the same order as {@code locations}
+     */
+    List<LocationForecast> fetchAll(List<String> locations, final ForecastSource source)
+            throws InterruptedException {
+        List<LocationForecast> forecasts = new ArrayList<LocationForecast>(locations.size());
+        if (locations.isEmpty()) {
+            return forecasts;
+        }
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(mMaxConcurrent, locations.size()));
+        try {
+            List<Future<LocationForecast>> futures =
+                    new ArrayList<Future<LocationForecast>>(locations.size());
+            for (final String location : locations) {
+                futures.add(executor.submit(new Callable<LocationForecast>() {
+                    @Override
+                    public LocationForecast call() throws Exception {
+                        return fetchWithHostPermit(location, source);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    forecasts.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error fetching " + locations.get(i), e.getCause());
+                    LocationForecast failed = new LocationForecast(locations.get(i));
+                    failed.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                    forecasts.add(failed);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return forecasts;
+    }
+
+    private LocationForecast fetchWithHostPermit(String locationSetting, ForecastSource source)
+            throws InterruptedException {
+        LocationForecast forecast = new LocationForecast(locationSetting);
+        Semaphore permits = permitsFor(source.getEndpoint());
+        permits.acquire();
+        try {
+            source.fetch(locationSetting, forecast);
+            if (forecast.locationStatus == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                // Only worth asking for once the daily forecast says the location is good
+                source.fetchHourly(locationSetting, forecast);
+            }
+        } finally {
+            permits.release();
+        }
+        return forecast;
+    }
+
+    private Semaphore permitsFor(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(mMaxPerHost);
+            permits = mHostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the things that react to freshly synced weather (widgets, Muzei, the watch, the
+ * notification) once the data is committed, without making the sync wait for them.
+ *
+ * Every consumer runs on its own pool thread, so a slow one doesn't hold up the others.  A
+ * consumer that throws is logged and forgotten, and one that overruns its timeout is
+ * interrupted.  How long each one took, from when it started running, is logged and passed to
+ * the {@link Listener}, if any.
+ */
+class PostSyncDispatcher {
+
+    private static final String LOG_TAG = PostSyncDispatcher.class.getSimpleName();
+
+    static final int RESULT_OK = 0;
+    static final int RESULT_FAILED = 1;
+    static final int RESULT_TIMED_OUT = 2;
+
+    // Idle pool threads don't outlive the sync by much
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Told about every consumer run as it finishes.  Called on a pool thread.
+     */
+    interface Listener {
+        void onConsumerFinished(long syncId, String name, int result, long latencyMillis);
+    }
+
+    private static class Consumer {
+        final String name;
+        final long timeoutMillis;
+        final Runnable task;
+
+        Consumer(String name, long timeoutMillis, Runnable task) {
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+            this.task = task;
+        }
+    }
+
+    private final List<Consumer> mConsumers = new ArrayList<Consumer>();
+    private final ThreadPoolExecutor mWorkers;
+    private final ScheduledExecutorService mWatchdog;
+    private volatile Listener mListener;
+
+    PostSyncDispatcher(int maxThreads) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG + " #" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        mWorkers = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        mWorkers.allowCoreThreadTimeOut(true);
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * Registers a consumer to run after every successful sync.
+     *
+     * @param timeoutMillis How long it may take before it's interrupted
+     */
+    synchronized void addConsumer(String name, long timeoutMillis, Runnable task) {
+        mConsumers.add(new Consumer(name, timeoutMillis, task));
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts every consumer and returns straight away.
+     *
+     * @param syncId Handed back to the listener, to tell which sync a run belonged to
+     */
+    synchronized void dispatch(long syncId) {
+        for (Consumer consumer : mConsumers) {
+            ConsumerRun run = new ConsumerRun(syncId, consumer);
+            FutureTask<Void> future = new FutureTask<Void>(run, null);
+            run.future = future;
+            mWorkers.execute(future);
+        }
+    }
+
+    /**
+     * One run of a consumer.  Its timeout and its latency count from when a pool thread picks
+     * it up, not from the dispatch, so waiting behind the other consumers costs it nothing.
+     */
+    private final class ConsumerRun implements Runnable {
+        final long syncId;
+        final Consumer consumer;
+        // Whichever of the consumer and the watchdog gets here first reports the run
+        final AtomicBoolean reported = new AtomicBoolean();
+        volatile Future<Void> future;
+
+        ConsumerRun(long syncId, Consumer consumer) {
+            this.syncId = syncId;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            final long start = SystemClock.elapsedRealtime();
+            ScheduledFuture<?> watchdog = mWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (reported.compareAndSet(false, true)) {
+                        future.cancel(true);
+                        finished(syncId, consumer, RESULT_TIMED_OUT,
+                                SystemClock.elapsedRealtime() - start);
+                    }
+                }
+            }, consumer.timeoutMillis, TimeUnit.MILLISECONDS);
+
+            int result = RESULT_OK;
+            try {
+                consumer.task.run();
+            } catch (RuntimeException e) {
+                // One broken consumer mustn't take the others, or the sync, down with it
+                Log.e(LOG_TAG, consumer.name + " failed", e);
+                result = RESULT_FAILED;
+            }
+            if (reported.compareAndSet(false, true)) {
+                watchdog.cancel(false);
+                finished(syncId, consumer, result, SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    private void finished(long syncId, Consumer consumer, int result, long latencyMillis) {
+        switch (result) {
+            case RESULT_OK:
+                Log.d(LOG_TAG, consumer.name + " took " + latencyMillis + "ms");
+                break;
+            case RESULT_FAILED:
+                Log.w(LOG_TAG, consumer.name + " failed after " + latencyMillis + "ms");
+                break;
+            case RESULT_TIMED_OUT:
+                Log.w(LOG_TAG, consumer.name + " timed out after " + latencyMillis + "ms");
+                break;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onConsumerFinished(syncId, consumer.name, result, latencyMillis);
+        }
+    }
+}
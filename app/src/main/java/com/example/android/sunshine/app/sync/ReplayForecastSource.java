@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+
+/**
+ * Plays back recorded OWM responses from a directory instead of going to the network.
+ *
+ * A location's response is read from {@code <location>.json}, URL encoded, or from
+ * {@link #DEFAULT_PAYLOAD} when there is no recording of its own, so one payload is enough to
+ * sync any number of locations.  A location with neither is reported invalid, as OWM's 404
+ * would be.  A 3 hourly forecast is read from {@code <location>.hourly.json} in the same way,
+ * and is simply missing when neither file exists.  An optional delay stands in for the network
+ * round trip.
+ */
+class ReplayForecastSource implements ForecastSource {
+
+    private static final String LOG_TAG = ReplayForecastSource.class.getSimpleName();
+
+    static final String DEFAULT_PAYLOAD = "default";
+    private static final String EXTENSION = ".json";
+    private static final String HOURLY_EXTENSION = ".hourly.json";
+
+    private final File mDirectory;
+    private final long mLatencyMillis;
+
+    ReplayForecastSource(File directory, long latencyMillis) {
+        mDirectory = directory;
+        mLatencyMillis = latencyMillis;
+    }
+
+    @Override
+    public String getEndpoint() {
+        return "replay:" + mDirectory.getPath();
+    }
+
+    /**
+     * Records a response for a location, or for every location without one of its own when
+     * given {@link #DEFAULT_PAYLOAD}.
+     */
+    void record(String locationSetting, byte[] payload) throws IOException {
+        write(fileFor(locationSetting, EXTENSION), payload);
+    }
+
+    /**
+     * Records a 3 hourly forecast response, as {@link #record} does a daily one.
+     */
+    void recordHourly(String locationSetting, byte[] payload) throws IOException {
+        write(fileFor(locationSetting, HOURLY_EXTENSION), payload);
+    }
+
+    private void write(File file, byte[] payload) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void fetch(String locationSetting, ParallelForecastFetcher.LocationForecast forecast)
+            throws InterruptedException {
+        if (mLatencyMillis > 0) {
+            Thread.sleep(mLatencyMillis);
+        }
+
+        File payload = findPayload(locationSetting, EXTENSION);
+        if (!payload.isFile()) {
+            forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(payload));
+            forecast.locationStatus = OwmForecastSource.getLocationStatus(
+                    ForecastJsonParser.parse(inputStream, forecast.rows));
+            forecast.parseMillis = SystemClock.elapsedRealtime() - start;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading " + payload, e);
+            forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            forecast.locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + payload, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void fetchHourly(String locationSetting,
+            ParallelForecastFetcher.LocationForecast forecast) {
+        File payload = findPayload(locationSetting, HOURLY_EXTENSION);
+        if (!payload.isFile()) {
+            return;
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(payload));
+            ForecastJsonParser.HourlyRows hourly = new ForecastJsonParser.HourlyRows();
+            if (ForecastJsonParser.parseHourly(inputStream, hourly) == HttpURLConnection.HTTP_OK) {
+                forecast.hourly = hourly;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading " + payload, e);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + payload, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void forget(String locationSetting) {
+        // Nothing is kept between syncs
+    }
+
+    // The location's own recording if there is one, otherwise the default
+    private File findPayload(String locationSetting, String extension) {
+        File payload = fileFor(locationSetting, extension);
+        return payload.isFile() ? payload : fileFor(DEFAULT_PAYLOAD, extension);
+    }
+
+    private File fileFor(String locationSetting, String extension) {
+        try {
+            return new File(mDirectory, URLEncoder.encode(locationSetting, "UTF-8") + extension);
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM has UTF-8
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Random;
+
+/**
+ * Keeps syncs from hammering a forecast server that keeps failing.
+ *
+ * Every failure pushes the next allowed request back by an exponentially growing, jittered
+ * delay, so devices that failed together don't all come back together.  After
+ * {@link #FAILURE_THRESHOLD} failures in a row the breaker opens: nothing goes out until the
+ * delay is up, and then a single probe is let through (half open).  The probe's success closes
+ * the breaker again; its failure reopens it for longer.
+ *
+ * State is kept per endpoint in private preferences, so it survives the sync process being
+ * killed between syncs.
+ */
+class ServerCircuitBreaker {
+
+    static final String PREFS_NAME = "server_circuit_breaker";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    // Consecutive failures before the breaker opens
+    static final int FAILURE_THRESHOLD = 3;
+    // The delay after the first failure, doubling with every further one up to the maximum
+    static final long BASE_DELAY_MILLIS = 30 * 1000;
+    static final long MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000;
+    // A probe that hasn't reported back by then was lost with its process
+    static final long PROBE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static final String KEY_FAILURES = ":failures";
+    private static final String KEY_RETRY_AT = ":retry_at";
+    private static final String KEY_PROBE_AT = ":probe_at";
+
+    private static ServerCircuitBreaker sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final AdaptiveSyncScheduler.Clock mClock;
+    private final Random mRandom;
+
+    ServerCircuitBreaker(SharedPreferences prefs, AdaptiveSyncScheduler.Clock clock,
+            Random random) {
+        mPrefs = prefs;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    static synchronized ServerCircuitBreaker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ServerCircuitBreaker(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                    AdaptiveSyncScheduler.SYSTEM_CLOCK, new Random());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return one of the STATE_ constants
+     */
+    synchronized int getState(String endpoint) {
+        if (mPrefs.getInt(endpoint + KEY_FAILURES, 0) < FAILURE_THRESHOLD) {
+            return STATE_CLOSED;
+        }
+        return mClock.currentTimeMillis() < mPrefs.getLong(endpoint + KEY_RETRY_AT, 0)
+                ? STATE_OPEN : STATE_HALF_OPEN;
+    }
+
+    /**
+     * Asks whether a request to the endpoint may go out now.  When the breaker is half open,
+     * the caller that gets true is the probe and must report how it went.
+     */
+    synchronized boolean allowRequest(String endpoint) {
+        long now = mClock.currentTimeMillis();
+        if (now < mPrefs.getLong(endpoint + KEY_RETRY_AT, 0)) {
+            return false;
+        }
+        if (getState(endpoint) == STATE_HALF_OPEN) {
+            long probeAt = mPrefs.getLong(endpoint + KEY_PROBE_AT, 0);
+            if (probeAt != 0 && now - probeAt < PROBE_TIMEOUT_MILLIS) {
+                // Somebody else is already probing
+                return false;
+            }
+            mPrefs.edit().putLong(endpoint + KEY_PROBE_AT, now).apply();
+        }
+        return true;
+    }
+
+    /**
+     * @return how long until {@link #allowRequest} may say yes, 0 if it may now
+     */
+    synchronized long getMillisUntilRetry(String endpoint) {
+        long now = mClock.currentTimeMillis();
+        long retryAt = mPrefs.getLong(endpoint + KEY_RETRY_AT, 0);
+        if (getState(endpoint) == STATE_HALF_OPEN) {
+            long probeAt = mPrefs.getLong(endpoint + KEY_PROBE_AT, 0);
+            if (probeAt != 0) {
+                retryAt = Math.max(retryAt, probeAt + PROBE_TIMEOUT_MILLIS);
+            }
+        }
+        return Math.max(0, retryAt - now);
+    }
+
+    synchronized void recordSuccess(String endpoint) {
+        mPrefs.edit()
+                .remove(endpoint + KEY_FAILURES)
+                .remove(endpoint + KEY_RETRY_AT)
+                .remove(endpoint + KEY_PROBE_AT)
+                .apply();
+    }
+
+    synchronized void recordFailure(String endpoint) {
+        int failures = mPrefs.getInt(endpoint + KEY_FAILURES, 0) + 1;
+        mPrefs.edit()
+                .putInt(endpoint + KEY_FAILURES, failures)
+                .putLong(endpoint + KEY_RETRY_AT, mClock.currentTimeMillis() + nextDelay(failures))
+                .remove(endpoint + KEY_PROBE_AT)
+                .apply();
+    }
+
+    synchronized int getFailureCount(String endpoint) {
+        return mPrefs.getInt(endpoint + KEY_FAILURES, 0);
+    }
+
+    /**
+     * Half the doubled delay is fixed and the other half random, so retries spread out but
+     * never come back sooner than half the backoff.
+     */
+    private long nextDelay(int failures) {
+        // Past 20 doublings the delay is long capped anyway, and the shift can't overflow
+        long cap = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(failures - 1, 20));
+        long half = cap / 2;
+        return half + (long) (mRandom.nextDouble() * (cap - half));
+    }
+}
@@ -8,7 +8,6 @@ import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -19,9 +18,9 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
@@ -34,7 +33,11 @@ import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.ForecastSnapshotCache;
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
 
@@ -55,21 +58,17 @@ import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         GoogleApiClient.ConnectionCallbacks,
@@ -78,6 +77,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     private static final String TAG = SunshineSyncAdapter.class.getSimpleName();
     private static final String WEARABLE_DATA_PATH = "/wearable_data";
     GoogleApiClient mGoogleClient;
+    private final ConditionalRequestCache mRequestCache;
+    private final SyncHttpTransport mTransport;
+    private final ForecastSource mSource;
+    private final ParallelForecastFetcher mFetcher;
+    private final PostSyncDispatcher mPostSync;
+    private final AdaptiveSyncScheduler mScheduler;
+    private final ServerCircuitBreaker mBreaker;
+    private final SyncRequestCoalescer mCoalescer;
 
 
 
@@ -89,21 +96,21 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Every location is fetched from the same server, so the per host cap is the one that bites
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    private static final int MAX_FETCHES_PER_HOST = 3;
+    // One thread per post sync consumer, and how long each may take.  The notification may
+    // download its large icon, and the watch may be slow to answer.
+    private static final int POST_SYNC_THREADS = 4;
+    private static final long WIDGETS_TIMEOUT_MILLIS = 2 * 1000;
+    private static final long MUZEI_TIMEOUT_MILLIS = 2 * 1000;
+    private static final long WEARABLE_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 15 * 1000;
+    // OWM weather ids of thunderstorms, which make the scheduler sync more often
+    private static final int SEVERE_WEATHER_ID_MIN = 200;
+    private static final int SEVERE_WEATHER_ID_MAX = 300;
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -116,6 +123,49 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mRequestCache = ConditionalRequestCache.getInstance(context);
+        // Kept for the life of the adapter so its counters span syncs
+        mTransport = new SyncHttpTransport();
+        mSource = new OwmForecastSource(OwmForecastSource.DEFAULT_BASE_URL,
+                OwmForecastSource.DEFAULT_HOURLY_BASE_URL, BuildConfig.OPEN_WEATHER_MAP_API_KEY,
+                mTransport, mRequestCache);
+        mFetcher = new ParallelForecastFetcher(MAX_CONCURRENT_FETCHES, MAX_FETCHES_PER_HOST);
+        mScheduler = AdaptiveSyncScheduler.getInstance(context);
+        mBreaker = ServerCircuitBreaker.getInstance(context);
+        mCoalescer = SyncRequestCoalescer.getInstance();
+        mPostSync = new PostSyncDispatcher(POST_SYNC_THREADS);
+        mPostSync.setListener(new PostSyncDispatcher.Listener() {
+            @Override
+            public void onConsumerFinished(long syncId, String name, int result,
+                                           long latencyMillis) {
+                SyncMetrics.saveOne(getContext().getContentResolver(), syncId,
+                        SyncMetricsEntry.METRIC_FANOUT_PREFIX + name, latencyMillis);
+            }
+        });
+        mPostSync.addConsumer("widgets", WIDGETS_TIMEOUT_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                updateWidgets();
+            }
+        });
+        mPostSync.addConsumer("muzei", MUZEI_TIMEOUT_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                updateMuzei();
+            }
+        });
+        mPostSync.addConsumer("wearable", WEARABLE_TIMEOUT_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                updateWearable();
+            }
+        });
+        mPostSync.addConsumer("notification", NOTIFICATION_TIMEOUT_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                notifyWeather();
+            }
+        });
         // Build a new GoogleApiClient for the the Wearable API
         mGoogleClient = new GoogleApiClient.Builder(context)
                 .addApi(Wearable.API)
@@ -128,270 +178,422 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
-
+        List<String> locations = Utility.getSyncLocations(getContext());
+        String syncKey = SyncRequestCoalescer.keyFor(locations);
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        if (!mCoalescer.startSync(syncKey, manual)) {
+            // e.g. the periodic sync landing right after a manual one
+            Log.d(TAG, "Skipping sync, these locations were synced moments ago. " +
+                    mCoalescer.getCoalescedCount() + " of " + mCoalescer.getRequestCount() +
+                    " requests coalesced so far");
+            return;
+        }
+        boolean fetched = false;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
-
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            fetched = fetchAndStore(locations, syncResult);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(TAG, "Error closing stream", e);
-                }
-            }
+            mCoalescer.finishSync(syncKey, fetched);
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * The sync proper: fetches every location, stores what came back and lets everything that
+     * shows the weather know.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return true if any location's forecast was fetched
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    private boolean fetchAndStore(List<String> locations, SyncResult syncResult) {
+        SyncMetrics metrics = new SyncMetrics();
+        String locationQuery = Utility.getPreferredLocation(getContext());
+        String endpoint = mSource.getEndpoint();
+        forgetValidatorsWithoutData(locations);
+
+        if (!mBreaker.allowRequest(endpoint)) {
+            // The server failed recently; the last status stays up until it's worth retrying
+            long waitMillis = mBreaker.getMillisUntilRetry(endpoint);
+            Log.d(TAG, "Skipping sync, " + endpoint + " is backing off for " +
+                    waitMillis / 1000 + "s");
+            // An epoch time in seconds; the SyncManager holds back syncs for our authority until
+            // then
+            syncResult.delayUntil = System.currentTimeMillis() / 1000 +
+                    Math.max(1, waitMillis / 1000);
+            metrics.put(SyncMetricsEntry.METRIC_BREAKER_STATE, mBreaker.getState(endpoint));
+            metrics.put(SyncMetricsEntry.METRIC_TOTAL, metrics.elapsedMillis());
+            metrics.save(getContext().getContentResolver());
+            return false;
+        }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        List<ParallelForecastFetcher.LocationForecast> forecasts;
+        long fetchStart = SystemClock.elapsedRealtime();
+        try {
+            forecasts = mFetcher.fetchAll(locations, mSource);
+        } catch (InterruptedException e) {
+            // The SyncManager cancelled the sync; keep the interrupt for it to see
+            Log.d(TAG, "Sync cancelled");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        recordServerOutcome(forecasts);
+        metrics.put(SyncMetricsEntry.METRIC_BREAKER_STATE, mBreaker.getState(endpoint));
+        metrics.put(SyncMetricsEntry.METRIC_FETCH, SystemClock.elapsedRealtime() - fetchStart);
+        metrics.put(SyncMetricsEntry.METRIC_LOCATIONS, locations.size());
+        for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+            metrics.add(SyncMetricsEntry.METRIC_CONNECT, forecast.connectMillis);
+            metrics.add(SyncMetricsEntry.METRIC_DOWNLOAD, forecast.downloadMillis);
+            metrics.add(SyncMetricsEntry.METRIC_PARSE, forecast.parseMillis);
+            metrics.add(SyncMetricsEntry.METRIC_BYTES, forecast.bytesOnWire);
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        float changedFraction = storeWeatherData(forecasts, locationQuery, metrics);
+        if (changedFraction >= 0) {
+            rescheduleSync(changedFraction);
+            compactHistory(metrics);
+        }
+        metrics.put(SyncMetricsEntry.METRIC_TOTAL, metrics.elapsedMillis());
+        metrics.save(getContext().getContentResolver());
+        Log.d(TAG, "Conditional requests: " + mRequestCache.getHitCount() + " not modified, " +
+                mRequestCache.getMissCount() + " downloaded");
+        Log.d(TAG, "Forecast bytes: " + mTransport.getBytesOnWire() + " on the wire, " +
+                mTransport.getBytesDecoded() + " decoded");
+        return changedFraction >= 0;
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Tells the circuit breaker whether the server answered.  Any answer counts, even a 404 for a
+     * city it doesn't know; only when every location came back down or garbled is it a failure.
+     */
+    private void recordServerOutcome(List<ParallelForecastFetcher.LocationForecast> forecasts) {
+        if (forecasts.isEmpty()) {
+            return;
+        }
+        String endpoint = mSource.getEndpoint();
+        for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+            if (forecast.locationStatus != LOCATION_STATUS_SERVER_DOWN &&
+                    forecast.locationStatus != LOCATION_STATUS_SERVER_INVALID) {
+                mBreaker.recordSuccess(endpoint);
+                return;
+            }
+        }
+        mBreaker.recordFailure(endpoint);
+        Log.d(TAG, endpoint + " failed " + mBreaker.getFailureCount(endpoint) +
+                " times in a row, next try in " +
+                mBreaker.getMillisUntilRetry(endpoint) / 1000 + "s");
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * A 304 only means the rows we stored last time are still good, so it must not be asked for
+     * when those rows are gone, e.g. after the database was recreated.  Drops the validators of
+     * every location that has no forecast from today on.
+     */
+    private void forgetValidatorsWithoutData(List<String> locations) {
+        ContentResolver resolver = getContext().getContentResolver();
+
+        HashMap<Long, String> settingsById = new HashMap<Long, String>();
+        Cursor locationCursor = resolver.query(WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null);
+        if (locationCursor != null) {
+            while (locationCursor.moveToNext()) {
+                settingsById.put(locationCursor.getLong(0), locationCursor.getString(1));
+            }
+            locationCursor.close();
+        }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+        HashSet<String> withData = new HashSet<String>();
+        Cursor weatherCursor = resolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY},
+                WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(
+                        WeatherContract.normalizeDate(System.currentTimeMillis()))},
+                null);
+        if (weatherCursor != null) {
+            while (weatherCursor.moveToNext()) {
+                String locationSetting = settingsById.get(weatherCursor.getLong(0));
+                if (locationSetting != null) {
+                    withData.add(locationSetting);
                 }
             }
+            weatherCursor.close();
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        for (String location : locations) {
+            if (!withData.contains(location)) {
+                mSource.forget(location);
+            }
+        }
+    }
 
-                double high;
-                double low;
+    /**
+     * Take the parsed forecasts for every synced location and write them to the database in a
+     * single bulk insert, then let everything that shows the weather know about it once.
+     *
+     * @param forecasts What the fetcher brought back, one entry per location
+     * @param preferredLocation The location whose outcome is reported as the location status
+     * @param metrics Where to record the row counts and how long the database took
+     * @return the share of the fetched days whose forecast changed, or -1 if no location's
+     * forecast could be fetched
+     */
+    private float storeWeatherData(List<ParallelForecastFetcher.LocationForecast> forecasts,
+                                   String preferredLocation, SyncMetrics metrics) {
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        dayTime = new Time();
+
+        // Insert the new weather information into the database
+        Vector<ContentValues> cVVector = new Vector<ContentValues>(forecasts.size() * 14);
+        // A 5 day, 3 hourly forecast covers 6 days
+        ArrayList<ContentValues> hourlyDays = new ArrayList<ContentValues>(forecasts.size() * 6);
+        @LocationStatus int preferredStatus = LOCATION_STATUS_SERVER_DOWN;
+        int writtenCount = 0;
+        boolean anyFetched = false;
+
+        // Every location that has something to write gets its id up front, in one go
+        Map<String, Long> locationIds = resolveLocationIds(forecasts);
+
+        for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+            if (forecast.locationSetting.equals(preferredLocation)) {
+                preferredStatus = forecast.locationStatus;
+            }
+            if (forecast.locationStatus != LOCATION_STATUS_OK) {
+                Log.d(TAG, "No forecast for " + forecast.locationSetting +
+                        ", status " + forecast.locationStatus);
+                continue;
+            }
+            anyFetched = true;
+            ForecastJsonParser.HourlyRows hourly = forecast.hourly;
+            if (forecast.notModified && hourly == null) {
+                // Nothing to write, and nothing for the widgets, Muzei or the watch to redraw
+                continue;
+            }
 
-                String description;
-                int weatherId;
+            Long locationId = locationIds.get(forecast.locationSetting);
+            if (locationId == null) {
+                Log.e(TAG, "Couldn't add location " + forecast.locationSetting);
+                continue;
+            }
+            if (hourly != null) {
+                addHourlyDays(locationId, hourly, hourlyDays);
+            }
+            if (forecast.notModified) {
+                continue;
+            }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+            // The parser hands us the days with everything but the location and the date
+            Vector<ContentValues> days = forecast.rows.days;
+            for (int i = 0; i < days.size(); i++) {
+                ContentValues weatherValues = days.get(i);
 
                 // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
+                long dateTime = dayTime.setJulianDay(julianStartDay+i);
 
                 weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
                 weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
                 cVVector.add(weatherValues);
             }
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+        // add to database
+        ContentValues[] cvArray = new ContentValues[cVVector.size()];
+        cVVector.toArray(cvArray);
+        // One bulk insert, and so one transaction, for every location.  Only the days whose
+        // forecast changed are written, and old days move to the history table in the same
+        // transaction, where compactHistory keeps them bounded.  The loaders hear about it
+        // once per location that changed, with nothing half written in between.  It goes out
+        // even with no rows, when every location came back not modified or failed, so that
+        // yesterday still moves to the history table.
+        long writeStart = SystemClock.elapsedRealtime();
+        writtenCount = getContext().getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.buildWeatherReplaceUri(
+                        dayTime.setJulianDay(julianStartDay - 1)), cvArray);
+        metrics.put(SyncMetricsEntry.METRIC_DB_WRITE,
+                SystemClock.elapsedRealtime() - writeStart);
+
+        if (writtenCount > 0) {
+            // The data is committed.  Read the preferred location's forecast once for the
+            // widgets, Muzei, the watch and the notification, which then catch up on their
+            // own threads while the sync finishes.
+            ForecastSnapshotCache snapshots = ForecastSnapshotCache.getInstance();
+            snapshots.get(getContext().getContentResolver(),
+                    Utility.getPreferredLocation(getContext()));
+            metrics.put(SyncMetricsEntry.METRIC_SNAPSHOT_REBUILD,
+                    snapshots.getLastRebuildMillis());
+            mPostSync.dispatch(metrics.syncId);
+        }
+        // Likewise the old hourly days go whether or not any came in
+        storeHourlyDays(hourlyDays, dayTime.setJulianDay(julianStartDay - 1), metrics);
+        Log.d(TAG, "Sync Complete. " + forecasts.size() + " locations, " +
+                writtenCount + " of " + cVVector.size() + " days written");
+        metrics.put(SyncMetricsEntry.METRIC_ROWS_FETCHED, cVVector.size());
+        metrics.put(SyncMetricsEntry.METRIC_ROWS_WRITTEN, writtenCount);
+        metrics.put(SyncMetricsEntry.METRIC_LOCATION_STATUS, preferredStatus);
+        metrics.put(SyncMetricsEntry.METRIC_SNAPSHOT_HIT_RATE,
+                Math.round(ForecastSnapshotCache.getInstance().getHitRate() * 100));
+        setLocationStatus(getContext(), preferredStatus);
+        if (!anyFetched) {
+            return -1;
+        }
+        // Locations that weren't modified add nothing to either side
+        return cVVector.isEmpty() ? 0 : (float) writtenCount / cVVector.size();
+    }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+    /**
+     * Looks up, or adds, the location row of every forecast that has rows to write.
+     *
+     * @return the _ID of each of those locations, by location setting
+     */
+    private Map<String, Long> resolveLocationIds(
+            List<ParallelForecastFetcher.LocationForecast> forecasts) {
+        List<ContentValues> locations = new ArrayList<ContentValues>(forecasts.size());
+        for (ParallelForecastFetcher.LocationForecast forecast : forecasts) {
+            if (forecast.locationStatus != LOCATION_STATUS_OK) {
+                continue;
+            }
+            if (!forecast.notModified) {
+                locations.add(createLocationValues(forecast.locationSetting,
+                        forecast.rows.cityName, forecast.rows.cityLatitude,
+                        forecast.rows.cityLongitude));
+            } else if (forecast.hourly != null) {
+                locations.add(createLocationValues(forecast.locationSetting,
+                        forecast.hourly.cityName, forecast.hourly.cityLatitude,
+                        forecast.hourly.cityLongitude));
+            }
+        }
+        return LocationIdCache.getInstance().resolve(getContext().getContentResolver(),
+                locations);
+    }
 
+    private static ContentValues createLocationValues(String locationSetting, String cityName,
+                                                      double lat, double lon) {
+        ContentValues locationValues = new ContentValues(4);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
 
-                updateWearable();
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+    /**
+     * Splits a location's 3 hourly forecast into days and packs each day into one row of the
+     * hourly table.
+     */
+    private static void addHourlyDays(long locationId, ForecastJsonParser.HourlyRows hourly,
+                                      List<ContentValues> hourlyDays) {
+        int from = 0;
+        while (from < hourly.count) {
+            // The samples come in time order, so a day's are next to each other
+            long date = WeatherContract.normalizeDate(hourly.times[from]);
+            int to = from + 1;
+            while (to < hourly.count && WeatherContract.normalizeDate(hourly.times[to]) == date) {
+                to++;
             }
-            Log.d(TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            ContentValues dayValues = new ContentValues(4);
+            dayValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+            dayValues.put(WeatherContract.HourlyEntry.COLUMN_DATE, date);
+            dayValues.put(WeatherContract.HourlyEntry.COLUMN_SAMPLE_COUNT, to - from);
+            dayValues.put(WeatherContract.HourlyEntry.COLUMN_SAMPLES,
+                    WeatherContract.HourlyEntry.packSamples(date, hourly.times,
+                            hourly.temperatures, hourly.precipitation, from, to));
+            hourlyDays.add(dayValues);
+            from = to;
+        }
+    }
+
+    /**
+     * Writes the packed days of every location's 3 hourly forecast, replacing the ones already
+     * stored, and drops the days on or before {@code cutoffDate} in the same transaction.
+     * Nothing shows these yet, so the widgets, Muzei and the watch aren't told.
+     */
+    private void storeHourlyDays(List<ContentValues> hourlyDays, long cutoffDate,
+                                 SyncMetrics metrics) {
+        long writeStart = SystemClock.elapsedRealtime();
+        getContext().getContentResolver().bulkInsert(
+                WeatherContract.HourlyEntry.buildHourlyReplaceUri(cutoffDate),
+                hourlyDays.toArray(new ContentValues[hourlyDays.size()]));
+        metrics.put(SyncMetricsEntry.METRIC_DB_HOURLY_WRITE,
+                SystemClock.elapsedRealtime() - writeStart);
+    }
+
+    /**
+     * Rolls the history archive up, at most once a day.  Syncs come every few hours at the
+     * most, and the archive only ages by days.
+     */
+    private void compactHistory(SyncMetrics metrics) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        String lastCompactionKey = getContext().getString(R.string.pref_last_history_compaction);
+        long now = System.currentTimeMillis();
+        if (now - prefs.getLong(lastCompactionKey, 0) < DAY_IN_MILLIS) {
+            return;
         }
+        long compactStart = SystemClock.elapsedRealtime();
+        int removed = getContext().getContentResolver().delete(
+                WeatherContract.HistoryEntry.buildCompactUri(now), null, null);
+        metrics.put(SyncMetricsEntry.METRIC_HISTORY_COMPACTION,
+                SystemClock.elapsedRealtime() - compactStart);
+        prefs.edit().putLong(lastCompactionKey, now).apply();
+        Log.d(TAG, "History compacted, " + removed + " rows fewer");
+    }
+
+    /**
+     * Asks the scheduler how soon the next sync should be, given how much this one changed, and
+     * moves the periodic sync if the answer is different from last time.
+     */
+    private void rescheduleSync(float changedFraction) {
+        // The watch face's views are already in, from WatchFaceViewedListenerService
+        List<AdaptiveSyncScheduler.Decision> history = mScheduler.getHistory();
+        AdaptiveSyncScheduler.Decision previous =
+                history.isEmpty() ? null : history.get(history.size() - 1);
+        AdaptiveSyncScheduler.Decision decision = mScheduler.decide(
+                new AdaptiveSyncScheduler.Signals(changedFraction, isSevereWeatherSoon()));
+        Log.d(TAG, "Next sync " + decision);
+
+        if (previous == null || previous.intervalSeconds != decision.intervalSeconds) {
+            configurePeriodicSync(getContext(), decision.intervalSeconds, decision.flexSeconds);
+        }
+    }
+
+    /**
+     * @return whether a thunderstorm is forecast for any synced location in the next 48 hours
+     */
+    private boolean isSevereWeatherSoon() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " >= ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " < ?",
+                new String[]{
+                        Long.toString(dayTime.setJulianDay(julianToday)),
+                        Long.toString(dayTime.setJulianDay(julianToday + 2)),
+                        Integer.toString(SEVERE_WEATHER_ID_MIN),
+                        Integer.toString(SEVERE_WEATHER_ID_MAX)},
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean severe = cursor.getCount() > 0;
+        cursor.close();
+        return severe;
     }
 
     private void updateWidgets() {
@@ -430,16 +632,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
                 String locationQuery = Utility.getPreferredLocation(context);
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                // Today's forecast, shared with the other post sync consumers
+                ForecastSnapshot forecast = ForecastSnapshotCache.getInstance()
+                        .get(context.getContentResolver(), locationQuery);
+                int today = forecast == null ? -1 : forecast.indexOfDay(System.currentTimeMillis());
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != -1) {
+                    int weatherId = forecast.getWeatherId(today);
+                    double high = forecast.getMaxTemp(today);
+                    double low = forecast.getMinTemp(today);
+                    String desc = forecast.getShortDesc(today);
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -516,61 +718,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     editor.commit();
 
                 }
-                cursor.close();
             }
         }
     }
 
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
-    }
-
     /**
      * Helper method to schedule the sync adapter periodic execution
      */
@@ -595,6 +746,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        // A burst of requests for the same locations only needs the one sync
+        String syncKey = SyncRequestCoalescer.keyFor(Utility.getSyncLocations(context));
+        if (!SyncRequestCoalescer.getInstance().request(syncKey, true)) {
+            Log.d(TAG, "Sync of these locations already pending or running, not requesting");
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -683,26 +840,39 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     private void updateWearable(){
         Context context = getContext();
         String locationQuery = Utility.getPreferredLocation(context);
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-
-
-            Log.d("TAG","SENDING WEATHER DATA" );
+        // Today's forecast, shared with the other post sync consumers
+        ForecastSnapshot forecast = ForecastSnapshotCache.getInstance()
+                .get(context.getContentResolver(), locationQuery);
+        int today = forecast == null ? -1 : forecast.indexOfDay(System.currentTimeMillis());
+        if (today != -1) {
+            int weatherId = forecast.getWeatherId(today);
+            double high = forecast.getMaxTemp(today);
+            double low = forecast.getMinTemp(today);
+
+            Log.d(TAG, "Sending weather data to the wearable");
             // Create a DataMap object and send it to the data layer
             DataMap dataMap = new DataMap();
             dataMap.putLong("time", new Date().getTime());
-            dataMap.putDouble("high", cursor.getDouble(INDEX_MAX_TEMP));
-            dataMap.putDouble("low", cursor.getDouble(INDEX_MIN_TEMP));
-            dataMap.putLong("id", cursor.getInt(INDEX_WEATHER_ID));
-            //Requires a new thread to avoid blocking the UI
-            new SendToDataLayerThread(WEARABLE_DATA_PATH, dataMap).start();
+            dataMap.putDouble("high", high);
+            dataMap.putDouble("low", low);
+            dataMap.putLong("id", weatherId);
+            // Already off the sync thread, so it's fine to wait for the data layer here
+            sendToDataLayer(WEARABLE_DATA_PATH, dataMap);
+        }
+    }
 
+    private void sendToDataLayer(String path, DataMap dataMap) {
+        // Construct a DataRequest and send over the data layer
+        PutDataMapRequest putDMR = PutDataMapRequest.create(path);
+        putDMR.getDataMap().putAll(dataMap);
+        PutDataRequest request = putDMR.asPutDataRequest();
+        DataApi.DataItemResult result = Wearable.DataApi.putDataItem(mGoogleClient, request)
+                .await(WEARABLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (result.getStatus().isSuccess()) {
+            Log.v(TAG, "DataMap: " + dataMap + " sent successfully to data layer ");
+        } else {
+            // Log an error
+            Log.v(TAG, "ERROR: failed to send DataMap to data layer");
         }
     }
 
@@ -713,30 +883,4 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     @Override
     public void onConnectionFailed(ConnectionResult connectionResult) { }
-
-    class SendToDataLayerThread extends Thread {
-        String path;
-        DataMap dataMap;
-
-        // Constructor for sending data objects to the data layer
-        SendToDataLayerThread(String p, DataMap data) {
-            path = p;
-            dataMap = data;
-        }
-
-        public void run() {
-            // Construct a DataRequest and send over the data layer
-            PutDataMapRequest putDMR = PutDataMapRequest.create(path);
-            putDMR.getDataMap().putAll(dataMap);
-            PutDataRequest request = putDMR.asPutDataRequest();
-            DataApi.DataItemResult result = Wearable.DataApi.putDataItem(mGoogleClient, request).await();
-            Log.d(TAG,"THREAD WEATHER DATA" );
-            if (result.getStatus().isSuccess()) {
-                Log.v(TAG, "DataMap: " + dataMap + " sent successfully to data layer ");
-            } else {
-                // Log an error
-                Log.v(TAG, "ERROR: failed to send DataMap to data layer");
-            }
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HTTP client the sync adapter talks to the forecast server through.
+ *
+ * Every request asks for a gzip response and is decompressed as it is read, has connect and
+ * read timeouts so a hung server can't pin the sync thread, and is finished by draining and
+ * closing the body instead of calling {@link HttpURLConnection#disconnect()}.  That leaves the
+ * socket in HttpURLConnection's keep-alive pool, so the requests of a multi-location sync share
+ * connections.
+ */
+class SyncHttpTransport {
+
+    private static final String LOG_TAG = SyncHttpTransport.class.getSimpleName();
+
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    // Don't read forever to save a connection; past this it's cheaper to open a new one
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    private final AtomicLong mBytesOnWire = new AtomicLong();
+    private final AtomicLong mBytesDecoded = new AtomicLong();
+
+    SyncHttpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    SyncHttpTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * One response.  Always {@link #close()} it, whether or not the body was read.
+     */
+    class Response {
+        final HttpURLConnection connection;
+        final int responseCode;
+        // From opening the connection to having the status line: DNS, connect, request and
+        // the server's think time
+        final long connectMillis;
+        private CountingInputStream mRawBody;
+        private InputStream mBody;
+
+        Response(HttpURLConnection connection, int responseCode, long connectMillis) {
+            this.connection = connection;
+            this.responseCode = responseCode;
+            this.connectMillis = connectMillis;
+        }
+
+        /**
+         * @return the body bytes of this response read off the network so far
+         */
+        long getBytesOnWire() {
+            return mRawBody == null ? 0 : mRawBody.getCount();
+        }
+
+        /**
+         * @return the time spent waiting on the network for the body so far.  Whatever else the
+         * reader spent on the body was decompressing and parsing it.
+         */
+        long getDownloadMillis() {
+            return mRawBody == null ? 0 : mRawBody.getReadNanos() / 1000000;
+        }
+
+        /**
+         * The decoded body.  404s are returned too, since the forecast server explains them in
+         * the body; any other error status throws.
+         */
+        InputStream getBody() throws IOException {
+            if (mBody != null) {
+                return mBody;
+            }
+            InputStream raw;
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                raw = connection.getErrorStream();
+            } else if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException("HTTP " + responseCode + " from " + connection.getURL());
+            } else {
+                raw = connection.getInputStream();
+            }
+            if (raw == null) {
+                throw new IOException("No body from " + connection.getURL());
+            }
+            mRawBody = new CountingInputStream(raw, mBytesOnWire);
+
+            InputStream decoded = mRawBody;
+            if (ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                decoded = new GZIPInputStream(decoded);
+            }
+            mBody = new CountingInputStream(decoded, mBytesDecoded);
+            return mBody;
+        }
+
+        /**
+         * Reads whatever the parser left behind and closes the body, which hands the connection
+         * back to the pool.  Only if that isn't possible is the connection torn down.  A body the
+         * caller already closed has been dealt with by HttpURLConnection and is left alone.
+         */
+        void close() {
+            try {
+                if (mRawBody == null && responseCode < HttpURLConnection.HTTP_BAD_REQUEST) {
+                    // a 304 or an unread body still has to be consumed for the socket to be reused
+                    mRawBody = new CountingInputStream(connection.getInputStream(), mBytesOnWire);
+                } else if (mRawBody == null) {
+                    // so does the body of an error getBody() refused, if there is one
+                    InputStream error = connection.getErrorStream();
+                    if (error == null) {
+                        connection.disconnect();
+                        return;
+                    }
+                    mRawBody = new CountingInputStream(error, mBytesOnWire);
+                }
+                if (mRawBody != null && !mRawBody.isClosed()) {
+                    byte[] buffer = new byte[4096];
+                    int drained = 0;
+                    int read;
+                    while (drained < MAX_DRAIN_BYTES && (read = mRawBody.read(buffer)) != -1) {
+                        drained += read;
+                    }
+                    if (drained >= MAX_DRAIN_BYTES) {
+                        connection.disconnect();
+                    }
+                    mRawBody.close();
+                }
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Dropping connection to " + connection.getURL(), e);
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends a GET, adding the conditional headers from the cache when one is given.
+     */
+    Response get(URL url, ConditionalRequestCache cache) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+        urlConnection.setReadTimeout(mReadTimeoutMillis);
+        // Asking for it ourselves means decompressing it ourselves, but it also means we can
+        // count what actually crossed the network
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        if (cache != null) {
+            cache.applyValidators(urlConnection);
+        }
+        try {
+            urlConnection.connect();
+            int responseCode = urlConnection.getResponseCode();
+            return new Response(urlConnection, responseCode,
+                    SystemClock.elapsedRealtime() - start);
+        } catch (IOException e) {
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the body bytes received so far, as sent by the server (compressed or not)
+     */
+    long getBytesOnWire() {
+        return mBytesOnWire.get();
+    }
+
+    /**
+     * @return the body bytes handed to callers so far, after decompression
+     */
+    long getBytesDecoded() {
+        return mBytesDecoded.get();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mTotal;
+        private long mCount;
+        private long mReadNanos;
+        private boolean mClosed;
+
+        CountingInputStream(InputStream in, AtomicLong total) {
+            super(in);
+            mTotal = total;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (read > 0) {
+                counted(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(byteCount);
+            mReadNanos += System.nanoTime() - start;
+            if (skipped > 0) {
+                counted(skipped);
+            }
+            return skipped;
+        }
+
+        private void counted(long bytes) {
+            mCount += bytes;
+            mTotal.addAndGet(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            super.close();
+        }
+
+        boolean isClosed() {
+            return mClosed;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+    }
+}
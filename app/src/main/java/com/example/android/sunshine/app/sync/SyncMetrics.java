@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the metrics of one sync and writes them to the sync metrics table in one go.
+ */
+class SyncMetrics {
+
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    final long syncId;
+    private final long mStartMillis;
+    private final Map<String, Long> mValues = new LinkedHashMap<String, Long>();
+
+    SyncMetrics() {
+        syncId = System.currentTimeMillis();
+        mStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    void put(String name, long value) {
+        mValues.put(name, value);
+    }
+
+    /**
+     * Adds to a metric, for the ones summed over every location.
+     */
+    void add(String name, long value) {
+        Long current = mValues.get(name);
+        mValues.put(name, current == null ? value : current + value);
+    }
+
+    /**
+     * @return how long the sync has been running
+     */
+    long elapsedMillis() {
+        return SystemClock.elapsedRealtime() - mStartMillis;
+    }
+
+    void save(ContentResolver contentResolver) {
+        ContentValues[] rows = new ContentValues[mValues.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> value : mValues.entrySet()) {
+            rows[i++] = createRow(syncId, value.getKey(), value.getValue());
+        }
+        contentResolver.bulkInsert(SyncMetricsEntry.CONTENT_URI, rows);
+        Log.d(LOG_TAG, "Sync " + syncId + ": " + mValues);
+    }
+
+    /**
+     * Records a single metric on its own, for the ones that turn up on another thread on their
+     * own schedule, like the time a post sync consumer took.
+     */
+    static void saveOne(ContentResolver contentResolver, long syncId, String name, long value) {
+        contentResolver.insert(SyncMetricsEntry.CONTENT_URI, createRow(syncId, name, value));
+    }
+
+    private static ContentValues createRow(long syncId, String name, long value) {
+        ContentValues row = new ContentValues();
+        row.put(SyncMetricsEntry.COLUMN_SYNC_ID, syncId);
+        row.put(SyncMetricsEntry.COLUMN_NAME, name);
+        row.put(SyncMetricsEntry.COLUMN_VALUE, value);
+        return row;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Folds bursts of sync requests for the same locations into one fetch.
+ *
+ * A request that arrives while a sync of the same locations is pending or running rides along
+ * with it, and one that arrives shortly after such a sync finished uses what it stored.  Either
+ * way no second request goes to the framework, and no second fetch to the server.  A manual
+ * request, one the user asked for, is never answered with what another sync stored: it rides
+ * along with a sync that is pending or running, which then fetches however fresh the last one
+ * is, and otherwise goes out.  Only lives as long as the process, which is all a burst needs.
+ */
+class SyncRequestCoalescer {
+
+    // How long a finished sync's data counts as fresh enough to hand out again
+    static final long FRESH_MILLIS = 60 * 1000;
+    // A requested sync the framework never got round to stops holding back new requests
+    static final long PENDING_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static class State {
+        long pendingSince;
+        // Whether a manual request rides along with the pending sync
+        boolean pendingManual;
+        boolean running;
+        long completedAt;
+    }
+
+    private static SyncRequestCoalescer sInstance;
+
+    private final AdaptiveSyncScheduler.Clock mClock;
+    private final HashMap<String, State> mStates = new HashMap<String, State>();
+    private int mRequestCount;
+    private int mCoalescedCount;
+
+    SyncRequestCoalescer(AdaptiveSyncScheduler.Clock clock) {
+        mClock = clock;
+    }
+
+    static synchronized SyncRequestCoalescer getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncRequestCoalescer(AdaptiveSyncScheduler.SYSTEM_CLOCK);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the key a sync of these locations is known by
+     */
+    static String keyFor(List<String> locations) {
+        return TextUtils.join("\n", locations);
+    }
+
+    /**
+     * Called before asking the framework for an immediate sync.
+     *
+     * @param manual Whether the user asked for it
+     * @return true if the request should go out, false if it was folded into another sync
+     */
+    synchronized boolean request(String key, boolean manual) {
+        mRequestCount++;
+        long now = mClock.currentTimeMillis();
+        State state = stateFor(key);
+        if (isPending(state, now)) {
+            state.pendingManual |= manual;
+            mCoalescedCount++;
+            return false;
+        }
+        if (state.running || (!manual && isFresh(state, now))) {
+            mCoalescedCount++;
+            return false;
+        }
+        state.pendingSince = now;
+        state.pendingManual = manual;
+        return true;
+    }
+
+    /**
+     * Called when a sync starts.
+     *
+     * @param manual Whether the user asked for it, as {@link
+     *               android.content.ContentResolver#SYNC_EXTRAS_MANUAL} says
+     * @return true if it should fetch, false if a sync that just finished already did
+     */
+    synchronized boolean startSync(String key, boolean manual) {
+        State state = stateFor(key);
+        manual |= isPending(state, mClock.currentTimeMillis()) && state.pendingManual;
+        state.pendingSince = 0;
+        state.pendingManual = false;
+        if (state.running || (!manual && isFresh(state, mClock.currentTimeMillis()))) {
+            mCoalescedCount++;
+            return false;
+        }
+        state.running = true;
+        return true;
+    }
+
+    /**
+     * Called when a sync that {@link #startSync} let through is done.
+     *
+     * @param fetched Whether anything was fetched, so that later requests may use it
+     */
+    synchronized void finishSync(String key, boolean fetched) {
+        State state = stateFor(key);
+        state.running = false;
+        if (fetched) {
+            state.completedAt = mClock.currentTimeMillis();
+        }
+    }
+
+    synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return how many requests and syncs were folded into another sync
+     */
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private State stateFor(String key) {
+        State state = mStates.get(key);
+        if (state == null) {
+            state = new State();
+            mStates.put(key, state);
+        }
+        return state;
+    }
+
+    private static boolean isPending(State state, long now) {
+        return state.pendingSince != 0 && now - state.pendingSince < PENDING_TIMEOUT_MILLIS;
+    }
+
+    private static boolean isFresh(State state, long now) {
+        return state.completedAt != 0 && now - state.completedAt < FRESH_MILLIS;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.WearableListenerService;
+
+/**
+ * Hears the watch face say it was shown and notes the time with the
+ * {@link AdaptiveSyncScheduler}, as it happens, so the sync never has to ask the watch.
+ */
+public class WatchFaceViewedListenerService extends WearableListenerService {
+
+    // Put by the watch face whenever it's shown
+    private static final String WATCH_FACE_VIEWED_PATH = "/watch_face_viewed";
+
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        for (DataEvent dataEvent : dataEvents) {
+            DataItem item = dataEvent.getDataItem();
+            if (dataEvent.getType() != DataEvent.TYPE_CHANGED ||
+                    !WATCH_FACE_VIEWED_PATH.equals(item.getUri().getPath())) {
+                continue;
+            }
+            long viewed = DataMapItem.fromDataItem(item).getDataMap().getLong("time");
+            AdaptiveSyncScheduler.getInstance(this)
+                    .recordViewed(AdaptiveSyncScheduler.SURFACE_WATCH, viewed);
+        }
+    }
+}
@@ -15,6 +15,7 @@ import android.widget.RemoteViews;
 import com.example.android.sunshine.app.DetailActivity;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.sync.AdaptiveSyncScheduler;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 /**
@@ -28,8 +29,12 @@ public class DetailWidgetProvider extends AppWidgetProvider {
             RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_detail);
 
             // Create an Intent to launch MainActivity
-            Intent intent = new Intent(context, MainActivity.class);
-            PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent, 0);
+            // A tap is the one sure sign the widget was looked at
+            Intent intent = new Intent(context, MainActivity.class)
+                    .putExtra(AdaptiveSyncScheduler.EXTRA_SURFACE,
+                            AdaptiveSyncScheduler.SURFACE_WIDGET);
+            PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
             views.setOnClickPendingIntent(R.id.widget, pendingIntent);
 
             // Set up the collection
@@ -43,6 +48,8 @@ public class DetailWidgetProvider extends AppWidgetProvider {
             Intent clickIntentTemplate = useDetailActivity
                     ? new Intent(context, DetailActivity.class)
                     : new Intent(context, MainActivity.class);
+            clickIntentTemplate.putExtra(AdaptiveSyncScheduler.EXTRA_SURFACE,
+                    AdaptiveSyncScheduler.SURFACE_WIDGET);
             PendingIntent clickPendingIntentTemplate = TaskStackBuilder.create(context)
                     .addNextIntentWithParentStack(clickIntentTemplate)
                     .getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
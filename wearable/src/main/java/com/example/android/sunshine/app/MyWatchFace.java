@@ -110,6 +110,7 @@ public class MyWatchFace extends CanvasWatchFaceService {
         final Handler mUpdateTimeHandler = new EngineHandler(this);
 
         private static final String WEARABLE_DATA_PATH = "/wearable_data";
+        private static final String WATCH_FACE_VIEWED_PATH = "/watch_face_viewed";
 
         private boolean mWeatherDataUpdated=false;
 
@@ -620,6 +621,13 @@ public class MyWatchFace extends CanvasWatchFaceService {
             }
             Wearable.DataApi.addListener(mGoogleApiClient, Engine.this);
 
+            // The client is connected whenever the face becomes visible.  Tell the phone, which
+            // syncs less often while nobody is looking.
+            if (isVisible()) {
+                DataMap viewed = new DataMap();
+                viewed.putLong("time", System.currentTimeMillis());
+                new SendToDataLayerThread(WATCH_FACE_VIEWED_PATH, viewed).start();
+            }
         }
 
         @Override  // GoogleApiClient.OnConnectionFailedListener